@@ -0,0 +1,186 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    compares the central outbound scheduler of AsyncTelegramClient with the sink and Flux per chat it replaced.
+    Every operation sends two messages to each of 50k chats that never sent anything before, the second one has to
+    wait for the chat delay, and ends once telegram got all of them. cpuMillis is the cpu time of the whole process.
+    For the memory run it with the gc profiler: ./gradlew jmh --args="OutboundSchedulerBenchmark -prof gc"
+ */
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OutboundSchedulerBenchmark {
+
+    @Param({"50000"})
+    int chats;
+
+    @Param({"central", "sinkPerChat"})
+    String design;
+
+    AtomicLong executed;
+    Outbound outbound;
+    SendMessage message;
+    long nextChatId;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var botProperties = new BotProperties();
+        botProperties.getTelegram().setDelayBetweenMessagesForSameChat(Duration.ofMillis(50));
+        //only the per chat scheduling is compared, the global limit would make this take forever
+        botProperties.getTelegram().getOutboundRateLimit().setGlobalLimit(Integer.MAX_VALUE);
+        executed = new AtomicLong();
+        var telegramClient = (TelegramClient) Proxy.newProxyInstance(TelegramClient.class.getClassLoader(), new Class<?>[]{TelegramClient.class},
+            (proxy, method, args) -> switch (method.getName()) {
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                case "toString" -> "TelegramClient";
+                default -> {
+                    executed.incrementAndGet();
+                    yield null;
+                }
+            });
+        var outboundRateLimiter = new OutboundRateLimiter(botProperties, new SimpleMeterRegistry());
+        if("central".equals(design)){
+            var asyncTelegramClient = new AsyncTelegramClient(telegramClient, botProperties, outboundRateLimiter, ObservationRegistry.NOOP, new SimpleMeterRegistry());
+            asyncTelegramClient.postConstruct();
+            outbound = new Outbound() {
+                @Override
+                public void sendMessage(long chatId, SendMessage msg) {
+                    asyncTelegramClient.sendMessage(chatId, msg);
+                }
+
+                @Override
+                public void close() throws InterruptedException {
+                    asyncTelegramClient.shutdown();
+                }
+            };
+        }
+        else {
+            outbound = new SinkPerChat(telegramClient, outboundRateLimiter);
+        }
+        message = new SendMessage("0", "benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        outbound.close();
+    }
+
+    @Benchmark
+    public void sendToAllChats(CpuTime cpuTime) {
+        long cpuBefore = cpuTime.processCpuNanos();
+        long target = executed.get() + 2L * chats;
+        //new chats every time, like the users that write to the bot over a day
+        long firstChat = nextChatId;
+        nextChatId += chats;
+        for (int round = 0; round < 2; round++) {
+            for (long chatId = firstChat; chatId < firstChat + chats; chatId++) {
+                outbound.sendMessage(chatId, message);
+            }
+        }
+        while (executed.get() < target) {
+            LockSupport.parkNanos(100_000);
+        }
+        cpuTime.cpuMillis += (cpuTime.processCpuNanos() - cpuBefore) / 1_000_000;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CpuTime {
+        public long cpuMillis;
+
+        long processCpuNanos() {
+            return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cpuMillis = 0;
+        }
+    }
+
+    interface Outbound {
+        void sendMessage(long chatId, SendMessage msg);
+
+        void close() throws InterruptedException;
+    }
+
+    //the implementation before the central scheduler, a unicast sink with its own Flux for every chat
+    static class SinkPerChat implements Outbound {
+        final Map<Long, Sinks.Many<SendMessage>> sinks = new ConcurrentHashMap<>();
+        final TelegramClient telegramClient;
+        final OutboundRateLimiter outboundRateLimiter;
+
+        SinkPerChat(TelegramClient telegramClient, OutboundRateLimiter outboundRateLimiter) {
+            this.telegramClient = telegramClient;
+            this.outboundRateLimiter = outboundRateLimiter;
+        }
+
+        @Override
+        public void sendMessage(long chatId, SendMessage msg) {
+            sinks.computeIfAbsent(chatId, this::createSink).tryEmitNext(msg);
+        }
+
+        private Sinks.Many<SendMessage> createSink(long chatId) {
+            Sinks.Many<SendMessage> sink = Sinks.many().unicast().onBackpressureBuffer();
+            var pacing = outboundRateLimiter.newChat(chatId);
+            sink.asFlux()
+                .concatMap(msg -> awaitTurn(pacing)
+                    .then(Mono.fromCallable(() -> telegramClient.execute(msg))
+                        .doOnTerminate(() -> outboundRateLimiter.sent(pacing))
+                        .doOnSuccess(_ -> outboundRateLimiter.succeeded(pacing))))
+                .doFinally(_ -> sinks.remove(chatId))
+                .subscribe();
+            return sink;
+        }
+
+        private Mono<Void> awaitTurn(OutboundRateLimiter.ChatPacing pacing) {
+            return Mono.defer(() -> waitFor(outboundRateLimiter.nanosUntilChatReady(pacing)))
+                .then(Mono.defer(() -> waitFor(outboundRateLimiter.reserve())))
+                .then(Mono.defer(() -> outboundRateLimiter.isPaused() ? awaitTurn(pacing) : Mono.empty()));
+        }
+
+        private static Mono<Void> waitFor(long nanos) {
+            return nanos <= 0 ? Mono.empty() : Mono.delay(Duration.ofNanos(nanos)).then();
+        }
+
+        @Override
+        public void close() {
+            sinks.values().forEach(Sinks.Many::tryEmitComplete);
+        }
+    }
+}
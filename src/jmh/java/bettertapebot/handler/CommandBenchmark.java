@@ -0,0 +1,63 @@
+package bettertapebot.handler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    compares the lookup table in Command.fromCommandString with the linear scan it replaced
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandBenchmark {
+
+    @Param({"/register", "/exit", "/EXIT", "/unknown", "/help@BetterTapeBot"})
+    String input;
+
+    @Setup
+    public void setup() {
+        //make sure the param isn't a constant the jit can fold
+        input = new String(input);
+    }
+
+    @Benchmark
+    public Command lookupTable() {
+        return Command.fromCommandString(input, "BetterTapeBot");
+    }
+
+    @Benchmark
+    public Command linearScan() {
+        return linearScan(input);
+    }
+
+    //the implementation before the lookup table, it also had to cut off the bot name to find anything
+    private static Command linearScan(String in) {
+        if(in == null){
+            return null;
+        }
+        int at = in.indexOf('@');
+        if(at >= 0){
+            in = in.substring(0, at);
+        }
+        for (Command command : Command.values()) {
+            if(command.getCommand().equalsIgnoreCase(in)){
+                return command;
+            }
+        }
+        return null;
+    }
+}
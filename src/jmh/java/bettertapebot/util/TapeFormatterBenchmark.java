@@ -0,0 +1,95 @@
+package bettertapebot.util;
+
+import bettertapebot.repository.TapeListing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+    compares formatting 100k tapes the way the pages of /all do, one builder per tape and joined,
+    with the String.format per tape it replaced. For the allocation per tape run it with the gc profiler
+    and divide gc.alloc.rate.norm by the tape count: ./gradlew jmh --args="TapeFormatterBenchmark -prof gc"
+ */
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TapeFormatterBenchmark {
+    private static final ZoneId ZONE_ID = ZoneId.of("Europe/Berlin");
+
+    @Param({"100000"})
+    int tapeCount;
+
+    @Param({"false", "true"})
+    boolean addId;
+
+    List<TapeListing> tapes;
+
+    @Setup
+    public void setup() {
+        var stars = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            stars.add("user" + i);
+        }
+        tapes = new ArrayList<>(tapeCount);
+        var start = Instant.parse("2020-01-01T00:00:00Z");
+        for (int i = 0; i < tapeCount; i++) {
+            tapes.add(new TapeListing(UUID.randomUUID(), "Tape number " + i + " & friends", stars.get(i % stars.size()),
+                stars.get((i * 7) % stars.size()), start.plusSeconds(i * 3_600L)));
+        }
+    }
+
+    //what TapePager does with the tapes of a page
+    @Benchmark
+    public String builder() {
+        var formatted = new ArrayList<String>(tapes.size());
+        for (TapeListing tape : tapes) {
+            formatted.add(TapeFormatter.formatTape(tape, ZONE_ID, addId));
+        }
+        return String.join("\n\n", formatted);
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        return tapes.stream().map(t -> stringFormat(t, ZONE_ID, addId))
+            .collect(Collectors.joining("\n\n"));
+    }
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yy HH:mm");
+    private static final String TEMPLATE = """
+        <b>"%s" — %s</b>
+        <i>von %s am %s</i>""";
+
+    //the implementation before the builder, without escaping
+    private static String stringFormat(TapeListing tape, ZoneId zoneId, boolean addId) {
+        var dateString = tape.dateAdded()
+            .atOffset(ZoneOffset.UTC)
+            .atZoneSameInstant(zoneId)
+            .format(DATE_FORMAT);
+        var formatted = String.format(TEMPLATE, tape.title(), tape.star(), tape.director(), dateString);
+        if(addId){
+            formatted += String.format("\n<code>%s</code>", tape.id().toString());
+        }
+        return formatted;
+    }
+}
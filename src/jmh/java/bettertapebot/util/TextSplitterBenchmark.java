@@ -0,0 +1,82 @@
+package bettertapebot.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    compares the single pass TextSplitter with the substring loop it replaced on /all outputs of a few megabytes.
+    For the memory run it with the gc profiler: ./gradlew jmh --args="TextSplitterBenchmark -prof gc"
+ */
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TextSplitterBenchmark {
+
+    @Param({"1", "4"})
+    int megabytes;
+
+    String text;
+
+    @Setup
+    public void setup() {
+        var builder = new StringBuilder(megabytes << 20);
+        for (int i = 0; builder.length() < megabytes << 20; i++) {
+            builder.append("<b>\"Tape ").append(i).append(" &amp; friends\" — star ").append(i % 97).append("</b>\n")
+                .append("<i>von director ").append(i % 13).append(" am 01.01.2025 12:00</i>\n\n");
+        }
+        text = builder.toString();
+    }
+
+    @Benchmark
+    public void streaming(Blackhole blackhole) {
+        TextSplitter.split(text, 4096).forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public List<String> substringLoop() {
+        return substringLoop(text, 4096);
+    }
+
+    //the implementation before the single pass, every chunk copies the rest of the text
+    private static List<String> substringLoop(String text, int limit) {
+        List<String> result = new ArrayList<>();
+        if(text.length() <= limit){
+            result.add(text);
+            return result;
+        }
+        while (text.length() > limit) {
+            int splitIndex = findSmartSplitPoint(text, limit);
+            result.add(text.substring(0, splitIndex).trim());
+            text = text.substring(splitIndex).trim();
+        }
+        if (!text.isEmpty()) {
+            result.add(text);
+        }
+        return result;
+    }
+
+    private static int findSmartSplitPoint(String text, int start) {
+        int index = text.lastIndexOf("\n\n", start);
+        if (index != -1) return index + 2;
+        index = text.lastIndexOf("\n", start);
+        if (index != -1) return index + 1;
+        return start;
+    }
+}
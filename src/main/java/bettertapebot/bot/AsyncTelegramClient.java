@@ -1,76 +1,557 @@
 package bettertapebot.bot;
 
 import bettertapebot.properties.BotProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.AccessLevel;
 import lombok.CustomLog;
-import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
 import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.meta.api.methods.botapimethods.BotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
-import org.telegram.telegrambots.meta.api.objects.message.Message;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 import org.telegram.telegrambots.meta.generics.TelegramClient;
-import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
-import reactor.util.retry.Retry;
 
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/*
+    Telegram API limits bots to 1 msg per second per chat, 20 per minute per group and 30 per second overall.
+    So if we send more, we need to respect that rate limit, without stalling the bot or other chats during that time.
+
+    Every chat with something to send has a FIFO queue of its messages, so they go out in the order they were sent.
+    The chats themselves wait in one DelayQueue, ordered by the time they may send next.
+    A few workers take whichever chat is due, send its next message and put it back with its next eligible time.
+    So a chat costs one small object while it has messages, and the work depends on the number of messages,
+    not on the number of chats. A chat is only ever in the schedule once, so only one worker at a time sends for it.
+
+    The queue of a chat is bounded, a chat that gets more than it can send within reasonable time loses messages
+    according to the overflow policy instead of filling up the heap.
+    Interactive messages, the answers to whoever is talking to the bot, go ahead of bulk messages waiting for the same chat.
+    So nobody waits for a broadcast to finish before getting an answer, but after a few interactive messages in a row
+    the waiting bulk message gets its turn, so it never starves. The global limit has a lower bulk limit for the same reason.
+
+    Chats that have nothing left to send are forgotten once they were idle for the ttl
+    and their limits wouldn't hold back a new message anyway, so only recently active chats take memory.
+ */
 @CustomLog
 @Component
-@RequiredArgsConstructor
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class AsyncTelegramClient {
-    //gets accessed from main thread and async threadpool so must be thread-safe!
-    private final Map<Long, Sinks.Many<SendMessage>> sinks = new ConcurrentHashMap<>();
-    
+    //gets accessed from the update partitions and the workers so must be thread-safe!
+    Map<Long, ChatQueue> chats = new ConcurrentHashMap<>();
+    DelayQueue<ChatQueue> schedule = new DelayQueue<>();
+    AtomicInteger queuedMessages = new AtomicInteger();
+
     TelegramClient telegramClient;
     BotProperties botProperties;
-    
+    OutboundRateLimiter outboundRateLimiter;
+    ObservationRegistry observationRegistry;
+    DistributionSummary queueDepth;
+    Map<Overflow, Counter> overflows = new EnumMap<>(Overflow.class);
+    Counter evictions;
+
+    @NonFinal
+    ExecutorService workers;
+
+    @NonFinal
+    ScheduledExecutorService evictor;
+
+    public AsyncTelegramClient(TelegramClient telegramClient, BotProperties botProperties, OutboundRateLimiter outboundRateLimiter,
+                               ObservationRegistry observationRegistry, MeterRegistry meterRegistry) {
+        this.telegramClient = telegramClient;
+        this.botProperties = botProperties;
+        this.outboundRateLimiter = outboundRateLimiter;
+        this.observationRegistry = observationRegistry;
+        Gauge.builder("bettertapebot.telegram.outbound.chats", chats, Map::size)
+            .description("chats the outbound scheduler keeps a queue for")
+            .register(meterRegistry);
+        Gauge.builder("bettertapebot.telegram.outbound.queued", queuedMessages, AtomicInteger::get)
+            .description("messages waiting to be sent over all chats")
+            .register(meterRegistry);
+        this.queueDepth = DistributionSummary.builder("bettertapebot.telegram.outbound.queue.depth")
+            .description("messages waiting for the chat once a new one was queued")
+            .register(meterRegistry);
+        for (Overflow overflow : Overflow.values()) {
+            overflows.put(overflow, Counter.builder("bettertapebot.telegram.outbound.overflow")
+                .description("messages that didn't fit into the queue of their chat")
+                .tag("action", overflow.name().toLowerCase(Locale.ROOT))
+                .register(meterRegistry));
+        }
+        this.evictions = Counter.builder("bettertapebot.telegram.outbound.evicted")
+            .description("idle chats whose queue and pacing were forgotten")
+            .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void postConstruct() {
+        int workerCount = botProperties.getTelegram().getOutboundWorkerCount();
+        workers = Executors.newFixedThreadPool(workerCount, Thread.ofVirtual().name("telegram-outbound-", 0).factory());
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(this::work);
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("telegram-outbound-evictor").factory());
+        long ttl = botProperties.getTelegram().getOutboundQueue().getIdleTtl().toMillis();
+        evictor.scheduleWithFixedDelay(this::evictIdleChats, ttl, ttl, TimeUnit.MILLISECONDS);
+    }
+
     public void sendMessage(long chatId, SendMessage msg) {
-        //check if we already have a sink for this chatId, if not create one
-        sinks.computeIfAbsent(chatId, this::createSink)
-            //add message to sink queue
-            .tryEmitNext(msg);
+        sendMessage(chatId, msg, MessagePriority.INTERACTIVE);
+    }
+
+    public void sendMessage(long chatId, SendMessage msg, MessagePriority priority) {
+        sendMessage(chatId, msg, priority, () -> {});
+    }
+
+    /**
+     * @param whenDone called once the message is sent or given up on, not if it's still queued when we shut down
+     */
+    public void sendMessage(long chatId, SendMessage msg, MessagePriority priority, Runnable whenDone) {
+        enqueue(chatId, msg, priority, whenDone);
+    }
+
+    /**
+     * an edit counts against the limits of the chat just like a new message, so it waits in the same queue
+     */
+    public void editMessage(long chatId, EditMessageText edit) {
+        enqueue(chatId, edit, MessagePriority.INTERACTIVE, () -> {});
+    }
+
+    /*
+        Until a pressed button is answered telegram shows a spinner on it. Answering doesn't count against any limit,
+        so it's sent right away on its own virtual thread instead of waiting behind the messages of the chat.
+     */
+    public void answerCallbackQuery(AnswerCallbackQuery answer) {
+        Thread.ofVirtual().name("telegram-callback-answer").start(() -> {
+            try {
+                telegramClient.execute(answer);
+            }
+            catch (TelegramApiException e) {
+                log.warn("failure when answering callback query {}", answer.getCallbackQueryId(), e);
+            }
+        });
+    }
+
+    private void enqueue(long chatId, BotApiMethod<?> method, MessagePriority priority, Runnable whenDone) {
+        /*
+            The message is sent on another thread long after the update that caused it is done, so the observation
+            of that update is handed along with the message. That way the time in the queue and the actual http call
+            show up as part of the same trace.
+         */
+        var parent = observationRegistry.getCurrentObservation();
+        var queued = Observation.createNotStarted("bettertapebot.telegram.queue", observationRegistry)
+            .contextualName("telegram queue")
+            .parentObservation(parent)
+            .highCardinalityKeyValue("chat.id", String.valueOf(chatId))
+            .start();
+        var message = new OutboundMessage(method, priority, parent, queued, whenDone);
+        //compute keeps the evictor from removing the chat while we add to it
+        chats.compute(chatId, (_, chat) -> {
+            if(chat == null){
+                chat = new ChatQueue(chatId, outboundRateLimiter.newChat(chatId));
+            }
+            enqueue(chat, message);
+            return chat;
+        });
+    }
+
+    private void enqueue(ChatQueue chat, OutboundMessage message) {
+        var overflow = chat.add(message, botProperties.getTelegram().getOutboundQueue(), botProperties.getTelegram().getMessageLengthLimit());
+        //a message that was merged or dropped instead of another one doesn't change the count
+        if(overflow == null){
+            queuedMessages.incrementAndGet();
+        }
+        else {
+            overflows.get(overflow).increment();
+            log.warn("queue of chat {} is full, {}", chat.chatId, overflow.name().toLowerCase(Locale.ROOT));
+        }
+        queueDepth.record(chat.size());
+        if(chat.markScheduled()){
+            reschedule(chat, 0);
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            ChatQueue chat;
+            try {
+                chat = schedule.take();
+            }
+            catch (InterruptedException _) {
+                return;
+            }
+            try {
+                process(chat);
+            }
+            catch (RuntimeException e) {
+                //the chat has to go back into the schedule, otherwise its other messages would never be sent
+                log.error("failure in outbound worker for chat {}, message is dropped", chat.chatId, e);
+                chat.attempts = 0;
+                chat.slotReserved = false;
+                chat.bulkSlotReserved = false;
+                next(chat, true);
+            }
+        }
     }
-    
-    private Sinks.Many<SendMessage> createSink(long chatId) {
+
+    private void process(ChatQueue chat) {
+        var msg = chat.current(botProperties.getTelegram().getOutboundQueue().getInteractiveBeforeBulk());
+        if(!chat.slotReserved){
+            //wait until the chat may send again, then for a free slot over all chats
+            long untilReady = outboundRateLimiter.nanosUntilChatReady(chat.pacing);
+            if(untilReady > 0){
+                reschedule(chat, untilReady);
+                return;
+            }
+            if(msg.priority() == MessagePriority.BULK && !chat.bulkSlotReserved){
+                long untilBulkSlot = outboundRateLimiter.reserveBulk();
+                chat.bulkSlotReserved = true;
+                if(untilBulkSlot > 0){
+                    reschedule(chat, untilBulkSlot);
+                    return;
+                }
+            }
+            chat.bulkSlotReserved = false;
+            long untilSlot = outboundRateLimiter.reserve();
+            chat.slotReserved = true;
+            if(untilSlot > 0){
+                reschedule(chat, untilSlot);
+                return;
+            }
+        }
+        chat.slotReserved = false;
+        if(outboundRateLimiter.isPaused()){
+            //another chat ran into the global limit while we waited for the slot, so the slot is worthless now
+            reschedule(chat, 0);
+            return;
+        }
+        if(chat.attempts == 0){
+            //waiting is over once it's this message's turn
+            msg.queued().stop();
+        }
+        next(chat, send(chat, msg));
+    }
+
+    /**
+     * @return true if the message is done, false if it has to be sent again
+     */
+    private boolean send(ChatQueue chat, OutboundMessage msg) {
+        try {
+            //every attempt gets its own observation, so retries are visible in the trace
+            Observation.createNotStarted("bettertapebot.telegram.send", observationRegistry)
+                .contextualName("telegram send")
+                .parentObservation(msg.parent())
+                .observeChecked(() -> telegramClient.execute(msg.message()));
+            outboundRateLimiter.succeeded(chat.pacing);
+            return true;
+        }
+        catch (TelegramApiRequestException e) {
+            if(Integer.valueOf(429).equals(e.getErrorCode()) && chat.attempts < botProperties.getTelegram().getRetryCountInCaseOfTooManyRequests()){
+                //the retry queues up behind the pause like any other message
+                pause(chat.pacing, e);
+                return false;
+            }
+            if(isUnmodifiedEdit(msg, e)){
+                //e.g. a double tap on a page button, the message already shows what we wanted
+                log.debug("message of chat {} is already up to date", chat.chatId);
+                outboundRateLimiter.succeeded(chat.pacing);
+                return true;
+            }
+            log.error("failure when sending, message is dropped", e);
+            return true;
+        }
+        catch (Exception e) {
+            log.error("failure when sending, message is dropped", e);
+            return true;
+        }
+        finally {
+            //before the next message or retry checks whether the chat is ready
+            outboundRateLimiter.sent(chat.pacing);
+        }
+    }
+
+    private static boolean isUnmodifiedEdit(OutboundMessage msg, TelegramApiRequestException e) {
+        return msg.message() instanceof EditMessageText
+            && Integer.valueOf(400).equals(e.getErrorCode())
+            && e.getApiResponse() != null
+            && e.getApiResponse().contains("message is not modified");
+    }
+
+    private void pause(OutboundRateLimiter.ChatPacing pacing, TelegramApiRequestException e) {
         /*
-            Telegram API limits bots to 1 msg per second per chat. So if we send more, we need to respect that rate limit.
-            But we also don't want to stall the whole bot during that time.
-            So we need another thread that sends the messages in this rate and a queue to buffer multiple send requests.
-            
-            This creates exactly the described setup:
-            Sinks are a drop-off point for tasks to run async in a dedicated Threadpool.
-            many() means that the sink accepts multiple inputs, in our case multiple messages that get sent to the same chat.
-            unicast() means we only have one consumer per sink in that Threadpool. We want this as we want to only send one message per second and keep messages in order.
-            This way we can send tons of messages in the main thread and the consumer thread in the threadpool will crunch through them async while main can focus on handling other chats.
-            onBackpressureBuffer() means that we actually also want a queue to store messages if the main thread adds new messages to send out faster than the consumer can process them.
-            As we don't want to worry about rate limit in the mainthread, this is what will occur a lot and that's where our queue is created to store the messages until they are processed.
-            This is all part of the project-reactor reactive programming framework, it's imported as part of the spring-boot-starter-webflux dependency.
+            telegram tells us how many seconds to wait, but not which limit we hit.
+            A group has its own limit per minute, that's the one we most likely ran into.
+            A private chat held to one message per second can only have hit the global limit,
+            but with adaptive pacing it may have sped up beyond that, then it's most likely its own limit again.
+         */
+        var retryAfter = e.getParameters() == null ? null : e.getParameters().getRetryAfter();
+        if(retryAfter == null){
+            outboundRateLimiter.pauseChat(pacing, botProperties.getTelegram().getDelayBetweenMessagesForSameChat());
+            return;
+        }
+        var duration = Duration.ofSeconds(retryAfter);
+        log.warn("telegram asks to wait {} before sending again", duration);
+        if(pacing.isGroup() || outboundRateLimiter.isFasterThanChatLimit(pacing)){
+            outboundRateLimiter.pauseChat(pacing, duration);
+        }
+        else {
+            outboundRateLimiter.pauseAll(duration);
+        }
+    }
+
+    private void next(ChatQueue chat, boolean done) {
+        if(done){
+            chat.attempts = 0;
+            queuedMessages.decrementAndGet();
+            if(!chat.finishCurrent()){
+                //nothing left, sendMessage schedules the chat again with its next message
+                return;
+            }
+        }
+        else {
+            chat.attempts++;
+        }
+        reschedule(chat, Math.max(outboundRateLimiter.nanosUntilChatReady(chat.pacing), 0));
+    }
+
+    private void reschedule(ChatQueue chat, long nanos) {
+        chat.eligibleAt = System.nanoTime() + nanos;
+        schedule.offer(chat);
+    }
+
+    void evictIdleChats() {
+        long ttl = botProperties.getTelegram().getOutboundQueue().getIdleTtl().toNanos();
+        for (Long chatId : chats.keySet()) {
+            chats.computeIfPresent(chatId, (_, chat) -> {
+                if(!chat.isIdle(ttl) || outboundRateLimiter.nanosUntilIdle(chat.pacing) > 0){
+                    return chat;
+                }
+                evictions.increment();
+                return null;
+            });
+        }
+    }
+
+    int chatCount() {
+        return chats.size();
+    }
+
+    int queuedMessages() {
+        return queuedMessages.get();
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        evictor.shutdownNow();
+        workers.shutdownNow();
+        if(!workers.awaitTermination(10, TimeUnit.SECONDS)){
+            log.warn("outbound workers did not finish in time");
+        }
+    }
+
+    private record OutboundMessage(BotApiMethod<?> message, MessagePriority priority, Observation parent, Observation queued, Runnable whenDone){
+        OutboundMessage alsoWhenDone(Runnable other) {
+            return new OutboundMessage(message, priority, parent, queued, () -> {
+                whenDone.run();
+                other.run();
+            });
+        }
+    }
+
+    private enum Overflow {
+        DROPPED_OLDEST,
+        DROPPED_NEWEST,
+        COLLAPSED
+    }
+
+    private static final class ChatQueue implements Delayed {
+        final long chatId;
+        final OutboundRateLimiter.ChatPacing pacing;
+
+        //guarded by this, shared between sendMessage and the worker
+        final ArrayDeque<OutboundMessage> interactive = new ArrayDeque<>();
+        final ArrayDeque<OutboundMessage> bulk = new ArrayDeque<>();
+        //taken out of its queue once it's next, so nothing else can drop or change it while it's on its way
+        OutboundMessage current;
+        int interactiveInARow;
+        boolean scheduled;
+        long lastActivity = System.nanoTime();
+
+        //only touched by the worker that took the chat from the schedule, the schedule hands them over to the next one
+        boolean bulkSlotReserved;
+        boolean slotReserved;
+        int attempts;
+        long eligibleAt;
+
+        ChatQueue(long chatId, OutboundRateLimiter.ChatPacing pacing) {
+            this.chatId = chatId;
+            this.pacing = pacing;
+        }
+
+        private ArrayDeque<OutboundMessage> queueOf(OutboundMessage message) {
+            return message.priority() == MessagePriority.BULK ? bulk : interactive;
+        }
+
+        /**
+         * @return what had to be done as the queue was full, null if the message simply fit in
+         */
+        synchronized Overflow add(OutboundMessage message, BotProperties.OutboundQueueProperties properties, int lengthLimit) {
+            lastActivity = System.nanoTime();
+            if(interactive.size() + bulk.size() < properties.getCapacity()){
+                queueOf(message).add(message);
+                return null;
+            }
+            return switch (properties.getOverflowPolicy()) {
+                case DROP_NEWEST -> {
+                    if(message.priority() == MessagePriority.INTERACTIVE && !bulk.isEmpty()){
+                        discard(bulk.pollLast());
+                        interactive.add(message);
+                    }
+                    else {
+                        discard(message);
+                    }
+                    yield Overflow.DROPPED_NEWEST;
+                }
+                case COLLAPSE -> {
+                    if(collapseIntoNewest(message, lengthLimit)){
+                        yield Overflow.COLLAPSED;
+                    }
+                    dropOldest(message);
+                    yield Overflow.DROPPED_OLDEST;
+                }
+                case DROP_OLDEST -> {
+                    dropOldest(message);
+                    yield Overflow.DROPPED_OLDEST;
+                }
+            };
+        }
+
+        private void dropOldest(OutboundMessage message) {
+            discard(bulk.isEmpty() ? interactive.poll() : bulk.poll());
+            queueOf(message).add(message);
+        }
+
+        private boolean collapseIntoNewest(OutboundMessage message, int lengthLimit) {
+            var newestWaiting = queueOf(message).peekLast();
+            if(newestWaiting == null){
+                return false;
+            }
+            //edits replace the text of a message that's already there, nothing can be appended to them
+            if(!(newestWaiting.message() instanceof SendMessage newest) || !(message.message() instanceof SendMessage added)){
+                return false;
+            }
+            if(!Objects.equals(newest.getParseMode(), added.getParseMode())){
+                return false;
+            }
+            var text = newest.getText() + "\n\n" + added.getText();
+            if(text.length() > lengthLimit){
+                return false;
+            }
+            newest.setText(text);
+            //the keyboard of the later message is the one the chat would have ended up with
+            if(added.getReplyMarkup() != null){
+                newest.setReplyMarkup(added.getReplyMarkup());
+            }
+            //from here on it waits as part of the newest message
+            message.queued().stop();
+            var queue = queueOf(message);
+            queue.pollLast();
+            queue.add(newestWaiting.alsoWhenDone(message.whenDone()));
+            return true;
+        }
+
+        private static void discard(OutboundMessage message) {
+            message.queued().error(new IllegalStateException("queue of the chat is full"));
+            message.queued().stop();
+            message.whenDone().run();
+        }
+
+        private boolean isEmpty() {
+            return current == null && interactive.isEmpty() && bulk.isEmpty();
+        }
+
+        /**
+         * @return true if the chat wasn't scheduled and has to be now
          */
-        Sinks.Many<SendMessage> sink = Sinks.many().unicast().onBackpressureBuffer();
-        
-        //Flux is a multi object reactive processing pipeline - like java streams but async and multithreaded
-        sink.asFlux()
-            //concatMap ensures that input order is processing order, otherwise Flux are executed in parallel so no order guarantee
-            .concatMap(msg -> sendWithRetry(msg)
-                //send message and wait 1s to respect rate limit
-                .delayElement(botProperties.getTelegram().getDelayBetweenMessagesForSameChat()))
-            //when no messages are left, free the sink until next user input
-            .doFinally(_ -> sinks.remove(chatId))
-            //run this async and do not block current thread until its completed (this is important so main thread can continue processing other messages)
-            .subscribe();
-        
-        return sink;
-    }
-    
-    private Mono<Message> sendWithRetry(SendMessage msg) {
-        return Mono.fromCallable(() -> telegramClient.execute(msg))
-            //retry if we get 429 too many requests
-            .retryWhen(Retry.backoff(botProperties.getTelegram().getRetryCountInCaseOfTooManyRequests(), botProperties.getTelegram().getDelayBetweenMessagesForSameChat())
-                .filter(err -> err instanceof TelegramApiRequestException apiEx && Integer.valueOf(429).equals(apiEx.getErrorCode())))
-            .doOnError(e -> log.error("failure when sending, message is dropped", e));
+        synchronized boolean markScheduled() {
+            if(scheduled || isEmpty()){
+                return false;
+            }
+            scheduled = true;
+            return true;
+        }
+
+        synchronized int size() {
+            return interactive.size() + bulk.size() + (current == null ? 0 : 1);
+        }
+
+        /**
+         * @return the message that is sent next, only call while the chat is scheduled
+         */
+        synchronized OutboundMessage current(int interactiveBeforeBulk) {
+            if(current != null){
+                return current;
+            }
+            if(!bulk.isEmpty() && (interactive.isEmpty() || interactiveInARow >= interactiveBeforeBulk)){
+                interactiveInARow = 0;
+                current = bulk.poll();
+            }
+            else {
+                //only counts while bulk messages wait, otherwise nobody is overtaken
+                interactiveInARow = bulk.isEmpty() ? 0 : interactiveInARow + 1;
+                current = interactive.poll();
+            }
+            return current;
+        }
+
+        /**
+         * @return true if there are more messages, otherwise the chat is not scheduled anymore
+         */
+        synchronized boolean finishCurrent() {
+            lastActivity = System.nanoTime();
+            if(current != null){
+                current.whenDone().run();
+            }
+            current = null;
+            scheduled = !isEmpty();
+            return scheduled;
+        }
+
+        synchronized boolean isIdle(long ttl) {
+            return !scheduled && System.nanoTime() - lastActivity >= ttl;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(eligibleAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            //nanoTime may overflow, so only the difference can be compared
+            return Long.signum(eligibleAt - ((ChatQueue) other).eligibleAt);
+        }
     }
 }
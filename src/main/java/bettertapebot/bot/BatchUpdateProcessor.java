@@ -0,0 +1,101 @@
+package bettertapebot.bot;
+
+import bettertapebot.cache.UserStateStore;
+import bettertapebot.util.ChatIds;
+import lombok.AccessLevel;
+import lombok.CustomLog;
+import lombok.experimental.FieldDefaults;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Processes several updates in one transaction instead of one transaction per update.
+    The user states of all chats that are not cached yet are loaded with a single query upfront and everything is committed once at the end.
+
+    If a handler fails, the whole transaction is rolled back - nothing was answered yet, as responses only go out after commit.
+    We then split the batch at the failing update: everything before it is processed again as a batch,
+    the failing update gets one more try on its own and the rest continues as the next batch.
+    That way one broken update never takes the others down and updates of the same chat keep their order.
+    If loading the user states or the commit fails, no single update is to blame, so all of them are processed one by one.
+ */
+@CustomLog
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class BatchUpdateProcessor {
+
+    MessageDelegator messageDelegator;
+    UserStateStore userStateStore;
+    TransactionTemplate transactionTemplate;
+
+    public BatchUpdateProcessor(MessageDelegator messageDelegator, UserStateStore userStateStore, PlatformTransactionManager transactionManager) {
+        this.messageDelegator = messageDelegator;
+        this.userStateStore = userStateStore;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    public void processBatch(List<Update> updates) {
+        List<Update> remaining = updates;
+        while (!remaining.isEmpty()) {
+            //stays below zero until the user states are loaded
+            AtomicInteger processed = new AtomicInteger(-1);
+            try {
+                processInTransaction(remaining, processed);
+                return;
+            }
+            catch (RuntimeException e) {
+                int failedIndex = processed.get();
+                if(failedIndex < 0 || failedIndex >= remaining.size()){
+                    //either loading the user states or the commit failed, we can't tell which update caused it
+                    log.warn("batch with {} updates failed {}, processing them one by one", remaining.size(),
+                        failedIndex < 0 ? "loading the user states" : "to commit", e);
+                    remaining.forEach(this::processSingle);
+                    return;
+                }
+                Update failed = remaining.get(failedIndex);
+                log.warn("update {} failed in batch, retrying it on its own", failed.getUpdateId(), e);
+                if(failedIndex > 0){
+                    processBatch(remaining.subList(0, failedIndex));
+                }
+                processSingle(failed);
+                remaining = remaining.subList(failedIndex + 1, remaining.size());
+            }
+        }
+    }
+
+    private void processInTransaction(List<Update> updates, AtomicInteger processed) {
+        transactionTemplate.executeWithoutResult(_ -> {
+            userStateStore.preload(collectChatIds(updates));
+            processed.set(0);
+            for (Update update : updates) {
+                messageDelegator.processUpdate(update);
+                processed.incrementAndGet();
+            }
+        });
+    }
+
+    private void processSingle(Update update) {
+        try {
+            messageDelegator.processUpdate(update);
+        }
+        catch (Exception e) {
+            log.error("failure when processing update {}", update.getUpdateId(), e);
+        }
+    }
+
+    private static LinkedHashSet<Long> collectChatIds(List<Update> updates) {
+        LinkedHashSet<Long> chatIds = new LinkedHashSet<>();
+        for (Update update : updates) {
+            var chatId = ChatIds.of(update);
+            if(chatId != null){
+                chatIds.add(chatId);
+            }
+        }
+        return chatIds;
+    }
+}
@@ -0,0 +1,63 @@
+package bettertapebot.bot;
+
+import lombok.AccessLevel;
+import lombok.CustomLog;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.methods.GetMe;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    In groups every bot sees the commands meant for the others, e.g. /all@SomeOtherBot, so we need to know our own name.
+    Telegram tells us once, if it can't right now we ask again a minute later and don't check the name until then.
+ */
+@CustomLog
+@Component
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class BotUsername {
+    private static final long RETRY_AFTER = TimeUnit.MINUTES.toNanos(1);
+
+    TelegramClient telegramClient;
+
+    @NonFinal
+    volatile String username;
+
+    @NonFinal
+    volatile long lastAttempt;
+
+    @NonFinal
+    volatile boolean attempted;
+
+    /**
+     * @return the username of the bot without the @, null if telegram couldn't tell us yet
+     */
+    public String get() {
+        var known = username;
+        if(known != null || attempted && System.nanoTime() - lastAttempt < RETRY_AFTER){
+            return known;
+        }
+        return fetch();
+    }
+
+    private synchronized String fetch() {
+        if(username != null){
+            return username;
+        }
+        attempted = true;
+        lastAttempt = System.nanoTime();
+        try {
+            var me = telegramClient.execute(new GetMe());
+            username = me == null ? null : me.getUserName();
+        }
+        catch (TelegramApiException e) {
+            log.warn("failed to get the username of the bot, commands for other bots are not told apart until it's known", e);
+        }
+        return username;
+    }
+}
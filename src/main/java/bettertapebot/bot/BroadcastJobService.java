@@ -0,0 +1,180 @@
+package bettertapebot.bot;
+
+import bettertapebot.cache.UserStateStore;
+import bettertapebot.properties.BotProperties;
+import bettertapebot.repository.BroadcastJobRepository;
+import bettertapebot.repository.UserStateRepository;
+import bettertapebot.repository.entity.BroadcastAudience;
+import bettertapebot.repository.entity.BroadcastJobEntity;
+import bettertapebot.repository.entity.UserState;
+import bettertapebot.repository.entity.UserStateEntity;
+import bettertapebot.util.DurationFormatter;
+import bettertapebot.util.TextSplitter;
+import lombok.AccessLevel;
+import lombok.CustomLog;
+import lombok.experimental.FieldDefaults;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/*
+    Broadcasts and notifications about new tapes go to every chat, with tens of thousands of chats queueing all
+    messages at once would fill the outbound queues for minutes and be lost on a restart. Instead they are persisted as
+    jobs and every interval the next page of recipients is queued, as many messages as the bulk limit lets through until
+    the next page. Jobs run one after another, oldest first.
+
+    Recipients are paged by chat id and the job remembers the last chat it queued, so after a restart it continues there.
+    The messages of a page go to the outbox in the same transaction that moves the cursor,
+    so a restart neither skips a page nor starts it over. The job row is locked while its page is sent,
+    so two runs at once, e.g. on two instances, skip it instead of sending the same page twice.
+
+    Recipients are read from user_states, which the UserStateStore writes behind. Its pending states are written before
+    every page, so a chat that just logged in isn't missed. The count in start is only for the estimate and may be off by those.
+ */
+@CustomLog
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class BroadcastJobService {
+
+    BotProperties botProperties;
+    BroadcastJobRepository broadcastJobRepository;
+    UserStateRepository userStateRepository;
+    UserStateStore userStateStore;
+    ResponseService responseService;
+    TransactionTemplate transactionTemplate;
+
+    public BroadcastJobService(BotProperties botProperties, BroadcastJobRepository broadcastJobRepository, UserStateRepository userStateRepository,
+                               UserStateStore userStateStore, ResponseService responseService, PlatformTransactionManager transactionManager) {
+        this.botProperties = botProperties;
+        this.broadcastJobRepository = broadcastJobRepository;
+        this.userStateRepository = userStateRepository;
+        this.userStateStore = userStateStore;
+        this.responseService = responseService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * persists the job in the running transaction, its first page goes out with the next run after the commit
+     * @param requestedBy chat that gets told how long it takes and when it's done, may be null
+     */
+    public BroadcastJobEntity start(BroadcastAudience audience, String text, Long requestedBy) {
+        long ahead = broadcastJobRepository.findAllByFinishedAtIsNullOrderByCreatedAtAsc().stream()
+            .mapToLong(job -> (long) Math.max(0, job.getRecipientCount() - job.getSentCount()) * chunkCount(job.getText()))
+            .sum();
+        var job = broadcastJobRepository.save(BroadcastJobEntity.builder()
+            .text(text)
+            .audience(audience)
+            .requestedBy(requestedBy)
+            .lastChatId(Long.MIN_VALUE)
+            .sentCount(0)
+            .recipientCount(Math.toIntExact(countRecipients(audience)))
+            .createdAt(Instant.now())
+            .build());
+        log.info("started broadcast {} to {} chats", job.getId(), job.getRecipientCount());
+        if(requestedBy != null){
+            var eta = estimate(ahead + (long) job.getRecipientCount() * chunkCount(text));
+            responseService.send(requestedBy, "Broadcast an %d Chats wird gesendet, das dauert etwa %s".formatted(job.getRecipientCount(), format(eta)));
+        }
+        return job;
+    }
+
+    @Scheduled(fixedDelayString = "${better-tape-bot.broadcast.interval:1s}")
+    void sendNextPages() {
+        var jobs = broadcastJobRepository.findAllByFinishedAtIsNullOrderByCreatedAtAsc();
+        if(jobs.isEmpty()){
+            return;
+        }
+        userStateStore.flushPending();
+        long budget = messagesPerInterval();
+        for (var job : jobs) {
+            if(budget <= 0){
+                return;
+            }
+            try {
+                long remainingBudget = budget;
+                //each job in its own transaction, so a failing one doesn't hold back the others
+                budget -= transactionTemplate.execute(_ -> broadcastJobRepository.claimRunning(job.getId())
+                    .map(claimed -> sendNextPage(claimed, remainingBudget))
+                    //another instance or run is sending its page right now, or it just finished
+                    .orElse(0L));
+            }
+            catch (RuntimeException e) {
+                //the cursor didn't move, the page is tried again with the next run
+                log.error("sending the next page of broadcast {} failed", job.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * @return messages queued
+     */
+    private long sendNextPage(BroadcastJobEntity job, long budget) {
+        int chunks = chunkCount(job.getText());
+        int pageSize = Math.clamp(budget / chunks, 1, Integer.MAX_VALUE);
+        var page = findRecipients(job, pageSize);
+        if(!page.isEmpty()){
+            responseService.broadcast(page, job.getText());
+            job.setLastChatId(page.getLast());
+            job.setSentCount(job.getSentCount() + page.size());
+        }
+        if(page.size() < pageSize){
+            finish(job);
+        }
+        broadcastJobRepository.save(job);
+        return (long) page.size() * chunks;
+    }
+
+    private void finish(BroadcastJobEntity job) {
+        job.setFinishedAt(Instant.now());
+        var took = Duration.between(job.getCreatedAt(), job.getFinishedAt());
+        log.info("broadcast {} sent to {} chats in {}", job.getId(), job.getSentCount(), took);
+        if(job.getRequestedBy() != null){
+            //rounded, nobody cares about the millis
+            responseService.send(job.getRequestedBy(), "Broadcast an %d Chats gesendet, hat %s gedauert"
+                .formatted(job.getSentCount(), format(Duration.ofSeconds(Math.max(1, took.toSeconds())))));
+        }
+    }
+
+    private List<Long> findRecipients(BroadcastJobEntity job, int pageSize) {
+        var recipients = switch (job.getAudience()) {
+            case LOGGED_IN -> userStateRepository.findAllByUserStateInAndChatIdGreaterThanOrderByChatIdAsc(
+                UserState.LOGGED_IN_STATES, job.getLastChatId(), Limit.of(pageSize));
+            case SUBSCRIBERS -> userStateRepository.findAllByUserStateInAndOwner_WantsAbonnementAndChatIdGreaterThanOrderByChatIdAsc(
+                UserState.LOGGED_IN_STATES, true, job.getLastChatId(), Limit.of(pageSize));
+        };
+        return recipients.stream().map(UserStateEntity::getChatId).toList();
+    }
+
+    private long countRecipients(BroadcastAudience audience) {
+        return switch (audience) {
+            case LOGGED_IN -> userStateRepository.countByUserStateIn(UserState.LOGGED_IN_STATES);
+            case SUBSCRIBERS -> userStateRepository.countByUserStateInAndOwner_WantsAbonnement(UserState.LOGGED_IN_STATES, true);
+        };
+    }
+
+    private int chunkCount(String text) {
+        return (int) Math.max(1, TextSplitter.split(text, botProperties.getTelegram().getMessageLengthLimit()).count());
+    }
+
+    long messagesPerInterval() {
+        var rateLimit = botProperties.getTelegram().getOutboundRateLimit();
+        return Math.max(1, rateLimit.getBulkLimit() * botProperties.getBroadcast().getInterval().toNanos() / rateLimit.getGlobalPeriod().toNanos());
+    }
+
+    private Duration estimate(long messages) {
+        var rateLimit = botProperties.getTelegram().getOutboundRateLimit();
+        var eta = rateLimit.getGlobalPeriod().multipliedBy(messages).dividedBy(rateLimit.getBulkLimit());
+        //the first page waits for the next run, rounded to seconds
+        return Duration.ofSeconds(Math.max(1, eta.plus(botProperties.getBroadcast().getInterval()).toSeconds()));
+    }
+
+    private String format(Duration duration) {
+        return DurationFormatter.format(duration, botProperties.getActivationCode().getFormatLocale());
+    }
+}
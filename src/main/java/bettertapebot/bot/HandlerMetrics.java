@@ -0,0 +1,94 @@
+package bettertapebot.bot;
+
+import bettertapebot.handler.Command;
+import bettertapebot.repository.entity.UserState;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+
+/*
+    Measures how long the handlers take, per command for command handlers and per user state for state handlers.
+    Every handler call is an observation, so it shows up as its own span in the trace of the update, and the
+    meter handler of the observation registry turns it into the timer bettertapebot.handler.duration.
+    Its histogram is configured in application.yml, so p50/p95/p99 can be aggregated over several instances in prometheus,
+    and the same percentiles precomputed for a quick look at /actuator/prometheus.
+
+    The timer only gets registered for combinations that actually happen, otherwise every command and state would
+    show up with all histogram buckets right from the start.
+ */
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class HandlerMetrics {
+    private static final String NONE = "none";
+
+    MeterRegistry meterRegistry;
+    ObservationRegistry observationRegistry;
+    Counter unknownCommands;
+    Counter missingHandlers;
+    Counter unhandledStates;
+
+    public HandlerMetrics(MeterRegistry meterRegistry, ObservationRegistry observationRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.observationRegistry = observationRegistry;
+        this.unknownCommands = unhandledCounter("unknown_command");
+        this.missingHandlers = unhandledCounter("missing_handler");
+        this.unhandledStates = unhandledCounter("no_state_handler");
+    }
+
+    private Counter unhandledCounter(String reason) {
+        return Counter.builder("bettertapebot.messages.unhandled")
+            .description("messages no handler was found for")
+            .tag("reason", reason)
+            .register(meterRegistry);
+    }
+
+    public void timeCommand(Command command, Runnable handler) {
+        time(command, null, handler);
+    }
+
+    public void timeState(UserState userState, Runnable handler) {
+        time(null, userState, handler);
+    }
+
+    private void time(Command command, UserState userState, Runnable handler) {
+        var observation = Observation.createNotStarted("bettertapebot.handler.duration", observationRegistry)
+            .contextualName("handler " + (command == null ? userState : command.getCommand()))
+            .lowCardinalityKeyValue("command", tagValue(command))
+            .lowCardinalityKeyValue("state", tagValue(userState))
+            .start();
+        try (var _ = observation.openScope()) {
+            handler.run();
+            observation.lowCardinalityKeyValue("outcome", "success");
+        }
+        catch (RuntimeException e) {
+            observation.lowCardinalityKeyValue("outcome", "error");
+            observation.error(e);
+            throw e;
+        }
+        finally {
+            observation.stop();
+        }
+    }
+
+    public void unknownCommand() {
+        unknownCommands.increment();
+    }
+
+    public void missingHandler() {
+        missingHandlers.increment();
+    }
+
+    public void unhandledState() {
+        unhandledStates.increment();
+    }
+
+    private static String tagValue(Enum<?> value) {
+        return value == null ? NONE : value.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,134 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import bettertapebot.util.ChatIds;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AccessLevel;
+import lombok.CustomLog;
+import lombok.experimental.FieldDefaults;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/*
+    Keeps a single chat from flooding us with updates, every update it sends would otherwise cost a transaction
+    and usually an answer in the outbound queue.
+
+    Every chat has a token bucket: it may send `burst` updates in a row and gets one token back per refill interval.
+    We don't store tokens and a timestamp, but only the point in time at which the bucket would be full again
+    (the generic cell rate algorithm). Every admitted update pushes that point one interval further,
+    an update is only admitted if the point is less than `burst` intervals away.
+    This way the whole bucket is one long we can update with compare and set, no locks needed.
+ */
+@CustomLog
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class InboundFloodProtection {
+    //nanoTime hitting exactly this value while a bucket gets removed is not worth a second field
+    private static final long REMOVED = Long.MIN_VALUE;
+
+    BotProperties botProperties;
+    ResponseService responseService;
+    Counter droppedUpdates;
+    LongSupplier clock;
+
+    ConcurrentHashMap<Long, ChatBucket> buckets = new ConcurrentHashMap<>();
+
+    public InboundFloodProtection(BotProperties botProperties, ResponseService responseService, MeterRegistry meterRegistry) {
+        this(botProperties, responseService, meterRegistry, System::nanoTime);
+    }
+
+    InboundFloodProtection(BotProperties botProperties, ResponseService responseService, MeterRegistry meterRegistry, LongSupplier clock) {
+        this.botProperties = botProperties;
+        this.responseService = responseService;
+        this.clock = clock;
+        this.droppedUpdates = Counter.builder("bettertapebot.updates.dropped")
+            .description("updates dropped because their chat sent too many")
+            .tag("reason", "flood")
+            .register(meterRegistry);
+    }
+
+    /**
+     * @return true if the update may be processed, false if its chat is out of budget and the update got dropped
+     */
+    public boolean tryAdmit(Update update) {
+        var properties = botProperties.getTelegram().getFloodProtection();
+        var chatId = ChatIds.of(update);
+        if(!properties.isEnabled() || chatId == null){
+            return true;
+        }
+        long interval = properties.getRefillInterval().toNanos();
+        long tolerance = interval * (properties.getBurst() - 1);
+        long now = clock.getAsLong();
+
+        while (true) {
+            var bucket = buckets.computeIfAbsent(chatId, _ -> new ChatBucket(now));
+            long fullAt = bucket.fullAt.get();
+            if(fullAt == REMOVED){
+                //removeFullBuckets took it out of the map just now, the next round gets a new one
+                Thread.onSpinWait();
+                continue;
+            }
+            //nanoTime may overflow, so only compare differences
+            long base = fullAt - now > 0 ? fullAt : now;
+            if(base - now > tolerance){
+                reject(chatId, bucket, properties.isReplyWhenThrottled());
+                return false;
+            }
+            if(bucket.fullAt.compareAndSet(fullAt, base + interval)){
+                if(bucket.throttled.get()){
+                    bucket.throttled.set(false);
+                }
+                return true;
+            }
+        }
+    }
+
+    private void reject(long chatId, ChatBucket bucket, boolean reply) {
+        droppedUpdates.increment();
+        log.debug("dropping update of chat {}, too many updates", chatId);
+        //only answer the first dropped update, otherwise the chat floods our outbound queue instead
+        if(reply && bucket.throttled.compareAndSet(false, true)){
+            responseService.send(chatId, null, "Du sendest zu viele Nachrichten, bitte warte einen Moment.");
+        }
+    }
+
+    /*
+        a bucket that filled up again is the same as no bucket, so we don't keep one for every chat we ever saw.
+        tryAdmit may hold a bucket it got from the map just before we remove it, an update admitted into that one would be lost
+        and a flooding chat could start over with a new bucket. So a bucket is marked as removed with the same compare and set
+        tryAdmit uses, either the update or the removal wins and tryAdmit fetches a new bucket once it sees the mark.
+     */
+    @Scheduled(fixedDelay = 1, timeUnit = TimeUnit.MINUTES)
+    void removeFullBuckets() {
+        long now = clock.getAsLong();
+        for (Long chatId : buckets.keySet()) {
+            buckets.computeIfPresent(chatId, (_, bucket) -> bucket.markRemovedIfFull(now) ? null : bucket);
+        }
+    }
+
+    int trackedChats() {
+        return buckets.size();
+    }
+
+    private static class ChatBucket {
+        final AtomicLong fullAt;
+        final AtomicBoolean throttled = new AtomicBoolean();
+
+        ChatBucket(long now) {
+            fullAt = new AtomicLong(now);
+        }
+
+        boolean markRemovedIfFull(long now) {
+            long current = fullAt.get();
+            return current - now <= 0 && fullAt.compareAndSet(current, REMOVED);
+        }
+    }
+}
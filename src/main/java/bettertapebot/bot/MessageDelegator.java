@@ -1,27 +1,31 @@
 package bettertapebot.bot;
 
+import bettertapebot.cache.CachedUserState;
+import bettertapebot.cache.UserStateStore;
+import bettertapebot.handler.CallbackHandler;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
 import bettertapebot.handler.StateHandler;
 import bettertapebot.properties.BotProperties;
-import bettertapebot.repository.UserStateRepository;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
 import bettertapebot.util.MessageCleaner;
 import jakarta.annotation.PostConstruct;
 import lombok.AccessLevel;
 import lombok.CustomLog;
-import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import lombok.experimental.NonFinal;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
 import org.telegram.telegrambots.meta.api.objects.MessageEntity;
 import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.message.Message;
 
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -29,16 +33,19 @@ import java.util.Set;
 
 @Component
 @CustomLog
-@RequiredArgsConstructor
 @EnableConfigurationProperties(BotProperties.class)
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class MessageDelegator {
 
     ResponseService responseService;
-    UserStateRepository userStateRepository;
+    UserStateStore userStateStore;
+    HandlerMetrics handlerMetrics;
+    BotUsername botUsername;
     
     Set<CommandHandler> commandHandlers;
     Set<StateHandler> stateHandlers;
+    Set<CallbackHandler> callbackHandlers;
+    TransactionTemplate transactionTemplate;
 
     @NonFinal
     Map<Command, CommandHandler> commandHandlerMap;
@@ -46,6 +53,22 @@ public class MessageDelegator {
     @NonFinal
     Map<UserState, StateHandler> stateHandlerMap;
     
+    @NonFinal
+    Map<String, CallbackHandler> callbackHandlerMap;
+    
+    public MessageDelegator(ResponseService responseService, UserStateStore userStateStore, HandlerMetrics handlerMetrics, BotUsername botUsername,
+                            Set<CommandHandler> commandHandlers, Set<StateHandler> stateHandlers, Set<CallbackHandler> callbackHandlers,
+                            PlatformTransactionManager transactionManager) {
+        this.responseService = responseService;
+        this.userStateStore = userStateStore;
+        this.handlerMetrics = handlerMetrics;
+        this.botUsername = botUsername;
+        this.commandHandlers = commandHandlers;
+        this.stateHandlers = stateHandlers;
+        this.callbackHandlers = callbackHandlers;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+    
     @PostConstruct
     void postConstruct(){
         commandHandlerMap = new EnumMap<>(Command.class);
@@ -59,53 +82,133 @@ public class MessageDelegator {
                 stateHandlerMap.put(userState, stateHandler);
             }
         }
+        
+        callbackHandlerMap = new HashMap<>();
+        for (CallbackHandler callbackHandler : callbackHandlers) {
+            callbackHandlerMap.put(callbackHandler.forPrefix(), callbackHandler);
+        }
     }
     
-    @Transactional
     public void processUpdate(Update update) {
-        if(!update.hasMessage() || !update.getMessage().hasText()){
-            log.warn("update was ignored as it has no messsage for chatid {} - {}", update.getMessage().getChatId(), update);
+        if(update.hasCallbackQuery()){
+            processCallbackQuery(update.getCallbackQuery());
             return;
         }
-        
-        Message message = update.getMessage();
+        Message message = getTextMessage(update);
+        if(message == null){
+            return;
+        }
+        //whatever the handlers send for this update goes out merged once it's done
+        responseService.batched(() -> processMessage(message));
+    }
+    
+    private void processCallbackQuery(CallbackQuery callbackQuery) {
+        var data = callbackQuery.getData();
+        int prefixEnd = data == null ? -1 : data.indexOf(':');
+        var handler = prefixEnd < 0 ? null : callbackHandlerMap.get(data.substring(0, prefixEnd));
+        if(handler == null || callbackQuery.getMessage() == null){
+            log.warn("callback query was ignored as nobody handles it - {}", callbackQuery);
+            return;
+        }
+        //buttons only ever read, so they get the cached state and no transaction, like read only commands
+        var userStateEntity = detachedEntity(callbackQuery.getMessage().getChatId(), CommandHandler.StateAccess.READ_ONLY);
+        responseService.batched(() -> handler.handleCallback(userStateEntity, callbackQuery));
+    }
+    
+    private void processMessage(Message message) {
         long chatId = message.getChatId();
-        var userStateEntity = userStateRepository.findById(chatId)
-            .orElseGet(() -> userStateRepository.save(UserStateEntity.builder()
-                .chatId(chatId)
-                .userState(UserState.NEW_CHAT)
-                .build()));
-        
-        String receivedText = message.getText();
         String botCommand = getFirstBotCommand(message.getEntities());
-        Command command = Command.fromCommandString(botCommand);
+        String username = botCommand == null ? null : botUsername.get();
+        //in groups every bot sees the commands of the others, those are none of our business
+        if(botCommand != null && !Command.isAddressedTo(botCommand, username)){
+            log.debug("ignoring command for another bot in chat {}", chatId);
+            return;
+        }
+        Command command = Command.fromCommandString(botCommand, username);
         
         //if command is unknown, reject it
         if(botCommand != null && command == null){
+            handlerMetrics.unknownCommand();
             responseService.send(chatId, null, "ungültiger Bot-Befehl, benutze " + Command.HELP.getCommand() + " für eine Liste der möglichen Befehle");
             return;
         }
         
+        //commands that don't need the whole state are answered without a transaction
+        var commandHandler = command == null ? null : commandHandlerMap.get(command);
+        if(commandHandler != null && commandHandler.stateAccess() != CommandHandler.StateAccess.FULL){
+            var receivedText = MessageCleaner.removeCommand(message.getText(), command);
+            var userStateEntity = detachedEntity(chatId, commandHandler.stateAccess());
+            handlerMetrics.timeCommand(command, () -> commandHandler.handleMessage(userStateEntity, receivedText));
+            return;
+        }
+        
+        //flushed within the transaction, so the answers still only go out with its commit
+        transactionTemplate.executeWithoutResult(_ -> responseService.batched(() -> processWithState(message, command)));
+    }
+    
+    private void processWithState(Message message, Command command) {
+        /*
+            The handlers work on an entity that's not managed by jpa, so changing it doesn't trigger a db update.
+            Whatever changed is handed to the store afterwards, which writes it behind in batches.
+         */
+        var userState = userStateStore.get(message.getChatId());
+        var userStateEntity = userStateStore.toEntity(userState);
+        handleMessage(message, command, userStateEntity);
+        var changed = CachedUserState.of(userStateEntity);
+        if(!changed.equals(userState)){
+            userStateStore.put(userState, changed);
+        }
+    }
+    
+    private UserStateEntity detachedEntity(long chatId, CommandHandler.StateAccess stateAccess) {
+        if(stateAccess == CommandHandler.StateAccess.NONE){
+            return UserStateEntity.builder()
+                .chatId(chatId)
+                .build();
+        }
+        var userState = userStateStore.get(chatId);
+        return UserStateEntity.builder()
+            .chatId(chatId)
+            .userState(userState.userState())
+            .adminMode(userState.adminMode())
+            .build();
+    }
+    
+    private Message getTextMessage(Update update) {
+        if(!update.hasMessage() || !update.getMessage().hasText()){
+            log.warn("update was ignored as it has no messsage for chatid {} - {}", update.getMessage().getChatId(), update);
+            return null;
+        }
+        return update.getMessage();
+    }
+    
+    private void handleMessage(Message message, Command command, UserStateEntity userStateEntity) {
+        long chatId = message.getChatId();
+        String receivedText = message.getText();
+        
         //if command is known, process it
         if(command != null){
-            receivedText = MessageCleaner.removeCommand(receivedText, command);
+            var commandText = MessageCleaner.removeCommand(receivedText, command);
             var handler = commandHandlerMap.get(command);
             if(handler == null){
-                log.error("missing handler for registered command {}", botCommand);
+                handlerMetrics.missingHandler();
+                log.error("missing handler for registered command {}", command.getCommand());
             }
             else {
-                handler.handleMessage(userStateEntity, receivedText);
+                handlerMetrics.timeCommand(command, () -> handler.handleMessage(userStateEntity, commandText));
             }
             return;
         }
         
-        //if command is unknown, check if the state is tracked
-        var handler = stateHandlerMap.get(userStateEntity.getUserState());
+        //if there is no command, check if the state is tracked
+        var userState = userStateEntity.getUserState();
+        var handler = stateHandlerMap.get(userState);
         if(handler != null){
-            handler.handleMessage(userStateEntity, receivedText);
+            handlerMetrics.timeState(userState, () -> handler.handleMessage(userStateEntity, receivedText));
             return;
         }
         
+        handlerMetrics.unhandledState();
         responseService.send(chatId, null, String.format("Hi, gib %s zum einloggen oder %s zum registrieren ein.", Command.LOGIN.getCommand(), Command.REGISTER.getCommand()));
     }
     
@@ -0,0 +1,10 @@
+package bettertapebot.bot;
+
+/*
+    Answers to the user who is talking to the bot go ahead of broadcasts and notifications,
+    in the queue of the chat as well as for the global limit. Bulk messages still get their turn, see AsyncTelegramClient.
+ */
+public enum MessagePriority {
+    INTERACTIVE,
+    BULK
+}
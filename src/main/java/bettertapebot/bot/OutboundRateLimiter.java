@@ -0,0 +1,308 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/*
+    Keeps everything we send below the limits telegram enforces, instead of running into them and retrying on 429:
+    - per chat: delayBetweenMessagesForSameChat between two messages
+    - per group: at most groupLimit messages within groupPeriod
+    - global: globalLimit messages per globalPeriod over all chats
+
+    The chat and group limits only concern the messages of one chat. AsyncTelegramClient sends those one after another,
+    so their state lives in a ChatPacing that is never touched by two threads at once.
+    The global limit is shared by all chats, it's a GCRA like the inbound flood protection:
+    the slot of the next message is one long that moves one interval forward per message with compare and set.
+
+    Bulk messages like broadcasts additionally need a slot of the lower bulk limit before they take their global slot,
+    so they never take all global slots and answers to users only wait for the ones already taken.
+
+    A chat first waits until its own limits allow the next message and only then takes its global slot,
+    so a group that has to wait for a minute never holds a global slot other chats could use right now.
+    The chat limits count from when a message was actually sent, not from its slot,
+    so a message that went out late never lets the next one follow too closely.
+
+    If telegram still answers with 429, it tells us how long to wait. Either the chat or every chat is paused for exactly
+    that long, the time spent paused is counted per scope, overlapping pauses only once.
+
+    With adaptive pacing the chat delay and the global interval aren't fixed: every message that went through shortens
+    them a bit, every 429 multiplies them (AIMD, like tcp congestion control does it). So chats get their answers faster
+    while telegram lets us, and we back off quickly once it doesn't. The configured global limit is still never exceeded.
+ */
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class OutboundRateLimiter {
+
+    BotProperties botProperties;
+    LongSupplier clock;
+    AtomicLong nextGlobalSlot;
+    AtomicLong nextBulkSlot;
+    AtomicLong globalPauseEnd;
+    //only used with adaptive pacing
+    AtomicLong adaptiveGlobalInterval;
+    Counter chatThrottled;
+    Counter globalThrottled;
+
+    public OutboundRateLimiter(BotProperties botProperties, MeterRegistry meterRegistry) {
+        this(botProperties, meterRegistry, System::nanoTime);
+    }
+
+    OutboundRateLimiter(BotProperties botProperties, MeterRegistry meterRegistry, LongSupplier clock) {
+        this.botProperties = botProperties;
+        this.clock = clock;
+        this.nextGlobalSlot = new AtomicLong(clock.getAsLong());
+        this.nextBulkSlot = new AtomicLong(clock.getAsLong());
+        this.globalPauseEnd = new AtomicLong(clock.getAsLong());
+        this.adaptiveGlobalInterval = new AtomicLong(fastestGlobalInterval());
+        this.chatThrottled = throttledCounter(meterRegistry, "chat");
+        this.globalThrottled = throttledCounter(meterRegistry, "global");
+        Gauge.builder("bettertapebot.telegram.global.interval", this, limiter -> limiter.globalInterval() / 1e9)
+            .description("time between two messages over all chats")
+            .baseUnit("seconds")
+            .register(meterRegistry);
+    }
+
+    private static Counter throttledCounter(MeterRegistry meterRegistry, String scope) {
+        return Counter.builder("bettertapebot.telegram.throttled")
+            .description("time sending was paused because telegram answered with 429")
+            .baseUnit("seconds")
+            .tag("scope", scope)
+            .register(meterRegistry);
+    }
+
+    public ChatPacing newChat(long chatId) {
+        //groups, supergroups and channels have negative ids
+        boolean group = chatId < 0;
+        var chat = new ChatPacing(group, group ? botProperties.getTelegram().getOutboundRateLimit().getGroupLimit() : 0);
+        chat.adaptiveDelay = botProperties.getTelegram().getDelayBetweenMessagesForSameChat().toNanos();
+        return chat;
+    }
+
+    /**
+     * @return nanos until the limits of the chat allow its next message
+     */
+    public long nanosUntilChatReady(ChatPacing chat) {
+        long now = clock.getAsLong();
+        long readyAt = now;
+        if(chat.sentBefore){
+            readyAt = later(readyAt, chat.lastSent + chatDelay(chat));
+        }
+        if(chat.paused){
+            readyAt = later(readyAt, chat.pauseEnd);
+        }
+        if(chat.isGroupWindowFull()){
+            //the oldest message in the window has to leave it first
+            long oldest = chat.groupWindow[chat.groupIndex];
+            readyAt = later(readyAt, oldest + botProperties.getTelegram().getOutboundRateLimit().getGroupPeriod().toNanos());
+        }
+        return readyAt - now;
+    }
+
+    /**
+     * @return nanos until the chat is no different from one that never sent anything, so its pacing can be forgotten.
+     * What adaptive pacing learned about the chat is forgotten with it.
+     */
+    public long nanosUntilIdle(ChatPacing chat) {
+        long now = clock.getAsLong();
+        long idleAt = now;
+        if(chat.sentBefore){
+            idleAt = later(idleAt, chat.lastSent + chatDelay(chat));
+        }
+        if(chat.paused){
+            idleAt = later(idleAt, chat.pauseEnd);
+        }
+        if(chat.groupCount > 0){
+            //the newest message in the window has to leave it
+            long newest = chat.groupWindow[Math.floorMod(chat.groupIndex - 1, chat.groupWindow.length)];
+            idleAt = later(idleAt, newest + botProperties.getTelegram().getOutboundRateLimit().getGroupPeriod().toNanos());
+        }
+        return idleAt - now;
+    }
+    
+    /**
+     * takes the next global slot, only call it once the chat is ready
+     * @return nanos to wait until the message may be sent
+     */
+    public long reserve() {
+        return reserve(nextGlobalSlot, globalInterval());
+    }
+    
+    /**
+     * takes the next slot for bulk messages, call it once the chat is ready and reserve the global slot once it's due
+     * @return nanos to wait until the global slot may be reserved
+     */
+    public long reserveBulk() {
+        var properties = botProperties.getTelegram().getOutboundRateLimit();
+        return reserve(nextBulkSlot, Math.max(properties.getGlobalPeriod().toNanos() / properties.getBulkLimit(), globalInterval()));
+    }
+    
+    private long reserve(AtomicLong nextSlot, long interval) {
+        long now = clock.getAsLong();
+        long slot;
+        long sendAt;
+        do {
+            slot = nextSlot.get();
+            //unused slots in the past are gone, otherwise an idle bot could send a huge burst
+            sendAt = later(later(slot, now), globalPauseEnd.get());
+        } while (!nextSlot.compareAndSet(slot, sendAt + interval));
+        return sendAt - now;
+    }
+
+    /**
+     * @return true if every chat is paused right now, a message that got its slot before the pause started has to take a new one
+     */
+    public boolean isPaused() {
+        return globalPauseEnd.get() - clock.getAsLong() > 0;
+    }
+
+    /**
+     * no more messages to this chat until the time is over
+     */
+    public void pauseChat(ChatPacing chat, Duration duration) {
+        long now = clock.getAsLong();
+        long end = now + duration.toNanos();
+        long previousEnd = chat.paused ? chat.pauseEnd : now;
+        chat.pauseEnd = later(previousEnd, end);
+        chat.paused = true;
+        chatThrottled.increment(secondsExtended(previousEnd, end, now));
+        if(isAdaptive()){
+            chat.adaptiveDelay = clampChatDelay((long) (chatDelay(chat) * adaptivePacing().getBackoffFactor()));
+        }
+    }
+
+    /**
+     * no more messages to any chat until the time is over
+     */
+    public void pauseAll(Duration duration) {
+        long now = clock.getAsLong();
+        long end = now + duration.toNanos();
+        long previousEnd = globalPauseEnd.getAndAccumulate(end, OutboundRateLimiter::later);
+        globalThrottled.increment(secondsExtended(previousEnd, end, now));
+        if(isAdaptive()){
+            adaptiveGlobalInterval.updateAndGet(interval -> clampGlobalInterval((long) (interval * adaptivePacing().getBackoffFactor())));
+        }
+    }
+
+    /**
+     * @return true if adaptive pacing let the chat send more often than delayBetweenMessagesForSameChat allows
+     */
+    public boolean isFasterThanChatLimit(ChatPacing chat) {
+        return isAdaptive() && chatDelay(chat) < botProperties.getTelegram().getDelayBetweenMessagesForSameChat().toNanos();
+    }
+
+    /**
+     * call once a message of the chat was sent
+     */
+    public void sent(ChatPacing chat) {
+        chat.sent(clock.getAsLong());
+    }
+    
+    /**
+     * call once telegram accepted a message of the chat, lets adaptive pacing speed up
+     */
+    public void succeeded(ChatPacing chat) {
+        if(!isAdaptive()){
+            return;
+        }
+        chat.adaptiveDelay = clampChatDelay(chatDelay(chat) - adaptivePacing().getChatSpeedUpStep().toNanos());
+        adaptiveGlobalInterval.updateAndGet(interval -> clampGlobalInterval(interval - adaptivePacing().getGlobalSpeedUpStep().toNanos()));
+    }
+    
+    long chatDelay(ChatPacing chat) {
+        if(!isAdaptive()){
+            return botProperties.getTelegram().getDelayBetweenMessagesForSameChat().toNanos();
+        }
+        //the bounds may have changed since the delay was set
+        return clampChatDelay(chat.adaptiveDelay);
+    }
+    
+    long globalInterval() {
+        if(!isAdaptive()){
+            return fastestGlobalInterval();
+        }
+        return clampGlobalInterval(adaptiveGlobalInterval.get());
+    }
+    
+    private boolean isAdaptive() {
+        return adaptivePacing().isEnabled();
+    }
+    
+    private BotProperties.AdaptivePacingProperties adaptivePacing() {
+        return botProperties.getTelegram().getAdaptivePacing();
+    }
+    
+    private long clampChatDelay(long delay) {
+        return Math.clamp(delay, adaptivePacing().getMinDelayBetweenMessagesForSameChat().toNanos(), adaptivePacing().getMaxDelayBetweenMessagesForSameChat().toNanos());
+    }
+    
+    private long clampGlobalInterval(long interval) {
+        var properties = botProperties.getTelegram().getOutboundRateLimit();
+        long slowest = properties.getGlobalPeriod().toNanos() / Math.min(adaptivePacing().getGlobalMinLimit(), properties.getGlobalLimit());
+        return Math.clamp(interval, fastestGlobalInterval(), slowest);
+    }
+    
+    private long fastestGlobalInterval() {
+        var properties = botProperties.getTelegram().getOutboundRateLimit();
+        return properties.getGlobalPeriod().toNanos() / properties.getGlobalLimit();
+    }
+
+    //only the time a pause adds counts as throttled, overlapping pauses would count the same time twice
+    private static double secondsExtended(long previousEnd, long end, long now) {
+        return Math.max(end - later(previousEnd, now), 0) / 1e9;
+    }
+
+    //nanoTime may overflow, so only the difference can be compared
+    private static long later(long a, long b) {
+        return a - b > 0 ? a : b;
+    }
+
+    /*
+        what a single chat sent recently, not thread safe, as the messages of a chat are sent one after another anyway
+     */
+    public static final class ChatPacing {
+        final boolean group;
+        boolean sentBefore;
+        long lastSent;
+        boolean paused;
+        long pauseEnd;
+        long adaptiveDelay;
+
+        //send times of the last messages in a group, oldest at groupIndex, empty for private chats
+        final long[] groupWindow;
+        int groupIndex;
+        int groupCount;
+
+        ChatPacing(boolean group, int groupLimit) {
+            this.group = group;
+            this.groupWindow = new long[groupLimit];
+        }
+
+        public boolean isGroup() {
+            return group;
+        }
+
+        boolean isGroupWindowFull() {
+            return groupWindow.length > 0 && groupCount == groupWindow.length;
+        }
+
+        void sent(long sentAt) {
+            sentBefore = true;
+            lastSent = sentAt;
+            if(groupWindow.length == 0){
+                return;
+            }
+            groupWindow[groupIndex] = sentAt;
+            groupIndex = (groupIndex + 1) % groupWindow.length;
+            groupCount = Math.min(groupCount + 1, groupWindow.length);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.observation.transport.ReceiverContext;
+import io.micrometer.observation.transport.SenderContext;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.CustomLog;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Messages sent from within a transaction are written to the outbox table as part of that transaction,
+    so they exist exactly if the changes that caused them were committed, and they survive a restart.
+
+    Writing: the messages of a transaction are collected and inserted in one batch right before it commits.
+    Relaying: once something committed, the relay thread claims the oldest rows in batches and hands them to the
+    AsyncTelegramClient, a poll every few seconds catches anything a wake up missed.
+    Delivering: once telegram got a message (or it was given up on) its row is marked delivered, in batches every second.
+    A claim that wasn't delivered within the claim timeout is given up and the row relayed again, so a crash can send
+    a message twice but never loses one. Only expired claims are given up, not every one at startup,
+    so a restart never resends what is still on its way. Delivered rows are kept for a while and pruned in the background.
+    Tracing: the trace context of the update is written along with the message, so relaying it continues the same trace.
+ */
+@CustomLog
+@Component
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class OutboxRelay {
+    static final String TABLE_NAME = "outbox_messages";
+    static final String INSERT = "INSERT INTO " + TABLE_NAME + " (chat_id, message, priority, created_at, trace_context) VALUES (?, ?, ?, ?, ?)";
+    static final String CLAIM = "UPDATE " + TABLE_NAME + " SET claimed_at = ? WHERE id IN (" +
+        "SELECT id FROM " + TABLE_NAME + " WHERE claimed_at IS NULL ORDER BY id LIMIT ? FOR UPDATE SKIP LOCKED) " +
+        "RETURNING id, chat_id, message, priority, trace_context";
+    static final String MARK_DELIVERED = "UPDATE " + TABLE_NAME + " SET delivered_at = ? WHERE id = ?";
+    static final String RELAY_AGAIN = "UPDATE " + TABLE_NAME + " SET claimed_at = NULL WHERE claimed_at < ? AND delivered_at IS NULL";
+    static final String PRUNE = "DELETE FROM " + TABLE_NAME + " WHERE id IN (" +
+        "SELECT id FROM " + TABLE_NAME + " WHERE delivered_at < ? LIMIT ?)";
+
+    //telegrambots annotates its objects for jackson 2, so we can't use the jackson 3 mapper spring brings along
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    BotProperties botProperties;
+    JdbcTemplate jdbcTemplate;
+    AsyncTelegramClient asyncTelegramClient;
+    ObservationRegistry observationRegistry;
+
+    //released by every commit that wrote to the outbox
+    Semaphore wakeUp = new Semaphore(0);
+    ConcurrentLinkedQueue<Long> delivered = new ConcurrentLinkedQueue<>();
+
+    @NonFinal
+    Thread relay;
+
+    @PostConstruct
+    void postConstruct() {
+        relayExpiredClaims();
+        relay = Thread.ofVirtual().name("outbox-relay").start(this::relay);
+    }
+
+    /**
+     * gives up the claims that weren't delivered within the claim timeout, e.g. because we crashed
+     */
+    @Scheduled(fixedDelayString = "${better-tape-bot.outbox.claim-check-interval:1m}")
+    void relayExpiredClaims() {
+        var claimedBefore = Timestamp.from(Instant.now().minus(botProperties.getOutbox().getClaimTimeout()));
+        int relayedAgain = jdbcTemplate.update(RELAY_AGAIN, claimedBefore);
+        if(relayedAgain > 0){
+            log.info("relaying {} messages again that were claimed but not delivered in time", relayedAgain);
+            wakeUp.release();
+        }
+    }
+
+    /**
+     * writes the message to the outbox as part of the running transaction, it is sent once the transaction committed
+     */
+    public void add(long chatId, SendMessage message, MessagePriority priority) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            throw new IllegalStateException("the outbox can only be written within a transaction");
+        }
+        var pending = (PendingMessages) TransactionSynchronizationManager.getResource(this);
+        if(pending == null){
+            pending = new PendingMessages();
+            TransactionSynchronizationManager.bindResource(this, pending);
+            TransactionSynchronizationManager.registerSynchronization(pending);
+        }
+        try {
+            pending.rows.add(new Object[]{chatId, objectMapper.writeValueAsString(message), priority.name(), Timestamp.from(Instant.now()),
+                traceContext(chatId)});
+        }
+        catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("message to chat " + chatId + " can't be written to the outbox", e);
+        }
+    }
+
+    /**
+     * @return the headers that continue the current trace, null if there is none
+     */
+    private String traceContext(long chatId) throws JsonProcessingException {
+        if(observationRegistry.getCurrentObservation() == null){
+            return null;
+        }
+        var context = new SenderContext<Map<String, String>>(Map::put);
+        context.setCarrier(new HashMap<>());
+        Observation.createNotStarted("bettertapebot.outbox.write", () -> context, observationRegistry)
+            .contextualName("outbox write")
+            .highCardinalityKeyValue("chat.id", String.valueOf(chatId))
+            .observe(() -> {});
+        return context.getCarrier().isEmpty() ? null : objectMapper.writeValueAsString(context.getCarrier());
+    }
+
+    private void relay() {
+        long pollInterval = botProperties.getOutbox().getPollInterval().toNanos();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                wakeUp.tryAcquire(pollInterval, TimeUnit.NANOSECONDS);
+                //one round takes care of every commit up to now
+                wakeUp.drainPermits();
+            }
+            catch (InterruptedException _) {
+                return;
+            }
+            try {
+                drain();
+            }
+            catch (RuntimeException e) {
+                //e.g. the db is not reachable, the rows are still there for the next round
+                log.error("relaying the outbox failed", e);
+            }
+        }
+    }
+
+    /**
+     * hands every row that wasn't relayed yet to the AsyncTelegramClient
+     * @return rows relayed
+     */
+    int drain() {
+        int batchSize = botProperties.getOutbox().getBatchSize();
+        int relayed = 0;
+        List<OutboxRow> batch;
+        do {
+            batch = new ArrayList<>(jdbcTemplate.query(CLAIM, (rs, _) -> new OutboxRow(
+                    rs.getLong("id"),
+                    rs.getLong("chat_id"),
+                    rs.getString("message"),
+                    MessagePriority.valueOf(rs.getString("priority")),
+                    rs.getString("trace_context")),
+                Timestamp.from(Instant.now()), batchSize));
+            //returning doesn't keep the order of the subselect
+            batch.sort(Comparator.comparingLong(OutboxRow::id));
+            for (OutboxRow row : batch) {
+                relay(row);
+            }
+            relayed += batch.size();
+        } while (batch.size() == batchSize);
+        return relayed;
+    }
+
+    private void relay(OutboxRow row) {
+        SendMessage message;
+        try {
+            message = objectMapper.readValue(row.message(), SendMessage.class);
+        }
+        catch (JsonProcessingException e) {
+            log.error("dropping message {} of the outbox, it can't be read", row.id(), e);
+            delivered.add(row.id());
+            return;
+        }
+        var context = new ReceiverContext<Map<String, String>>(Map::get);
+        context.setCarrier(traceContext(row));
+        //the queue and send spans of the message become children of this one
+        Observation.createNotStarted("bettertapebot.outbox.relay", () -> context, observationRegistry)
+            .contextualName("outbox relay")
+            .highCardinalityKeyValue("chat.id", String.valueOf(row.chatId()))
+            .observe(() -> asyncTelegramClient.sendMessage(row.chatId(), message, row.priority(), () -> delivered.add(row.id())));
+    }
+
+    private Map<String, String> traceContext(OutboxRow row) {
+        if(row.traceContext() == null){
+            return Map.of();
+        }
+        try {
+            return objectMapper.readValue(row.traceContext(), new TypeReference<>() {});
+        }
+        catch (JsonProcessingException e) {
+            log.warn("trace context of message {} of the outbox can't be read, it starts a new trace", row.id(), e);
+            return Map.of();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${better-tape-bot.outbox.delivered-flush-interval:1s}")
+    void flushDelivered() {
+        int batchSize = botProperties.getOutbox().getBatchSize();
+        while (!delivered.isEmpty()) {
+            var deliveredAt = Timestamp.from(Instant.now());
+            List<Object[]> batch = new ArrayList<>(batchSize);
+            Long id;
+            while (batch.size() < batchSize && (id = delivered.poll()) != null) {
+                batch.add(new Object[]{deliveredAt, id});
+            }
+            try {
+                jdbcTemplate.batchUpdate(MARK_DELIVERED, batch);
+            }
+            catch (RuntimeException e) {
+                //they are tried again with the next flush, if we crash before they get sent again once their claim expired
+                log.error("marking {} outbox messages delivered failed", batch.size(), e);
+                batch.forEach(row -> delivered.add((Long) row[1]));
+                return;
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${better-tape-bot.outbox.prune-interval:10m}")
+    void prune() {
+        var properties = botProperties.getOutbox();
+        var deliveredBefore = Timestamp.from(Instant.now().minus(properties.getRetention()));
+        int pruned = 0;
+        int deleted;
+        //small deletes, so the relay never waits long for the table
+        do {
+            deleted = jdbcTemplate.update(PRUNE, deliveredBefore, properties.getBatchSize());
+            pruned += deleted;
+        } while (deleted == properties.getBatchSize());
+        if(pruned > 0){
+            log.debug("pruned {} delivered messages from the outbox", pruned);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        relay.interrupt();
+        relay.join(TimeUnit.SECONDS.toMillis(10));
+        //whatever isn't marked delivered by now is sent again once its claim expired
+        flushDelivered();
+    }
+
+    record OutboxRow(long id, long chatId, String message, MessagePriority priority, String traceContext){}
+
+    /*
+        the messages of one transaction, written right before it commits
+     */
+    private final class PendingMessages implements TransactionSynchronization {
+        final List<Object[]> rows = new ArrayList<>();
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            jdbcTemplate.batchUpdate(INSERT, rows);
+        }
+
+        @Override
+        public void afterCommit() {
+            wakeUp.release();
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(OutboxRelay.this);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import bettertapebot.util.ChatIds;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.CustomLog;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.longpolling.interfaces.LongPollingUpdateConsumer;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+@CustomLog
+@Component
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class PartitionedUpdateConsumer implements LongPollingUpdateConsumer {
+
+    BotProperties botProperties;
+    MessageDelegator messageDelegator;
+    BatchUpdateProcessor batchUpdateProcessor;
+    InboundFloodProtection inboundFloodProtection;
+    UpdateOffsetTracker updateOffsetTracker;
+    ObservationRegistry observationRegistry;
+
+    @NonFinal
+    ExecutorService[] partitions;
+
+    @NonFinal
+    Semaphore inFlight;
+
+    /*
+        Every partition is a single virtual thread working through its own queue.
+        All updates of a chat land in the same partition, so they are processed in the order telegram sent them,
+        while updates of different chats usually land in different partitions and run in parallel.
+        The semaphore caps how many updates are queued or running at once. When it's exhausted, consume() blocks
+        the polling thread, so we stop fetching new updates instead of piling them up in memory.
+     */
+    @PostConstruct
+    void postConstruct() {
+        var telegramProperties = botProperties.getTelegram();
+        partitions = new ExecutorService[telegramProperties.getUpdatePartitionCount()];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("update-partition-" + i).factory());
+        }
+        inFlight = new Semaphore(telegramProperties.getMaxUpdatesInFlight());
+    }
+
+    @Override
+    public void consume(List<Update> updates) {
+        if(botProperties.getTelegram().isBatchTransactions()){
+            consumeBatched(updates);
+            return;
+        }
+        for (Update update : updates) {
+            consume(update);
+        }
+    }
+    
+    /*
+        All updates of the page that belong to the same partition are handed over as one task,
+        so they share one transaction. Order within a partition stays the same as in the page.
+     */
+    private void consumeBatched(List<Update> updates) {
+        Map<ExecutorService, List<Update>> batches = new LinkedHashMap<>();
+        for (Update update : updates) {
+            //checked before any db work, so a redelivered update never reaches the handlers twice
+            if(update.getUpdateId() != null && !updateOffsetTracker.tryBegin(update.getUpdateId())){
+                log.debug("skipping already handled update {}", update.getUpdateId());
+                continue;
+            }
+            if(!inboundFloodProtection.tryAdmit(update)){
+                if(update.getUpdateId() != null){
+                    updateOffsetTracker.complete(update.getUpdateId());
+                }
+                continue;
+            }
+            batches.computeIfAbsent(partitionFor(update), _ -> new ArrayList<>()).add(update);
+        }
+        batches.forEach(this::submitBatch);
+    }
+    
+    private void submitBatch(ExecutorService partition, List<Update> batch) {
+        //a batch can't wait for more permits than there are, otherwise it would block forever
+        int permits = Math.min(batch.size(), botProperties.getTelegram().getMaxUpdatesInFlight());
+        inFlight.acquireUninterruptibly(permits);
+        try {
+            partition.execute(() -> {
+                try {
+                    Observation.createNotStarted("bettertapebot.update.batch", observationRegistry)
+                        .contextualName("update batch")
+                        .highCardinalityKeyValue("update.count", String.valueOf(batch.size()))
+                        .observe(() -> batchUpdateProcessor.processBatch(batch));
+                }
+                catch (Exception e) {
+                    log.error("failure when processing batch of {} updates", batch.size(), e);
+                }
+                finally {
+                    completeBatch(batch, permits);
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            //executor rejected the task, e.g. during shutdown
+            for (Update update : batch) {
+                abandon(update);
+            }
+            inFlight.release(permits);
+            log.error("batch of {} updates was rejected", batch.size(), e);
+        }
+    }
+    
+    private void completeBatch(List<Update> batch, int permits) {
+        for (Update update : batch) {
+            if(update.getUpdateId() != null){
+                updateOffsetTracker.complete(update.getUpdateId());
+            }
+        }
+        inFlight.release(permits);
+    }
+
+    public void consume(Update update) {
+        inFlight.acquireUninterruptibly();
+        submit(update);
+    }
+    
+    /**
+     * non-blocking variant for callers that must not wait, e.g. the webhook running on the netty event loop
+     * @return false if the max number of updates in flight is reached and the update was not accepted
+     */
+    public boolean tryConsume(Update update) {
+        if(!inFlight.tryAcquire()){
+            return false;
+        }
+        submit(update);
+        return true;
+    }
+    
+    private void submit(Update update) {
+        //checked before any db work, so a redelivered update never reaches the handlers twice
+        if(update.getUpdateId() != null && !updateOffsetTracker.tryBegin(update.getUpdateId())){
+            log.debug("skipping already handled update {}", update.getUpdateId());
+            inFlight.release();
+            return;
+        }
+        //dropped before it's queued, so a flooding chat takes neither a db connection nor a place in the partition
+        if(!inboundFloodProtection.tryAdmit(update)){
+            complete(update);
+            return;
+        }
+        try {
+            partitionFor(update).execute(() -> {
+                try {
+                    //root of the trace, everything the update causes down to the sent answers hangs below it
+                    Observation.createNotStarted("bettertapebot.update", observationRegistry)
+                        .contextualName("update")
+                        .highCardinalityKeyValue("update.id", String.valueOf(update.getUpdateId()))
+                        .observe(() -> messageDelegator.processUpdate(update));
+                }
+                catch (Exception e) {
+                    log.error("failure when processing update {}", update.getUpdateId(), e);
+                }
+                finally {
+                    complete(update);
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            //executor rejected the task, e.g. during shutdown
+            abandon(update);
+            inFlight.release();
+            log.error("update {} was rejected", update.getUpdateId(), e);
+        }
+    }
+    
+    private void complete(Update update) {
+        if(update.getUpdateId() != null){
+            updateOffsetTracker.complete(update.getUpdateId());
+        }
+        inFlight.release();
+    }
+
+    //never processed, so the offset must not move past it, it's fetched again after the restart
+    private void abandon(Update update) {
+        if(update.getUpdateId() != null){
+            updateOffsetTracker.abandon(update.getUpdateId());
+        }
+    }
+
+    private ExecutorService partitionFor(Update update) {
+        var chatId = ChatIds.of(update);
+        long key = chatId != null ? chatId : update.getUpdateId();
+        return partitions[(int) Math.floorMod(key, (long) partitions.length)];
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        for (ExecutorService partition : partitions) {
+            partition.shutdown();
+        }
+        for (ExecutorService partition : partitions) {
+            if (!partition.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("update partition did not finish in time, dropping remaining updates");
+                partition.shutdownNow();
+            }
+        }
+    }
+}
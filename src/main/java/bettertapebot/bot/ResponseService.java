@@ -7,11 +7,18 @@ import lombok.CustomLog;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboard;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardRemove;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @CustomLog
 @Component
@@ -21,24 +28,82 @@ public class ResponseService {
     
     BotProperties botProperties;
     AsyncTelegramClient asyncTelegramClient;
+    OutboxRelay outboxRelay;
+    
+    //sends to each chat while the current thread processes an update, null outside of batched
+    ThreadLocal<Map<Long, List<PendingSend>>> batch = new ThreadLocal<>();
 
     public void send(long chatId, String text) {
         send(chatId, new ReplyKeyboardRemove(true), text);
     }
     
     public void send(long chatId, ReplyKeyboard replyKeyboard, String text) {
-        List<String> chunks = TextSplitter.splitTextSmart(text, botProperties.getTelegram().getMessageLengthLimit());
-        sendChunks(chatId, chunks, replyKeyboard);
+        send(chatId, replyKeyboard, text, MessagePriority.INTERACTIVE);
+    }
+    
+    public void send(long chatId, ReplyKeyboard replyKeyboard, String text, MessagePriority priority) {
+        var pending = batch.get();
+        if(pending != null){
+            pending.computeIfAbsent(chatId, _ -> new ArrayList<>()).add(new PendingSend(replyKeyboard, text, priority));
+            return;
+        }
+        sendNow(chatId, new PendingSend(replyKeyboard, text, priority));
+    }
+    
+    /*
+        Handlers often answer with a few short messages in a row, and every one of them costs the chat a full
+        delayBetweenMessagesForSameChat. So everything sent while processing an update is held back until it's done and
+        consecutive messages to the same chat are merged into as few as the length limit allows.
+        Messages are flushed when work ends, within a transaction if work runs within one, so they still only go out with its commit.
+     */
+    public void batched(Runnable work) {
+        var outer = batch.get();
+        Map<Long, List<PendingSend>> pending = new LinkedHashMap<>();
+        batch.set(pending);
+        try {
+            work.run();
+        }
+        finally {
+            batch.set(outer);
+            pending.forEach(this::flush);
+        }
+    }
+    
+    private void flush(long chatId, List<PendingSend> sends) {
+        int lengthLimit = botProperties.getTelegram().getMessageLengthLimit();
+        PendingSend merged = null;
+        for (PendingSend send : sends) {
+            if(merged != null && merged.canTake(send, lengthLimit)){
+                merged = merged.merge(send);
+                continue;
+            }
+            if(merged != null){
+                sendNow(chatId, merged);
+            }
+            merged = send;
+        }
+        if(merged != null){
+            sendNow(chatId, merged);
+        }
+    }
+    
+    private void sendNow(long chatId, PendingSend send) {
+        List<String> chunks = TextSplitter.splitTextSmart(send.text(), botProperties.getTelegram().getMessageLengthLimit());
+        sendChunks(chatId, chunks, send.replyKeyboard(), send.priority());
     }
     
     public void broadcast(List<Long> chatIds, String text) {
+        broadcast(chatIds, text, MessagePriority.BULK);
+    }
+    
+    public void broadcast(List<Long> chatIds, String text, MessagePriority priority) {
         List<String> chunks = TextSplitter.splitTextSmart(text, botProperties.getTelegram().getMessageLengthLimit());
         for (Long chatId : chatIds) {
-            sendChunks(chatId, chunks, null);
+            sendChunks(chatId, chunks, null, priority);
         }
     }
     
-    private void sendChunks(long chatId, List<String> chunks, ReplyKeyboard markup){
+    private void sendChunks(long chatId, List<String> chunks, ReplyKeyboard markup, MessagePriority priority){
         for (int i = 0; i < chunks.size(); i++) {
             SendMessage message = SendMessage.builder()
                 .chatId(chatId)
@@ -51,10 +116,63 @@ public class ResponseService {
                 message.setReplyMarkup(markup);
             }
             
-            asyncTelegramClient.sendMessage(chatId, message);
+            sendAfterCommit(chatId, message, priority);
             if (log.isDebugEnabled()) {
                 log.debug("Message sent to ChatId '{}': {}", chatId, chunks.get(i));
             }
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * replaces text and inline buttons of a message the bot sent before, e.g. to turn the page of a list.
+     * Nothing is written when an edit gets lost, so it's sent right away even within a transaction
+     */
+    public void edit(long chatId, int messageId, String text, InlineKeyboardMarkup keyboard) {
+        asyncTelegramClient.editMessage(chatId, EditMessageText.builder()
+            .chatId(chatId)
+            .messageId(messageId)
+            .text(text)
+            .parseMode("HTML")
+            .replyMarkup(keyboard)
+            .build());
+    }
+    
+    /**
+     * @param text shown briefly on top of the chat, null just stops the spinner on the button
+     */
+    public void answerCallbackQuery(String callbackQueryId, String text) {
+        asyncTelegramClient.answerCallbackQuery(AnswerCallbackQuery.builder()
+            .callbackQueryId(callbackQueryId)
+            .text(text)
+            .build());
+    }
+    
+    /*
+        If we're inside a transaction, the message goes to the outbox with it and is only sent once it's committed.
+        Otherwise a rolled back handler would still have answered, and if the update gets retried the user gets it twice.
+     */
+    private void sendAfterCommit(long chatId, SendMessage message, MessagePriority priority) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            asyncTelegramClient.sendMessage(chatId, message, priority);
+            return;
+        }
+        outboxRelay.add(chatId, message, priority);
+    }
+    
+    private record PendingSend(ReplyKeyboard replyKeyboard, String text, MessagePriority priority) {
+        private static final String SEPARATOR = "\n\n";
+        
+        boolean canTake(PendingSend next, int lengthLimit) {
+            //inline buttons belong to the text they are sent with, nothing may be appended below them
+            return priority == next.priority()
+                && !(replyKeyboard instanceof InlineKeyboardMarkup)
+                && text.length() + SEPARATOR.length() + next.text().length() <= lengthLimit;
+        }
+        
+        PendingSend merge(PendingSend next) {
+            //the keyboard of the later message is the one the chat would have ended up with, null leaves it as it is
+            var keyboard = next.replyKeyboard() == null ? replyKeyboard : next.replyKeyboard();
+            return new PendingSend(keyboard, text + SEPARATOR + next.text(), priority);
+        }
+    }
+}
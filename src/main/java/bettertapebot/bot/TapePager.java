@@ -0,0 +1,186 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import bettertapebot.repository.TapeListing;
+import bettertapebot.repository.TapeRepository;
+import bettertapebot.repository.entity.UserEntity;
+import bettertapebot.util.TapeFormatter;
+import bettertapebot.util.TextSplitter;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardRow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/*
+    /all, /starring and /directing answer with the newest tapes and buttons below them to page through the rest.
+    Pressing one edits that message instead of sending the next page as a new one, so a page costs one indexed query
+    and one edit however many tapes there are.
+
+    The button carries everything the page it leads to needs, which list, the direction and the tape the page starts
+    behind, e.g. "tapes:star:next:<id>". Telegram allows 64 bytes, that wouldn't always fit a username,
+    so the star or director is taken from that tape as well.
+    A page shows at most tapesPageSize tapes and only as many as fit into a single message, the button after it
+    starts behind the last one shown.
+ */
+@Component
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class TapePager {
+    public static final String CALLBACK_PREFIX = "tapes";
+    private static final String SEPARATOR = "\n\n";
+    private static final String NEXT = "next";
+    private static final String PREVIOUS = "prev";
+
+    BotProperties botProperties;
+    TapeRepository tapeRepository;
+    ResponseService responseService;
+
+    /**
+     * @param user star or director of the tapes, ignored for ALL
+     */
+    public TapePage firstPage(TapeList list, UserEntity user, boolean withIds) {
+        //one more than fits on the page tells whether there is another one
+        var limit = Limit.of(botProperties.getTapesPageSize() + 1);
+        var tapes = switch (list) {
+            case ALL -> tapeRepository.findFirstPage(limit);
+            case STARRING -> tapeRepository.findFirstStarPage(user, limit);
+            case DIRECTING -> tapeRepository.findFirstDirectorPage(user, limit);
+        };
+        if(tapes.isEmpty()){
+            return new TapePage(TapeFormatter.NO_TAPES, null);
+        }
+        return render(list, tapes, false, false, withIds);
+    }
+
+    public void send(long chatId, TapePage page) {
+        if(page.keyboard() == null){
+            responseService.send(chatId, page.text());
+            return;
+        }
+        responseService.send(chatId, page.keyboard(), page.text());
+    }
+
+    /**
+     * @param callbackData what the pressed button carries
+     * @return the page the button leads to, empty if the data isn't one of ours or the tape the page starts behind is gone
+     */
+    public Optional<TapePage> page(String callbackData, boolean withIds) {
+        var parts = callbackData == null ? new String[0] : callbackData.split(":", 4);
+        if(parts.length != 4 || !CALLBACK_PREFIX.equals(parts[0])){
+            return Optional.empty();
+        }
+        var list = TapeList.fromKey(parts[1]);
+        boolean backwards = PREVIOUS.equals(parts[2]);
+        UUID cursor;
+        try {
+            cursor = UUID.fromString(parts[3]);
+        }
+        catch (IllegalArgumentException _) {
+            return Optional.empty();
+        }
+        if(list == null || !backwards && !NEXT.equals(parts[2])){
+            return Optional.empty();
+        }
+        var limit = Limit.of(botProperties.getTapesPageSize() + 1);
+        var tapes = switch (list) {
+            case ALL -> backwards ? tapeRepository.findPageBefore(cursor, limit) : tapeRepository.findPageAfter(cursor, limit);
+            case STARRING -> backwards ? tapeRepository.findStarPageBefore(cursor, limit) : tapeRepository.findStarPageAfter(cursor, limit);
+            case DIRECTING -> backwards ? tapeRepository.findDirectorPageBefore(cursor, limit) : tapeRepository.findDirectorPageAfter(cursor, limit);
+        };
+        if(tapes.isEmpty()){
+            return Optional.empty();
+        }
+        return Optional.of(render(list, tapes, backwards, true, withIds));
+    }
+
+    /**
+     * @param tapes ordered away from where the page starts, so newest first unless we go backwards
+     * @param fromCursor whether there is a page on the side the page starts from
+     */
+    private TapePage render(TapeList list, List<TapeListing> tapes, boolean backwards, boolean fromCursor, boolean withIds) {
+        int lengthLimit = botProperties.getTelegram().getMessageLengthLimit();
+        List<TapeListing> shown = new ArrayList<>();
+        List<String> formatted = new ArrayList<>();
+        int length = 0;
+        for (TapeListing tape : tapes) {
+            if(shown.size() == botProperties.getTapesPageSize()){
+                break;
+            }
+            var text = TapeFormatter.formatTape(tape, botProperties.getOutputTimezone(), withIds);
+            int added = shown.isEmpty() ? text.length() : SEPARATOR.length() + text.length();
+            if(!shown.isEmpty() && length + added > lengthLimit){
+                break;
+            }
+            if(text.length() > lengthLimit){
+                //a single tape that doesn't fit into a message at all shows as much as does
+                text = TextSplitter.split(text, lengthLimit).findFirst().orElseThrow();
+                added = text.length();
+            }
+            shown.add(tape);
+            formatted.add(text);
+            length += added;
+        }
+        boolean more = tapes.size() > shown.size();
+        if(backwards){
+            shown = shown.reversed();
+            formatted = formatted.reversed();
+        }
+        boolean hasNewer = backwards ? more : fromCursor;
+        boolean hasOlder = backwards ? fromCursor : more;
+
+        List<InlineKeyboardButton> buttons = new ArrayList<>(2);
+        if(hasNewer){
+            buttons.add(button("« neuer", list, PREVIOUS, shown.getFirst()));
+        }
+        if(hasOlder){
+            buttons.add(button("älter »", list, NEXT, shown.getLast()));
+        }
+        var keyboard = buttons.isEmpty() ? null : InlineKeyboardMarkup.builder()
+            .keyboardRow(new InlineKeyboardRow(buttons))
+            .build();
+        return new TapePage(String.join(SEPARATOR, formatted), keyboard);
+    }
+
+    private static InlineKeyboardButton button(String text, TapeList list, String direction, TapeListing cursor) {
+        return InlineKeyboardButton.builder()
+            .text(text)
+            .callbackData(String.join(":", CALLBACK_PREFIX, list.getKey(), direction, cursor.id().toString()))
+            .build();
+    }
+
+    /**
+     * @param keyboard buttons to the pages before and after, null if everything fits on this one
+     */
+    public record TapePage(String text, InlineKeyboardMarkup keyboard) {}
+
+    @Getter
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    public enum TapeList {
+        ALL("all"),
+        STARRING("star"),
+        DIRECTING("dir");
+
+        String key;
+
+        static TapeList fromKey(String key) {
+            for (TapeList list : values()) {
+                if(list.key.equals(key)){
+                    return list;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -5,42 +5,45 @@ import lombok.AccessLevel;
 import lombok.CustomLog;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
-import org.telegram.telegrambots.longpolling.interfaces.LongPollingUpdateConsumer;
-import org.telegram.telegrambots.longpolling.starter.SpringLongPollingBot;
-import org.telegram.telegrambots.longpolling.util.LongPollingSingleThreadUpdateConsumer;
-import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.longpolling.TelegramBotsLongPollingApplication;
+import org.telegram.telegrambots.meta.TelegramUrl;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
 @Component
 @CustomLog
 @RequiredArgsConstructor
 @EnableConfigurationProperties(BotProperties.class)
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
-public class TelegramBot implements SpringLongPollingBot, LongPollingSingleThreadUpdateConsumer {
+@ConditionalOnProperty(prefix = "better-tape-bot.telegram.webhook", name = "enabled", havingValue = "false", matchIfMissing = true)
+public class TelegramBot {
 
     BotProperties botProperties;
-    MessageDelegator messageDelegator;
-
-    @Override
-    public String getBotToken() {
-        return botProperties.getTelegram().getToken();
-    }
-
-    @Override
-    public LongPollingUpdateConsumer getUpdatesConsumer() {
-        return this;
-    }
+    TelegramBotsLongPollingApplication telegramBotsApplication;
+    PartitionedUpdateConsumer partitionedUpdateConsumer;
+    UpdateOffsetTracker updateOffsetTracker;
 
     /*
-        never access the database in this class unless you know what youre doing
-        the method does not get called via its public method api but with some strange fuckery, probably reflection, I didnt look into the lib
-        but you cant start a transaction here with the transaction annotation
+        never access the database in the consumer unless you know what youre doing
+        the updates do not get passed via a proxied bean method but straight from the polling thread
+        so you cant start a transaction there with the transaction annotation
         You'd need to manually create or join one with the entity manager
         I thought it was easier to put the evaluation logic in another bean
+
+        We register the bot ourselves instead of implementing SpringLongPollingBot,
+        as only this way we can tell telegram from which update on we want to continue after a restart
      */
-    @Override
-    public void consume(Update update) {
-        messageDelegator.processUpdate(update);
+    @EventListener(ApplicationReadyEvent.class)
+    public void register() {
+        try {
+            telegramBotsApplication.registerBot(botProperties.getTelegram().getToken(), () -> TelegramUrl.DEFAULT_URL,
+                updateOffsetTracker::nextGetUpdates, partitionedUpdateConsumer);
+        } catch (TelegramApiException e) {
+            log.error("failed to start long polling, bot will not receive any updates", e);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,91 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AccessLevel;
+import lombok.CustomLog;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+@CustomLog
+@Component
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@ConditionalOnProperty(prefix = "better-tape-bot.telegram.webhook", name = "enabled", havingValue = "true")
+public class TelegramWebhookHandler {
+    static final String SECRET_TOKEN_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    //telegrambots annotates its objects for jackson 2, so we can't use the jackson 3 mapper spring brings along
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    BotProperties botProperties;
+    TelegramClient telegramClient;
+    PartitionedUpdateConsumer partitionedUpdateConsumer;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void registerWebhook() {
+        var webhookProperties = botProperties.getTelegram().getWebhook();
+        try {
+            telegramClient.execute(SetWebhook.builder()
+                .url(webhookProperties.getUrl() + webhookProperties.getPath())
+                .secretToken(webhookProperties.getSecretToken())
+                .build());
+            log.info("registered webhook at {}", webhookProperties.getUrl());
+        } catch (TelegramApiException e) {
+            log.error("failed to register webhook, bot will not receive any updates", e);
+        }
+    }
+
+    /*
+        Telegram waits for our answer before it sends the next update, so we only parse the update and
+        hand it over to the same partitioned consumer long polling uses. The actual processing runs async.
+     */
+    public Mono<ServerResponse> handle(ServerRequest request) {
+        if(!hasValidSecretToken(request.headers().firstHeader(SECRET_TOKEN_HEADER))){
+            log.warn("rejected webhook call with invalid secret token");
+            return ServerResponse.status(HttpStatus.UNAUTHORIZED).build();
+        }
+
+        return request.bodyToMono(byte[].class)
+            .flatMap(body -> {
+                Update update;
+                try {
+                    update = objectMapper.readValue(body, Update.class);
+                } catch (IOException e) {
+                    log.warn("rejected webhook call with unparsable update", e);
+                    return ServerResponse.badRequest().build();
+                }
+                if(!partitionedUpdateConsumer.tryConsume(update)){
+                    //telegram redelivers the update later if we don't answer with 2xx
+                    return ServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+                }
+                return ServerResponse.ok().build();
+            })
+            .switchIfEmpty(Mono.defer(() -> ServerResponse.badRequest().build()));
+    }
+
+    //a missing header is never fine, even if the secret token slipped through unset
+    private boolean hasValidSecretToken(String secretToken) {
+        var configured = botProperties.getTelegram().getWebhook().getSecretToken();
+        if(configured == null || secretToken == null){
+            return false;
+        }
+        return MessageDigest.isEqual(configured.getBytes(StandardCharsets.UTF_8), secretToken.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,131 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import bettertapebot.repository.UpdateOffsetRepository;
+import bettertapebot.repository.entity.UpdateOffsetEntity;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.CustomLog;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.methods.updates.GetUpdates;
+
+import java.util.LinkedHashSet;
+import java.util.SequencedSet;
+import java.util.TreeSet;
+
+/*
+    Keeps track of which updates were already handled, so neither a restart nor telegram redelivering an update
+    (e.g. the webhook timed out) leads to a second /add or similar.
+
+    Updates of different chats are processed in parallel, so they don't finish in order.
+    That's why we persist a watermark: the highest update id for which every update up to it is done.
+    Updates above the watermark that are already done or still running are remembered in a bounded window.
+ */
+@CustomLog
+@Component
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UpdateOffsetTracker {
+
+    BotProperties botProperties;
+    UpdateOffsetRepository updateOffsetRepository;
+
+    //all access is guarded by synchronized, the polling thread and all partitions use this
+    TreeSet<Long> inFlight = new TreeSet<>();
+    SequencedSet<Long> recent = new LinkedHashSet<>();
+
+    @NonFinal
+    long watermark;
+
+    @NonFinal
+    long maxAccepted;
+
+    //only touched by the scheduler and on shutdown
+    @NonFinal
+    volatile long persistedWatermark;
+
+    @PostConstruct
+    synchronized void postConstruct() {
+        watermark = updateOffsetRepository.findById(UpdateOffsetEntity.DEFAULT_ID)
+            .map(UpdateOffsetEntity::getLastUpdateId)
+            .orElse(0L);
+        maxAccepted = watermark;
+        persistedWatermark = watermark;
+        log.info("resuming after update id {}", watermark);
+    }
+
+    /**
+     * @return true if the update was not seen before and should be processed, false if it's a duplicate
+     */
+    public synchronized boolean tryBegin(long updateId) {
+        if(updateId <= watermark || inFlight.contains(updateId) || recent.contains(updateId)){
+            return false;
+        }
+        inFlight.add(updateId);
+        recent.add(updateId);
+        while (recent.size() > botProperties.getTelegram().getUpdateDeduplicationWindow()) {
+            recent.removeFirst();
+        }
+        maxAccepted = Math.max(maxAccepted, updateId);
+        return true;
+    }
+
+    public synchronized void complete(long updateId) {
+        inFlight.remove(updateId);
+        watermark = inFlight.isEmpty() ? maxAccepted : inFlight.first() - 1;
+    }
+
+    /**
+     * for an update that was accepted but won't be processed, e.g. it was rejected during shutdown.
+     * It stays in flight, so the watermark never passes it and it's fetched again after the restart.
+     */
+    public synchronized void abandon(long updateId) {
+        inFlight.add(updateId);
+    }
+
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * generates the getUpdates requests for long polling
+     * @param lastReceivedUpdate highest update id the current polling session received, 0 right after start
+     */
+    public GetUpdates nextGetUpdates(Integer lastReceivedUpdate) {
+        /*
+            Telegram drops every update below the offset we send, so right after a restart we continue behind
+            the persisted watermark and get everything that was not processed yet.
+            Afterwards we have to confirm what we received, otherwise telegram answers every poll immediately
+            with the updates still running and we'd spin.
+         */
+        long lastHandled = Math.max(lastReceivedUpdate, getWatermark());
+        return GetUpdates.builder()
+            .offset(Math.toIntExact(lastHandled + 1))
+            .limit(100)
+            .timeout(50)
+            .build();
+    }
+
+    @Scheduled(fixedDelayString = "${better-tape-bot.telegram.update-offset-flush-interval:1s}")
+    void flush() {
+        long current = getWatermark();
+        if(current == persistedWatermark){
+            return;
+        }
+        updateOffsetRepository.save(UpdateOffsetEntity.builder()
+            .id(UpdateOffsetEntity.DEFAULT_ID)
+            .lastUpdateId(current)
+            .build());
+        persistedWatermark = current;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        flush();
+    }
+}
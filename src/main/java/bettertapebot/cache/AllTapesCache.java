@@ -0,0 +1,96 @@
+package bettertapebot.cache;
+
+import bettertapebot.bot.TapePager;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    /all answers with the first page of the tapes, it's asked for far more often than the tapes change.
+    So the formatted page is kept, one variant for admins with the ids of the tapes and one for everybody else,
+    until anything that changes what /all shows invalidates them. The pages after it are loaded when they're turned to.
+
+    Invalidating happens right away and again once the transaction that changed the tapes completes, a /all that loaded
+    the tapes in between may have seen them before the change. Loads that started before an invalidation aren't kept.
+ */
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class AllTapesCache {
+
+    TapePager tapePager;
+    Counter hits;
+    Counter misses;
+
+    //first page by whether it shows the ids
+    Map<Boolean, TapePager.TapePage> rendered = new ConcurrentHashMap<>();
+
+    //counts invalidations, guarded by this
+    @NonFinal
+    long version;
+
+    public AllTapesCache(TapePager tapePager, MeterRegistry meterRegistry) {
+        this.tapePager = tapePager;
+        this.hits = counter(meterRegistry, "hit");
+        this.misses = counter(meterRegistry, "miss");
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("bettertapebot.cache.gets")
+            .description("lookups of the formatted page /all answers with")
+            .tag("cache", "all-tapes")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    /**
+     * @param withIds whether the ids of the tapes are shown, for admins
+     * @return the newest tapes with the buttons to the next page
+     */
+    public TapePager.TapePage get(boolean withIds) {
+        var cached = rendered.get(withIds);
+        if(cached != null){
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        long loadedVersion;
+        synchronized (this) {
+            loadedVersion = version;
+        }
+        var formatted = tapePager.firstPage(TapePager.TapeList.ALL, null, withIds);
+        synchronized (this) {
+            if(version == loadedVersion){
+                rendered.put(withIds, formatted);
+            }
+        }
+        return formatted;
+    }
+
+    /**
+     * to be called by everything that changes what /all shows
+     */
+    public void invalidate() {
+        clear();
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    clear();
+                }
+            });
+        }
+    }
+
+    private synchronized void clear() {
+        version++;
+        rendered.clear();
+    }
+}
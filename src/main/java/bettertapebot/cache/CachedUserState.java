@@ -0,0 +1,20 @@
+package bettertapebot.cache;
+
+import bettertapebot.repository.entity.UserState;
+import bettertapebot.repository.entity.UserStateEntity;
+
+/*
+    immutable copy of a UserStateEntity, only the username of the owner is kept as that's the foreign key
+ */
+public record CachedUserState(long chatId, UserState userState, Boolean adminMode, String owner){
+    
+    public static CachedUserState newChat(long chatId) {
+        return new CachedUserState(chatId, UserState.NEW_CHAT, null, null);
+    }
+    
+    public static CachedUserState of(UserStateEntity userStateEntity) {
+        var owner = userStateEntity.getOwner();
+        return new CachedUserState(userStateEntity.getChatId(), userStateEntity.getUserState(), userStateEntity.getAdminMode(),
+            owner == null ? null : owner.getUsername());
+    }
+}
@@ -11,7 +11,7 @@ import org.springframework.stereotype.Component;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 
@@ -21,7 +21,8 @@ import java.util.concurrent.TimeUnit;
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class TapeCache {
     BotProperties botProperties;
-    HashMap<Long, TapeCacheEntry> internalStorage = new HashMap<>();
+    //updates of different chats are processed in parallel partitions, so this must be thread-safe
+    ConcurrentHashMap<Long, TapeCacheEntry> internalStorage = new ConcurrentHashMap<>();
     
     public void put(long chatId, String tapeTitle) {
         internalStorage.put(chatId, new TapeCacheEntry(tapeTitle, Instant.now()));
@@ -0,0 +1,434 @@
+package bettertapebot.cache;
+
+import bettertapebot.properties.BotProperties;
+import bettertapebot.repository.UserRepository;
+import bettertapebot.repository.UserStateRepository;
+import bettertapebot.repository.entity.UserEntity;
+import bettertapebot.repository.entity.UserState;
+import bettertapebot.repository.entity.UserStateEntity;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.CustomLog;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/*
+    Keeps the state of every chat we talked to in memory, so resolving it doesn't cost a db round trip per message.
+
+    Reading: on a miss the state is loaded once, a chat without a row is a new chat, there's no need to insert one for it.
+    New chats aren't kept, only chats with a row, and those are forgotten again once they were idle for the ttl
+    and have nothing left to write. So the heap doesn't grow with every chat that ever wrote to the bot.
+    Writing: changes only get visible once the transaction that made them commits, until then only that transaction sees them.
+    After the commit they are written behind in batches. A chat going through e.g. the login dialog changes its state
+    several times within seconds, that way only the last state hits the db.
+    Deleting: goes straight to the db in the running transaction, the handlers rely on the rows being gone.
+
+    Everything that writes user states must go through here, otherwise the cache and the pending writes
+    happily overwrite what was changed in the db.
+ */
+@CustomLog
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class UserStateStore {
+    private static final String UPSERT = "INSERT INTO " + UserStateEntity.TABLE_NAME + " (chat_id, user_state, admin_mode, owner) VALUES (?, ?, ?, ?) " +
+        "ON CONFLICT (chat_id) DO UPDATE SET user_state = EXCLUDED.user_state, admin_mode = EXCLUDED.admin_mode, owner = EXCLUDED.owner";
+    private static final String DELETE = "DELETE FROM " + UserStateEntity.TABLE_NAME + " WHERE chat_id = ?";
+
+    BotProperties botProperties;
+    UserStateRepository userStateRepository;
+    UserRepository userRepository;
+    JdbcTemplate jdbcTemplate;
+    TransactionTemplate transactionTemplate;
+    LongSupplier clock;
+
+    //committed state of every chat that has a row and was active within the idle ttl
+    ConcurrentHashMap<Long, CachedUserState> states = new ConcurrentHashMap<>();
+
+    //when the chat's state was last used, only for the chats in states
+    ConcurrentHashMap<Long, Long> lastAccess = new ConcurrentHashMap<>();
+
+    //committed changes that are not in the db yet, the latest one per chat
+    ConcurrentHashMap<Long, PendingWrite> pending = new ConcurrentHashMap<>();
+
+    public UserStateStore(BotProperties botProperties, UserStateRepository userStateRepository, UserRepository userRepository,
+                          JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this(botProperties, userStateRepository, userRepository, jdbcTemplate, transactionManager, System::nanoTime);
+    }
+
+    UserStateStore(BotProperties botProperties, UserStateRepository userStateRepository, UserRepository userRepository,
+                   JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, LongSupplier clock) {
+        this.botProperties = botProperties;
+        this.userStateRepository = userStateRepository;
+        this.userRepository = userRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.clock = clock;
+    }
+
+    public CachedUserState get(long chatId) {
+        var write = transactionalWrites(false).get(chatId);
+        if(write != null){
+            return write.current() == null ? CachedUserState.newChat(chatId) : write.current();
+        }
+        var state = states.get(chatId);
+        if(state != null){
+            touch(chatId);
+            return state;
+        }
+        var loaded = userStateRepository.findById(chatId)
+            .map(CachedUserState::of)
+            .orElseGet(() -> CachedUserState.newChat(chatId));
+        return cacheLoaded(loaded);
+    }
+
+    /**
+     * loads the states of all given chats that are not known yet with a single query
+     */
+    public void preload(Collection<Long> chatIds) {
+        List<Long> missing = new ArrayList<>();
+        for (Long chatId : chatIds) {
+            if(!states.containsKey(chatId)){
+                missing.add(chatId);
+            }
+        }
+        if(missing.isEmpty()){
+            return;
+        }
+        for (UserStateEntity userStateEntity : userStateRepository.findAllById(missing)) {
+            cacheLoaded(CachedUserState.of(userStateEntity));
+            missing.remove(userStateEntity.getChatId());
+        }
+    }
+
+    private CachedUserState cacheLoaded(CachedUserState loaded) {
+        if(loaded.userState() == UserState.NEW_CHAT){
+            return loaded;
+        }
+        //a deleted row may have been written again by a flush that was already running, the pending delete wins
+        var write = pending.get(loaded.chatId());
+        if(write != null && write.getState() == null){
+            return CachedUserState.newChat(loaded.chatId());
+        }
+        touch(loaded.chatId());
+        var existing = states.putIfAbsent(loaded.chatId(), loaded);
+        return existing == null ? loaded : existing;
+    }
+
+    private void touch(long chatId) {
+        lastAccess.put(chatId, clock.getAsLong());
+    }
+
+    /**
+     * creates an entity for the handlers, the owner is only a reference that gets loaded when it's actually used
+     */
+    public UserStateEntity toEntity(CachedUserState state) {
+        return UserStateEntity.builder()
+            .chatId(state.chatId())
+            .userState(state.userState())
+            .adminMode(state.adminMode())
+            .owner(state.owner() == null ? null : userRepository.getReferenceById(state.owner()))
+            .build();
+    }
+
+    /**
+     * @param expected the state the change is based on, if someone else changed the chat in the meantime the change is dropped
+     */
+    public void put(CachedUserState expected, CachedUserState updated) {
+        var write = new TransactionalWrite(updated.chatId(), expected, updated, false);
+        var writes = transactionalWrites(true);
+        if(writes == null){
+            apply(write);
+            return;
+        }
+        writes.merge(updated.chatId(), write, (old, _) -> new TransactionalWrite(old.chatId(), old.expected(), updated, old.deleted()));
+    }
+
+    public void delete(long chatId) {
+        userStateRepository.deleteById(chatId);
+        var write = new TransactionalWrite(chatId, null, null, true);
+        var writes = transactionalWrites(true);
+        if(writes == null){
+            applyDelete(chatId);
+            return;
+        }
+        writes.put(chatId, write);
+    }
+
+    /**
+     * deletes the state of every chat the user is logged in with
+     * @return number of chats that were reset
+     */
+    public long deleteByOwner(UserEntity owner) {
+        //changes that were not written yet would be missed by the delete and counted wrong, so they go first
+        List<CachedUserState> unwritten = new ArrayList<>();
+        for (PendingWrite write : pending.values()) {
+            if(write.getState() != null && Objects.equals(write.getState().owner(), owner.getUsername())){
+                unwritten.add(write.getState());
+            }
+        }
+        write(unwritten);
+        long count = userStateRepository.deleteUserStateEntitiesByOwner(owner);
+        evictOwner(owner.getUsername());
+        return count;
+    }
+
+    /**
+     * forgets every chat of the user, e.g. because the db already removed them along with the user
+     */
+    public void evictOwner(String username) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            applyEvictOwner(username);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                applyEvictOwner(username);
+            }
+        });
+    }
+
+    /*
+        Changes of a transaction are collected here and only applied once it commits.
+        If it rolls back, e.g. when a handler failed, nobody ever saw them.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Long, TransactionalWrite> transactionalWrites(boolean create) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()){
+            return create ? null : Map.of();
+        }
+        var writes = (Map<Long, TransactionalWrite>) TransactionSynchronizationManager.getResource(this);
+        if(writes != null || !create){
+            return writes == null ? Map.of() : writes;
+        }
+        Map<Long, TransactionalWrite> newWrites = new LinkedHashMap<>();
+        TransactionSynchronizationManager.bindResource(this, newWrites);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                newWrites.values().forEach(UserStateStore.this::apply);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResource(UserStateStore.this);
+            }
+        });
+        return newWrites;
+    }
+
+    private void apply(TransactionalWrite write) {
+        var chatId = write.chatId();
+        if(write.deleted()){
+            //the delete always wins, it already happened in the db
+            applyDelete(chatId);
+            if(write.current() != null){
+                states.compute(chatId, (_, _) -> dirty(chatId, write.current()));
+            }
+            return;
+        }
+        var applied = new AtomicBoolean();
+        //compute keeps the evictor from removing the chat before the change is pending
+        states.compute(chatId, (_, existing) -> {
+            //new chats aren't cached, if there's still none nobody else got a row for the chat in the meantime
+            boolean unchanged = existing == null ? write.expected().userState() == UserState.NEW_CHAT : existing.equals(write.expected());
+            if(!unchanged){
+                return existing;
+            }
+            applied.set(true);
+            return dirty(chatId, write.current());
+        });
+        if(!applied.get()){
+            log.debug("state of chat {} was changed concurrently, dropping change to {}", chatId, write.current().userState());
+        }
+    }
+
+    private CachedUserState dirty(long chatId, CachedUserState state) {
+        touch(chatId);
+        markDirty(chatId, state);
+        return state;
+    }
+
+    private void applyDelete(long chatId) {
+        states.remove(chatId);
+        lastAccess.remove(chatId);
+        markDirty(chatId, null);
+    }
+
+    private void applyEvictOwner(String username) {
+        for (CachedUserState state : states.values()) {
+            if(Objects.equals(state.owner(), username)){
+                applyDelete(state.chatId());
+            }
+        }
+        for (PendingWrite write : pending.values()) {
+            if(write.getState() != null && Objects.equals(write.getState().owner(), username)){
+                markDirty(write.getState().chatId(), null);
+            }
+        }
+    }
+
+    private void markDirty(long chatId, CachedUserState state) {
+        long now = clock.getAsLong();
+        pending.merge(chatId, new PendingWrite(state, now, now), (old, _) -> new PendingWrite(state, old.getFirstChanged(), now));
+    }
+
+    @Scheduled(fixedDelayString = "${better-tape-bot.user-state-store.flush-interval:1s}")
+    void flush() {
+        flush(false);
+    }
+
+    /**
+     * forgets the chats that weren't used for the idle ttl, unless their state still has to be written
+     */
+    @Scheduled(fixedDelayString = "${better-tape-bot.user-state-store.eviction-interval:1m}")
+    void evictIdleChats() {
+        long now = clock.getAsLong();
+        long ttl = botProperties.getUserStateStore().getIdleTtl().toNanos();
+        for (Long chatId : states.keySet()) {
+            states.computeIfPresent(chatId, (_, state) -> {
+                var accessed = lastAccess.get(chatId);
+                if(accessed != null && now - accessed < ttl || pending.containsKey(chatId)){
+                    return state;
+                }
+                lastAccess.remove(chatId);
+                return null;
+            });
+        }
+        //a chat may have been evicted right after it was read
+        lastAccess.keySet().removeIf(chatId -> !states.containsKey(chatId));
+    }
+
+    /**
+     * writes every pending state right away, for readers that go to user_states directly
+     */
+    public void flushPending() {
+        flush(true);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        flush(true);
+    }
+
+    synchronized void flush(boolean everything) {
+        var properties = botProperties.getUserStateStore();
+        long now = clock.getAsLong();
+        long quietFor = properties.getFlushInterval().toNanos();
+        long maxStaleness = properties.getMaxStaleness().toNanos();
+
+        List<Map.Entry<Long, PendingWrite>> due = new ArrayList<>();
+        for (Map.Entry<Long, PendingWrite> entry : pending.entrySet()) {
+            var write = entry.getValue();
+            if(everything || now - write.getLastChanged() >= quietFor || now - write.getFirstChanged() >= maxStaleness){
+                due.add(Map.entry(entry.getKey(), write));
+            }
+        }
+
+        for (int from = 0; from < due.size(); from += properties.getBatchSize()) {
+            var batch = due.subList(from, Math.min(due.size(), from + properties.getBatchSize()));
+            try {
+                transactionTemplate.executeWithoutResult(_ -> writeBatch(batch));
+            }
+            catch (DataIntegrityViolationException e) {
+                log.warn("writing {} user states failed, retrying them one by one", batch.size(), e);
+                writeOneByOne(batch);
+                continue;
+            }
+            catch (RuntimeException e) {
+                //e.g. the db is not reachable, everything stays pending for the next try
+                log.error("writing {} user states failed", batch.size(), e);
+                return;
+            }
+            for (Map.Entry<Long, PendingWrite> entry : batch) {
+                written(entry);
+            }
+        }
+    }
+
+    private void writeOneByOne(List<Map.Entry<Long, PendingWrite>> batch) {
+        for (Map.Entry<Long, PendingWrite> entry : batch) {
+            try {
+                transactionTemplate.executeWithoutResult(_ -> writeBatch(List.of(entry)));
+            }
+            catch (DataIntegrityViolationException e) {
+                //e.g. the owner got deleted in the meantime, retrying won't help
+                log.error("dropping state {} of chat {}, it can't be written", entry.getValue().getState(), entry.getKey(), e);
+            }
+            written(entry);
+        }
+    }
+
+    private void written(Map.Entry<Long, PendingWrite> entry) {
+        //if the chat changed again in the meantime the newer change stays pending
+        pending.remove(entry.getKey(), entry.getValue());
+    }
+
+    private void writeBatch(List<Map.Entry<Long, PendingWrite>> batch) {
+        List<CachedUserState> upserts = new ArrayList<>();
+        List<Object[]> deletes = new ArrayList<>();
+        for (Map.Entry<Long, PendingWrite> entry : batch) {
+            if(entry.getValue().getState() == null){
+                deletes.add(new Object[]{entry.getKey()});
+            }
+            else {
+                upserts.add(entry.getValue().getState());
+            }
+        }
+        if(!deletes.isEmpty()){
+            jdbcTemplate.batchUpdate(DELETE, deletes);
+        }
+        write(upserts);
+    }
+
+    private void write(List<CachedUserState> upserts) {
+        if(upserts.isEmpty()){
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>(upserts.size());
+        for (CachedUserState state : upserts) {
+            rows.add(new Object[]{state.chatId(), state.userState().name(), state.adminMode(), state.owner()});
+        }
+        jdbcTemplate.batchUpdate(UPSERT, rows);
+    }
+
+    int pendingWrites() {
+        return pending.size();
+    }
+
+    int cachedChats() {
+        return states.size();
+    }
+
+    //current null means the chat was deleted
+    private record TransactionalWrite(long chatId, CachedUserState expected, CachedUserState current, boolean deleted){}
+
+    //state null means the row has to be deleted, no record as it's compared by identity, so a newer write with the same content isn't removed by accident
+    @Getter
+    @RequiredArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    private static final class PendingWrite {
+        CachedUserState state;
+        long firstChanged;
+        long lastChanged;
+    }
+}
@@ -1,13 +1,25 @@
 package bettertapebot.config;
 
+import bettertapebot.bot.TelegramWebhookHandler;
 import bettertapebot.properties.BotProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.okhttp3.OkHttpConnectionPoolMetrics;
 import jakarta.persistence.EntityManagerFactory;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
 import org.telegram.telegrambots.client.okhttp.OkHttpTelegramClient;
 import org.telegram.telegrambots.meta.generics.TelegramClient;
 
+import java.util.concurrent.TimeUnit;
+
 @Configuration
 public class ContextConfig {
     
@@ -16,9 +28,36 @@ public class ContextConfig {
         return new JpaTransactionManager(emf);
     }
 
+    /*
+        one client for every call to the bot api, so all outbound workers share its pool of kept alive connections.
+        Calls are executed synchronously on the virtual worker threads, okhttp's own dispatcher isn't involved.
+     */
+    @Bean
+    public OkHttpClient telegramHttpClient(BotProperties botProperties, MeterRegistry meterRegistry){
+        var properties = botProperties.getTelegram().getHttpClient();
+        var connectionPool = new ConnectionPool(properties.getMaxIdleConnections(), properties.getKeepAlive().toMillis(), TimeUnit.MILLISECONDS);
+        new OkHttpConnectionPoolMetrics(connectionPool, TelegramHttpEventListener.METRIC_NAME + ".pool", Tags.empty())
+            .bindTo(meterRegistry);
+        return new OkHttpClient.Builder()
+            .connectionPool(connectionPool)
+            .connectTimeout(properties.getConnectTimeout())
+            .readTimeout(properties.getReadTimeout())
+            .callTimeout(properties.getCallTimeout())
+            .eventListener(new TelegramHttpEventListener(meterRegistry))
+            .build();
+    }
+
+    @Bean
+    public TelegramClient telegramClient(BotProperties botProperties, OkHttpClient telegramHttpClient){
+        return new OkHttpTelegramClient(telegramHttpClient, botProperties.getTelegram().getToken());
+    }
+    
     @Bean
-    public TelegramClient telegramClient(BotProperties botProperties){
-        return new OkHttpTelegramClient(botProperties.getTelegram().getToken());
+    @ConditionalOnProperty(prefix = "better-tape-bot.telegram.webhook", name = "enabled", havingValue = "true")
+    public RouterFunction<ServerResponse> telegramWebhookRoute(BotProperties botProperties, TelegramWebhookHandler telegramWebhookHandler){
+        return RouterFunctions.route()
+            .POST(botProperties.getTelegram().getWebhook().getPath(), telegramWebhookHandler::handle)
+            .build();
     }
 }
 
@@ -0,0 +1,79 @@
+package bettertapebot.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.okhttp3.OkHttpMetricsEventListener;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+/*
+    Times every call to the bot api like micrometer does and counts how often a call got a pooled connection
+    and how often it had to open a new one, which shows if keep alive works.
+    OkHttp takes a single listener, so this one passes the call events on to micrometer's.
+ */
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+class TelegramHttpEventListener extends EventListener {
+    static final String METRIC_NAME = "bettertapebot.telegram.http";
+
+    OkHttpMetricsEventListener calls;
+    Counter connectionsOpened;
+    Counter connectionsAcquired;
+
+    TelegramHttpEventListener(MeterRegistry meterRegistry) {
+        this.calls = OkHttpMetricsEventListener.builder(meterRegistry, METRIC_NAME)
+            //the path holds the token, only the api method ends up in the tag
+            .uriMapper(TelegramHttpEventListener::apiMethod)
+            .includeHostTag(false)
+            .build();
+        this.connectionsOpened = Counter.builder(METRIC_NAME + ".connections.opened")
+            .description("connections opened to the bot api, every one costs a tls handshake")
+            .register(meterRegistry);
+        this.connectionsAcquired = Counter.builder(METRIC_NAME + ".connections.acquired")
+            .description("connections taken by calls to the bot api, new or pooled")
+            .register(meterRegistry);
+    }
+
+    static String apiMethod(Request request) {
+        return request.url().pathSegments().getLast();
+    }
+
+    @Override
+    public void callStart(Call call) {
+        calls.callStart(call);
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        calls.responseHeadersEnd(call, response);
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        calls.callEnd(call);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        calls.callFailed(call, ioe);
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        connectionsOpened.increment();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        connectionsAcquired.increment();
+    }
+}
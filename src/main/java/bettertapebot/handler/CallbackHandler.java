@@ -0,0 +1,17 @@
+package bettertapebot.handler;
+
+import bettertapebot.repository.entity.UserStateEntity;
+import org.jspecify.annotations.NonNull;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+
+/*
+    Handles the inline buttons below our messages. Their data starts with the prefix of the handler, followed by a colon.
+    Pressing a button is handled without a transaction, the entity has user state and admin mode from the cache,
+    whatever the handler changes on it is dropped.
+ */
+public interface CallbackHandler {
+
+    @NonNull String forPrefix();
+
+    void handleCallback(@NonNull UserStateEntity userStateEntity, @NonNull CallbackQuery callbackQuery);
+}
@@ -4,6 +4,7 @@ import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.experimental.FieldDefaults;
+import org.jspecify.annotations.NonNull;
 
 @Getter
 @AllArgsConstructor
@@ -44,19 +45,74 @@ public enum Command {
         return String.format("%s - %s", this.getCommand(), this.getHelpText());
     }
     
-    public static Command fromCommandString(String in){
-        if(in == null){
+    /*
+        Every update runs through this, so instead of comparing against all commands we look it up in a small
+        open addressing table. The hash is built from case-folded chars, so /HELP lands in the same slot as /help.
+        In groups telegram sends commands as /help@SomeBot, we just stop hashing and comparing at the @
+        instead of cutting it off, so there's no substring or lowercase copy.
+     */
+    private static final Command[] LOOKUP_TABLE = new Command[Integer.highestOneBit(values().length) << 2];
+    private static final int LOOKUP_MASK = LOOKUP_TABLE.length - 1;
+    
+    static {
+        for (Command command : values()) {
+            int slot = hash(command.getCommand(), command.getCommand().length()) & LOOKUP_MASK;
+            while (LOOKUP_TABLE[slot] != null) {
+                slot = (slot + 1) & LOOKUP_MASK;
+            }
+            LOOKUP_TABLE[slot] = command;
+        }
+    }
+    
+    /**
+     * @param botUsername our name without the @, a command for another bot is not found. Null if it's not known,
+     *                    then any name after the command is accepted
+     */
+    public static Command fromCommandString(String in, String botUsername){
+        if(in == null || !isAddressedTo(in, botUsername)){
             return null;
         }
         
-        for (Command command : Command.values()) {
-            if(command.getCommand().equalsIgnoreCase(in)){
-                return command;
+        int end = in.indexOf('@');
+        if(end < 0){
+            end = in.length();
+        }
+        for (int slot = hash(in, end) & LOOKUP_MASK; LOOKUP_TABLE[slot] != null; slot = (slot + 1) & LOOKUP_MASK) {
+            String command = LOOKUP_TABLE[slot].getCommand();
+            if(command.length() == end && command.regionMatches(true, 0, in, 0, end)){
+                return LOOKUP_TABLE[slot];
             }
         }
         return null;
     }
     
+    /**
+     * @return false if the command names another bot, e.g. /all@SomeOtherBot in a group
+     */
+    public static boolean isAddressedTo(@NonNull String in, String botUsername){
+        int at = in.indexOf('@');
+        if(at < 0 || botUsername == null){
+            return true;
+        }
+        return in.length() - at - 1 == botUsername.length() && in.regionMatches(true, at + 1, botUsername, 0, botUsername.length());
+    }
+    
+    //folds case the same way regionMatches(ignoreCase) compares, so everything it considers equal has the same hash
+    private static int hash(String in, int end) {
+        int hash = 0;
+        for (int i = 0; i < end; i++) {
+            char c = in.charAt(i);
+            if(c >= 'A' && c <= 'Z'){
+                c += 'a' - 'A';
+            }
+            else if(c >= 128){
+                c = Character.toLowerCase(Character.toUpperCase(c));
+            }
+            hash = 31 * hash + c;
+        }
+        return hash ^ (hash >>> 16);
+    }
+    
     public enum CommandLevel {
         GENERAL, LOGGED_IN, ADMIN
     }
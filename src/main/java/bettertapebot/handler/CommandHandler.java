@@ -5,4 +5,21 @@ import org.jspecify.annotations.NonNull;
 public interface CommandHandler extends Handler {
 
     @NonNull Command forCommand();
+    
+    /*
+        Everything but FULL is handled without a transaction and whatever the handler changes on the entity is dropped.
+        Commands that are sent a lot by new chats, like /help, shouldn't cost a db round trip.
+     */
+    default @NonNull StateAccess stateAccess() {
+        return StateAccess.FULL;
+    }
+    
+    enum StateAccess {
+        //only the chat id is set
+        NONE,
+        //user state and admin mode are set, they come from the cache, the owner is missing
+        READ_ONLY,
+        //the handler gets everything and may change it
+        FULL
+    }
 }
@@ -1,10 +1,11 @@
 package bettertapebot.handler.admin;
 
+import bettertapebot.bot.BroadcastJobService;
 import bettertapebot.bot.ResponseService;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
 import bettertapebot.handler.StateHandler;
-import bettertapebot.repository.UserStateRepository;
+import bettertapebot.repository.entity.BroadcastAudience;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
 import lombok.AccessLevel;
@@ -23,7 +24,7 @@ import java.util.Set;
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class BroadcastHandler implements CommandHandler, StateHandler {
     
-    UserStateRepository userStateRepository;
+    BroadcastJobService broadcastJobService;
     ResponseService responseService;
     
     @Override
@@ -49,10 +50,7 @@ public class BroadcastHandler implements CommandHandler, StateHandler {
             return;
         }
         
-        var chats = userStateRepository.findUserStateEntitiesByUserStateIn(UserState.LOGGED_IN_STATES)
-            .stream().map(UserStateEntity::getChatId).toList();
-        
         userStateEntity.setUserState(UserState.LOGGED_IN);
-        responseService.broadcast(chats, message);
+        broadcastJobService.start(BroadcastAudience.LOGGED_IN, message, userStateEntity.getChatId());
     }
 }
@@ -1,6 +1,7 @@
 package bettertapebot.handler.admin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.AllTapesCache;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
 import bettertapebot.handler.StateHandler;
@@ -28,6 +29,7 @@ public class DeleteTapeHandler implements CommandHandler, StateHandler {
 
     TapeRepository tapeRepository;
     ResponseService responseService;
+    AllTapesCache allTapesCache;
     
     @Override
     public @NonNull Command forCommand() {
@@ -62,6 +64,7 @@ public class DeleteTapeHandler implements CommandHandler, StateHandler {
         
         var deleteOptional = tapeRepository.deleteTapeEntityById(id);
         if(deleteOptional.isPresent()){
+            allTapesCache.invalidate();
             log.info("deleting tape with id {} on request of {}", id, userStateEntity.getOwner().getUsername());
             userStateEntity.setUserState(UserState.LOGGED_IN);
         }
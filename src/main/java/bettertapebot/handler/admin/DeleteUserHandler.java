@@ -1,6 +1,8 @@
 package bettertapebot.handler.admin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.AllTapesCache;
+import bettertapebot.cache.UserStateStore;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
 import bettertapebot.handler.StateHandler;
@@ -26,7 +28,9 @@ import java.util.Set;
 public class DeleteUserHandler implements CommandHandler, StateHandler {
 
     UserRepository userRepository;
+    UserStateStore userStateStore;
     ResponseService responseService;
+    AllTapesCache allTapesCache;
     
     @Override
     public @NonNull Command forCommand() {
@@ -55,6 +59,10 @@ public class DeleteUserHandler implements CommandHandler, StateHandler {
         var usernameToRemove = MessageCleaner.getFirstWord(message);
         var deletedEntity = userRepository.deleteByUsername(usernameToRemove);
         if(deletedEntity.isPresent()){
+            //the db removes the user's chats along with the user
+            userStateStore.evictOwner(usernameToRemove);
+            //and hands the user's tapes to the default user
+            allTapesCache.invalidate();
             log.info("deleting user with username {} on request of {}", usernameToRemove, userStateEntity.getOwner().getUsername());
             userStateEntity.setUserState(UserState.LOGGED_IN);
         }
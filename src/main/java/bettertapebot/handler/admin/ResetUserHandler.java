@@ -1,11 +1,11 @@
 package bettertapebot.handler.admin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.UserStateStore;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
 import bettertapebot.handler.StateHandler;
 import bettertapebot.repository.UserRepository;
-import bettertapebot.repository.UserStateRepository;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
 import bettertapebot.util.MessageCleaner;
@@ -27,7 +27,7 @@ import java.util.Set;
 public class ResetUserHandler implements CommandHandler, StateHandler {
 
     ResponseService responseService;
-    UserStateRepository userStateRepository;
+    UserStateStore userStateStore;
     UserRepository userRepository;
 
     @Override
@@ -63,7 +63,7 @@ public class ResetUserHandler implements CommandHandler, StateHandler {
         }
         
         var userEntity = user.get();
-        long count = userStateRepository.deleteUserStateEntitiesByOwner(userEntity);
+        long count = userStateStore.deleteByOwner(userEntity);
         var response = String.format("%s in %d chats zurückgesetzt", givenUsername, count);
         userStateEntity.setUserState(UserState.LOGGED_IN);
         responseService.send(userStateEntity.getChatId(), response);
@@ -11,7 +11,6 @@ import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import org.jspecify.annotations.NonNull;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -31,7 +30,11 @@ public class GetDsgvoHandler implements CommandHandler {
     }
 
     @Override
-    @Transactional
+    public @NonNull StateAccess stateAccess() {
+        return StateAccess.NONE;
+    }
+
+    @Override
     public void handleMessage(@NonNull UserStateEntity userStateEntity, String message) {
         try {
             String dsgvo = Files.readString(botProperties.getGdpr().getResource().getFilePath());
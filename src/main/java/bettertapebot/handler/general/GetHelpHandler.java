@@ -10,7 +10,6 @@ import lombok.RequiredArgsConstructor;
 import lombok.experimental.FieldDefaults;
 import org.jspecify.annotations.NonNull;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Arrays;
 import java.util.stream.Collectors;
@@ -29,7 +28,11 @@ public class GetHelpHandler implements CommandHandler {
     }
 
     @Override
-    @Transactional
+    public @NonNull StateAccess stateAccess() {
+        return StateAccess.READ_ONLY;
+    }
+
+    @Override
     public void handleMessage(@NonNull UserStateEntity userStateEntity, String message) {
         var userState = userStateEntity.getUserState();
         
@@ -1,13 +1,13 @@
 package bettertapebot.handler.general;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.UserStateStore;
 import bettertapebot.config.PasscodeGenerator;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
 import bettertapebot.handler.StateHandler;
 import bettertapebot.properties.BotProperties;
 import bettertapebot.repository.UserRepository;
-import bettertapebot.repository.UserStateRepository;
 import bettertapebot.repository.entity.UserEntity;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
@@ -40,7 +40,7 @@ public class RegisterHandler implements CommandHandler, StateHandler {
     ResponseService responseService;
     PasscodeGenerator passcodeGenerator;
     UserRepository userRepository;
-    UserStateRepository userStateRepository;
+    UserStateStore userStateStore;
     
     @NonFinal
     ReplyKeyboardMarkup dsgvoMarkup;
@@ -142,7 +142,7 @@ public class RegisterHandler implements CommandHandler, StateHandler {
     
     private void validateGdprResponse(UserStateEntity userStateEntity, String response) {
         if(botProperties.getGdpr().getDenyText().equalsIgnoreCase(response)){
-            userStateRepository.deleteById(userStateEntity.getChatId());
+            userStateStore.delete(userStateEntity.getChatId());
             responseService.send(userStateEntity.getChatId(), "Tut mir Leid, aber ohne Einverständnis kann ich dich nicht reinlassen. Ich habe alle Informationen über diesen Chat gelöscht. Ciao!");
             return;
         }
@@ -1,9 +1,9 @@
 package bettertapebot.handler.general;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.UserStateStore;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
-import bettertapebot.repository.UserStateRepository;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
 import lombok.AccessLevel;
@@ -20,7 +20,7 @@ import org.springframework.transaction.annotation.Transactional;
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public class ResetStateHandler implements CommandHandler {
 
-    UserStateRepository userStateRepository;
+    UserStateStore userStateStore;
     ResponseService responseService;
 
     @Override
@@ -35,7 +35,7 @@ public class ResetStateHandler implements CommandHandler {
             responseService.send(userStateEntity.getChatId(), "chat unbekannt, kein reset nötig");
             return;
         }
-        userStateRepository.deleteById(userStateEntity.getChatId());
+        userStateStore.delete(userStateEntity.getChatId());
         var response = String.format("Chat wurde zurückgesetzt, benutze %s oder %s um von vorne zu beginnen", Command.REGISTER.getCommand(), Command.LOGIN.getCommand());
         responseService.send(userStateEntity.getChatId(), response);
     }
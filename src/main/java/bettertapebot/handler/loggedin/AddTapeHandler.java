@@ -1,6 +1,8 @@
 package bettertapebot.handler.loggedin;
 
+import bettertapebot.bot.BroadcastJobService;
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.AllTapesCache;
 import bettertapebot.cache.TapeCache;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
@@ -8,7 +10,7 @@ import bettertapebot.handler.StateHandler;
 import bettertapebot.properties.BotProperties;
 import bettertapebot.repository.TapeRepository;
 import bettertapebot.repository.UserRepository;
-import bettertapebot.repository.UserStateRepository;
+import bettertapebot.repository.entity.BroadcastAudience;
 import bettertapebot.repository.entity.TapeEntity;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
@@ -32,10 +34,11 @@ import java.util.Set;
 public class AddTapeHandler implements CommandHandler, StateHandler {
     
     TapeCache tapeCache;
-    UserStateRepository userStateRepository;
+    AllTapesCache allTapesCache;
     TapeRepository tapeRepository;
     UserRepository userRepository;
     ResponseService responseService;
+    BroadcastJobService broadcastJobService;
     BotProperties botProperties;
     
     @Override
@@ -90,13 +93,10 @@ public class AddTapeHandler implements CommandHandler, StateHandler {
             .director(director)
             .dateAdded(tapeCacheEntry.dateAdded())
             .build());
+        allTapesCache.invalidate();
         
         userStateEntity.setUserState(UserState.LOGGED_IN);
         var formattedTape = TapeFormatter.formatTape(tapeEntity, botProperties.getOutputTimezone(), false);
-        var activeIds = userStateRepository.findAllByUserStateIsInAndOwner_WantsAbonnement(UserState.LOGGED_IN_STATES, true)
-            .stream()
-            .map(UserStateEntity::getChatId)
-            .toList();
-        responseService.broadcast(activeIds, formattedTape);
+        broadcastJobService.start(BroadcastAudience.SUBSCRIBERS, formattedTape, null);
     }
 }
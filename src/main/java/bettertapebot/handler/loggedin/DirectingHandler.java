@@ -1,16 +1,14 @@
 package bettertapebot.handler.loggedin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.bot.TapePager;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
 import bettertapebot.handler.StateHandler;
-import bettertapebot.properties.BotProperties;
-import bettertapebot.repository.TapeRepository;
 import bettertapebot.repository.UserRepository;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
 import bettertapebot.util.MessageCleaner;
-import bettertapebot.util.TapeFormatter;
 import lombok.AccessLevel;
 import lombok.CustomLog;
 import lombok.RequiredArgsConstructor;
@@ -30,8 +28,7 @@ public class DirectingHandler implements CommandHandler, StateHandler {
 
     ResponseService responseService;
     UserRepository userRepository;
-    TapeRepository tapeRepository;
-    BotProperties botProperties;
+    TapePager tapePager;
 
     @Override
     public @NonNull Command forCommand() {
@@ -66,10 +63,8 @@ public class DirectingHandler implements CommandHandler, StateHandler {
         }
         
         var director = directorOptional.get();
-        var tapes = tapeRepository.findAllByDirector(director);
-        boolean isAdmin = userStateEntity.isAdminModeActive();
-        var response = TapeFormatter.formatTapes(tapes, botProperties.getOutputTimezone(), isAdmin);
-        responseService.send(userStateEntity.getChatId(), response);
+        var page = tapePager.firstPage(TapePager.TapeList.DIRECTING, director, userStateEntity.isAdminModeActive());
+        tapePager.send(userStateEntity.getChatId(), page);
         userStateEntity.setUserState(UserState.LOGGED_IN);
     }
 }
@@ -1,13 +1,11 @@
 package bettertapebot.handler.loggedin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.bot.TapePager;
+import bettertapebot.cache.AllTapesCache;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
-import bettertapebot.properties.BotProperties;
-import bettertapebot.repository.TapeRepository;
-import bettertapebot.repository.entity.TapeEntity;
 import bettertapebot.repository.entity.UserStateEntity;
-import bettertapebot.util.TapeFormatter;
 import lombok.AccessLevel;
 import lombok.CustomLog;
 import lombok.RequiredArgsConstructor;
@@ -16,8 +14,6 @@ import org.jspecify.annotations.NonNull;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.List;
-
 @CustomLog
 @Component
 @RequiredArgsConstructor
@@ -25,8 +21,8 @@ import java.util.List;
 public class GetAllHandler implements CommandHandler {
 
     ResponseService responseService;
-    TapeRepository tapeRepository;
-    BotProperties botProperties;
+    AllTapesCache allTapesCache;
+    TapePager tapePager;
 
     @Override
     public @NonNull Command forCommand() {
@@ -41,14 +37,7 @@ public class GetAllHandler implements CommandHandler {
             return;
         }
         
-        List<TapeEntity> tapes = tapeRepository.findAllByOrderByDateAddedDesc();
-        if(tapes.isEmpty()){
-            responseService.send(userStateEntity.getChatId(), "Es gibt noch keine Einträge");
-            return;
-        }
-        
-        boolean isAdmin = userStateEntity.isAdminModeActive();
-        var response = TapeFormatter.formatTapes(tapes, botProperties.getOutputTimezone(), isAdmin);
-        responseService.send(userStateEntity.getChatId(), response);
+        //the empty list is cached just the same
+        tapePager.send(userStateEntity.getChatId(), allTapesCache.get(userStateEntity.isAdminModeActive()));
     }
 }
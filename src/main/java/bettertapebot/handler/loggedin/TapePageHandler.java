@@ -0,0 +1,45 @@
+package bettertapebot.handler.loggedin;
+
+import bettertapebot.bot.ResponseService;
+import bettertapebot.bot.TapePager;
+import bettertapebot.handler.CallbackHandler;
+import bettertapebot.repository.entity.UserStateEntity;
+import lombok.AccessLevel;
+import lombok.CustomLog;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+import org.jspecify.annotations.NonNull;
+import org.springframework.stereotype.Component;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+
+@CustomLog
+@Component
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class TapePageHandler implements CallbackHandler {
+
+    ResponseService responseService;
+    TapePager tapePager;
+
+    @Override
+    public @NonNull String forPrefix() {
+        return TapePager.CALLBACK_PREFIX;
+    }
+
+    @Override
+    public void handleCallback(@NonNull UserStateEntity userStateEntity, @NonNull CallbackQuery callbackQuery) {
+        if(!userStateEntity.getUserState().isLoggedIn()){
+            responseService.answerCallbackQuery(callbackQuery.getId(), "Nur eingeloggte User können Tapes abfragen");
+            return;
+        }
+
+        var page = tapePager.page(callbackQuery.getData(), userStateEntity.isAdminModeActive());
+        if(page.isEmpty()){
+            //the tape the page starts behind was deleted, there's no telling where it would continue
+            responseService.answerCallbackQuery(callbackQuery.getId(), "Die Liste hat sich geändert, frag sie bitte neu ab");
+            return;
+        }
+        responseService.answerCallbackQuery(callbackQuery.getId(), null);
+        responseService.edit(userStateEntity.getChatId(), callbackQuery.getMessage().getMessageId(), page.get().text(), page.get().keyboard());
+    }
+}
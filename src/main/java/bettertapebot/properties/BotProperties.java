@@ -1,6 +1,8 @@
 package bettertapebot.properties;
 
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.AssertTrue;
+import jakarta.validation.constraints.DecimalMin;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.NotNull;
@@ -34,6 +36,13 @@ public class BotProperties {
     @NotNull
     ZoneId outputTimezone = ZoneId.of("Europe/Berlin");
     
+    /*
+     * tapes per page of /all, /starring and /directing,
+     * a page has less if they don't fit into a single message
+     */
+    @Positive
+    int tapesPageSize = 10;
+    
     
     @NotNull
     @Valid
@@ -55,6 +64,18 @@ public class BotProperties {
     @Valid
     TelegramProperties telegram = new TelegramProperties();
     
+    @NotNull
+    @Valid
+    UserStateStoreProperties userStateStore = new UserStateStoreProperties();
+    
+    @NotNull
+    @Valid
+    BroadcastProperties broadcast = new BroadcastProperties();
+    
+    @NotNull
+    @Valid
+    OutboxProperties outbox = new OutboxProperties();
+    
     @Data
     @Validated
     @FieldDefaults(level = AccessLevel.PRIVATE)
@@ -114,6 +135,97 @@ public class BotProperties {
         }
     }
 
+    @Data
+    @Validated
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class UserStateStoreProperties {
+        /*
+         * how often changed user states are written to the db,
+         * a chat's state is written once it didn't change for this long
+         */
+        @NotNull
+        Duration flushInterval = Duration.ofSeconds(1);
+        
+        /*
+         * a chat that keeps changing its state gets written at the latest after this time,
+         * queries over all chats like the broadcast recipients can be this much behind
+         */
+        @NotNull
+        Duration maxStaleness = Duration.ofSeconds(10);
+        
+        /*
+         * max rows written in one jdbc batch
+         */
+        @Positive
+        int batchSize = 500;
+        
+        /*
+         * a chat whose state wasn't used for this long is forgotten and loaded again on its next message
+         */
+        @NotNull
+        Duration idleTtl = Duration.ofMinutes(30);
+        
+        /*
+         * how often chats are checked for being idle
+         */
+        @NotNull
+        Duration evictionInterval = Duration.ofMinutes(1);
+    }
+
+    @Data
+    @Validated
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class BroadcastProperties {
+        /*
+         * how often the next page of recipients of running broadcasts is queued,
+         * a page holds as many messages as the bulk limit lets through until the next one
+         */
+        @NotNull
+        Duration interval = Duration.ofSeconds(1);
+    }
+
+    @Data
+    @Validated
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class OutboxProperties {
+        /*
+         * max rows claimed, marked delivered or pruned with one statement
+         */
+        @Positive
+        int batchSize = 100;
+        
+        /*
+         * every commit wakes the relay right away, this is only how often it looks anyway
+         */
+        @NotNull
+        Duration pollInterval = Duration.ofSeconds(5);
+        
+        /*
+         * a claimed message that isn't delivered within this is relayed again, so it has to be longer than a message
+         * ever waits in the outbound queue. After a crash the undelivered messages go out once it's over
+         */
+        @NotNull
+        Duration claimTimeout = Duration.ofMinutes(10);
+        
+        @NotNull
+        Duration claimCheckInterval = Duration.ofMinutes(1);
+        
+        /*
+         * how often sent messages are marked delivered, after a crash the messages of this timespan are sent again
+         */
+        @NotNull
+        Duration deliveredFlushInterval = Duration.ofSeconds(1);
+        
+        /*
+         * delivered messages are kept this long before they are pruned
+         */
+        @NotNull
+        Duration retention = Duration.ofHours(1);
+        
+        @NotNull
+        Duration pruneInterval = Duration.ofMinutes(10);
+    }
+
     @Data
     @Validated
     @FieldDefaults(level = AccessLevel.PRIVATE)
@@ -132,5 +244,282 @@ public class BotProperties {
         
         @Positive
         int retryCountInCaseOfTooManyRequests = 5;
+        
+        /*
+         * virtual threads sending the queued messages of all chats, each one waits for one http call at a time,
+         * so with ~100ms per call it takes a few of them to keep up with the global limit
+         */
+        @Positive
+        int outboundWorkerCount = 8;
+        
+        /*
+         * updates of the same chat always land in the same partition and are processed in order,
+         * different partitions run in parallel, so this should roughly match the db connection pool size
+         */
+        @Positive
+        int updatePartitionCount = 10;
+        
+        /*
+         * max updates queued or processed at once, polling pauses when reached
+         */
+        @Positive
+        int maxUpdatesInFlight = 100;
+        
+        /*
+         * how many recent update ids are remembered to drop redelivered updates
+         */
+        @Positive
+        int updateDeduplicationWindow = 1000;
+        
+        /*
+         * how often the id of the last processed update is persisted, a crash may replay updates of this timespan
+         */
+        @NotNull
+        Duration updateOffsetFlushInterval = Duration.ofSeconds(1);
+        
+        /*
+         * process all updates of a polled page that land in the same partition in one transaction,
+         * saves a user state lookup and a commit per update.
+         * If an update fails, the updates before it are processed again and it's retried on its own,
+         * if loading the user states or the commit fails, every update of the page is processed on its own
+         */
+        boolean batchTransactions = false;
+        
+        @NotNull
+        @Valid
+        FloodProtectionProperties floodProtection = new FloodProtectionProperties();
+        
+        @NotNull
+        @Valid
+        OutboundRateLimitProperties outboundRateLimit = new OutboundRateLimitProperties();
+        
+        @NotNull
+        @Valid
+        AdaptivePacingProperties adaptivePacing = new AdaptivePacingProperties();
+        
+        @NotNull
+        @Valid
+        OutboundQueueProperties outboundQueue = new OutboundQueueProperties();
+        
+        @NotNull
+        @Valid
+        WebhookProperties webhook = new WebhookProperties();
+        
+        @NotNull
+        @Valid
+        HttpClientProperties httpClient = new HttpClientProperties();
+    }
+    
+    @Data
+    @Validated
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class FloodProtectionProperties {
+        boolean enabled = true;
+        
+        /*
+         * how many updates a chat may send in a row before it gets throttled
+         */
+        @Positive
+        int burst = 10;
+        
+        /*
+         * a throttled chat gets budget for one more update per interval
+         */
+        @NotNull
+        Duration refillInterval = Duration.ofSeconds(1);
+        
+        /*
+         * tell the chat once that it is throttled, otherwise its updates are dropped silently
+         */
+        boolean replyWhenThrottled = true;
+    }
+    
+    @Data
+    @Validated
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class OutboundRateLimitProperties {
+        /*
+         * Telegram allows a bot about 30 messages per second over all chats,
+         * they are spread evenly over the period, so no second ever sees more
+         */
+        @Positive
+        int globalLimit = 30;
+        
+        @NotNull
+        Duration globalPeriod = Duration.ofSeconds(1);
+        
+        /*
+         * Telegram allows 20 messages per minute in the same group,
+         * unlike the global limit they may go out in a burst as long as the period isn't exceeded
+         */
+        @Positive
+        int groupLimit = 20;
+        
+        @NotNull
+        Duration groupPeriod = Duration.ofMinutes(1);
+        
+        /*
+         * broadcasts and notifications may only use this many of the global messages per period,
+         * the rest is kept free so answers to users don't queue up behind them
+         */
+        @Positive
+        int bulkLimit = 24;
+    }
+    
+    @Data
+    @Validated
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class AdaptivePacingProperties {
+        /*
+         * speed up while telegram accepts our messages and slow down on 429, instead of the fixed chat delay and global limit
+         */
+        boolean enabled = false;
+        
+        /*
+         * the fastest a chat may get, telegram tolerates short bursts above one message per second
+         */
+        @NotNull
+        Duration minDelayBetweenMessagesForSameChat = Duration.ofMillis(200);
+        
+        /*
+         * the slowest a chat may get after repeated 429s
+         */
+        @NotNull
+        Duration maxDelayBetweenMessagesForSameChat = Duration.ofSeconds(10);
+        
+        /*
+         * every message sent without 429 shortens the delay of its chat by this
+         */
+        @NotNull
+        Duration chatSpeedUpStep = Duration.ofMillis(20);
+        
+        /*
+         * the global limit is never exceeded, but backs off down to this many messages per global period
+         */
+        @Positive
+        int globalMinLimit = 5;
+        
+        /*
+         * every message sent without 429 shortens the global interval between two messages by this
+         */
+        @NotNull
+        Duration globalSpeedUpStep = Duration.ofNanos(100_000);
+        
+        /*
+         * a 429 multiplies the delay of the chat, or the global interval if all chats were paused, by this
+         */
+        @DecimalMin("1.0")
+        double backoffFactor = 2.0;
+    }
+    
+    @Data
+    @Validated
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class OutboundQueueProperties {
+        /*
+         * max messages waiting for the same chat, at one per second a full queue takes this many seconds to send
+         */
+        @Positive
+        int capacity = 100;
+        
+        /*
+         * what happens to a message for a chat whose queue is full
+         */
+        @NotNull
+        OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+        
+        /*
+         * a chat that neither queued nor sent anything for this long is forgotten, including its pacing
+         */
+        @NotNull
+        Duration idleTtl = Duration.ofMinutes(1);
+        
+        /*
+         * while bulk messages wait for a chat, at most this many interactive ones go ahead of them in a row
+         */
+        @Positive
+        int interactiveBeforeBulk = 3;
+    }
+    
+    @Data
+    @Validated
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class HttpClientProperties {
+        /*
+         * connections to telegram kept open between calls, should be at least the outbound worker count
+         * so no worker has to do a new tls handshake for its next message
+         */
+        @Positive
+        int maxIdleConnections = 8;
+        
+        /*
+         * how long an unused connection stays open, the bot api keeps them alive for a few minutes
+         */
+        @NotNull
+        Duration keepAlive = Duration.ofMinutes(2);
+        
+        @NotNull
+        Duration connectTimeout = Duration.ofSeconds(5);
+        
+        @NotNull
+        Duration readTimeout = Duration.ofSeconds(15);
+        
+        /*
+         * upper bound for a whole call including retries of okhttp, a hanging call blocks its worker until then
+         */
+        @NotNull
+        Duration callTimeout = Duration.ofSeconds(30);
+    }
+    
+    public enum OverflowPolicy {
+        /*
+         * the oldest waiting message is dropped, bulk before interactive, the chat gets the latest answers
+         */
+        DROP_OLDEST,
+        /*
+         * the new message is dropped, the chat gets the answers in full up to the point the queue was full,
+         * unless it's interactive and there is a bulk message waiting, then the newest bulk message is dropped
+         */
+        DROP_NEWEST,
+        /*
+         * the new message is appended to the newest waiting one of the same priority if the text still fits into a single message,
+         * otherwise the oldest waiting message is dropped
+         */
+        COLLAPSE
+    }
+    
+    /*
+     * the webhook only changes how updates come in, the bot still has to run as a single instance:
+     * the order per chat, the cached user states, the flood protection and the outbound pacing all live in memory,
+     * a second instance behind a load balancer would mix up the order of a chat, read stale states and send twice as fast
+     */
+    @Data
+    @Validated
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    public static class WebhookProperties {
+        /*
+         * receive updates via webhook instead of long polling
+         */
+        boolean enabled = false;
+        
+        /*
+         * public base url telegram sends the updates to, e.g. https://bot.example.com
+         * required if enabled
+         */
+        String url;
+        
+        @NotBlank
+        String path = "/telegram/webhook";
+        
+        /*
+         * telegram sends this in every request, so we can make sure the update was not forged
+         * required if enabled, without it anyone could post updates in the name of any user, admins included
+         */
+        String secretToken;
+        
+        @AssertTrue(message = "url and secret-token are required for the webhook")
+        public boolean isConfiguredIfEnabled() {
+            return !enabled || url != null && !url.isBlank() && secretToken != null && !secretToken.isBlank();
+        }
     }
 }
@@ -0,0 +1,21 @@
+package bettertapebot.repository;
+
+import bettertapebot.repository.entity.BroadcastJobEntity;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface BroadcastJobRepository extends JpaRepository<BroadcastJobEntity, UUID> {
+    List<BroadcastJobEntity> findAllByFinishedAtIsNullOrderByCreatedAtAsc();
+
+    /*
+      locks the job until the transaction ends, empty if it's finished or someone else holds the lock right now
+     */
+    @Query(value = "SELECT * FROM " + BroadcastJobEntity.TABLE_NAME + " WHERE id = :id AND finished_at IS NULL FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    Optional<BroadcastJobEntity> claimRunning(UUID id);
+}
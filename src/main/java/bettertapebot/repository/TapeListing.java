@@ -0,0 +1,11 @@
+package bettertapebot.repository;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/*
+    what the lists of tapes show, read straight from the columns of the tapes table.
+    Star and director are the usernames, the foreign keys, so no user is loaded or joined for them
+    and nothing ends up in the persistence context to be dirty checked at the end of the transaction.
+ */
+public record TapeListing(UUID id, String title, String star, String director, Instant dateAdded) {}
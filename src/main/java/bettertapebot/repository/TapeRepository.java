@@ -2,7 +2,10 @@ package bettertapebot.repository;
 
 import bettertapebot.repository.entity.TapeEntity;
 import bettertapebot.repository.entity.UserEntity;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -13,9 +16,75 @@ import java.util.UUID;
 public interface TapeRepository extends JpaRepository<TapeEntity, UUID> {
     
     Optional<TapeEntity> findTopByOrderByDateAddedDesc();
-    List<TapeEntity> findAllByOrderByDateAddedDesc();
-    
-    List<TapeEntity> findAllByDirector(UserEntity userEntity);
-    List<TapeEntity> findAllByStar(UserEntity userEntity);
     Optional<TapeEntity> deleteTapeEntityById(UUID id);
+    
+    /*
+        Lists are paged by (date_added, id), newest first, the id only breaks ties between tapes added at the same time.
+        The cursor is the id of the tape a page ended with, its date and for the filtered lists its star or director
+        are looked up within the same query, so a page is a single range scan on the index no matter how far back it is.
+        If the cursor tape got deleted in the meantime, the page is empty.
+        Pages before the cursor are read in ascending order and have to be reversed.
+        The lists only select what's shown into a TapeListing, not a single entity gets managed for them.
+     */
+    @Query("""
+        SELECT new bettertapebot.repository.TapeListing(t.id, t.title, t.star.username, t.director.username, t.dateAdded)
+        FROM TapeEntity t
+        ORDER BY t.dateAdded DESC, t.id DESC""")
+    List<TapeListing> findFirstPage(Limit limit);
+    
+    @Query("""
+        SELECT new bettertapebot.repository.TapeListing(t.id, t.title, t.star.username, t.director.username, t.dateAdded)
+        FROM TapeEntity t
+        WHERE t.star = :star
+        ORDER BY t.dateAdded DESC, t.id DESC""")
+    List<TapeListing> findFirstStarPage(@Param("star") UserEntity star, Limit limit);
+    
+    @Query("""
+        SELECT new bettertapebot.repository.TapeListing(t.id, t.title, t.star.username, t.director.username, t.dateAdded)
+        FROM TapeEntity t
+        WHERE t.director = :director
+        ORDER BY t.dateAdded DESC, t.id DESC""")
+    List<TapeListing> findFirstDirectorPage(@Param("director") UserEntity director, Limit limit);
+    
+    @Query("""
+        SELECT new bettertapebot.repository.TapeListing(t.id, t.title, t.star.username, t.director.username, t.dateAdded)
+        FROM TapeEntity t JOIN TapeEntity c ON c.id = :cursor
+        WHERE (t.dateAdded, t.id) < (c.dateAdded, c.id)
+        ORDER BY t.dateAdded DESC, t.id DESC""")
+    List<TapeListing> findPageAfter(@Param("cursor") UUID cursor, Limit limit);
+    
+    @Query("""
+        SELECT new bettertapebot.repository.TapeListing(t.id, t.title, t.star.username, t.director.username, t.dateAdded)
+        FROM TapeEntity t JOIN TapeEntity c ON c.id = :cursor
+        WHERE (t.dateAdded, t.id) > (c.dateAdded, c.id)
+        ORDER BY t.dateAdded, t.id""")
+    List<TapeListing> findPageBefore(@Param("cursor") UUID cursor, Limit limit);
+    
+    @Query("""
+        SELECT new bettertapebot.repository.TapeListing(t.id, t.title, t.star.username, t.director.username, t.dateAdded)
+        FROM TapeEntity t JOIN TapeEntity c ON c.id = :cursor
+        WHERE t.star = c.star AND (t.dateAdded, t.id) < (c.dateAdded, c.id)
+        ORDER BY t.dateAdded DESC, t.id DESC""")
+    List<TapeListing> findStarPageAfter(@Param("cursor") UUID cursor, Limit limit);
+    
+    @Query("""
+        SELECT new bettertapebot.repository.TapeListing(t.id, t.title, t.star.username, t.director.username, t.dateAdded)
+        FROM TapeEntity t JOIN TapeEntity c ON c.id = :cursor
+        WHERE t.star = c.star AND (t.dateAdded, t.id) > (c.dateAdded, c.id)
+        ORDER BY t.dateAdded, t.id""")
+    List<TapeListing> findStarPageBefore(@Param("cursor") UUID cursor, Limit limit);
+    
+    @Query("""
+        SELECT new bettertapebot.repository.TapeListing(t.id, t.title, t.star.username, t.director.username, t.dateAdded)
+        FROM TapeEntity t JOIN TapeEntity c ON c.id = :cursor
+        WHERE t.director = c.director AND (t.dateAdded, t.id) < (c.dateAdded, c.id)
+        ORDER BY t.dateAdded DESC, t.id DESC""")
+    List<TapeListing> findDirectorPageAfter(@Param("cursor") UUID cursor, Limit limit);
+    
+    @Query("""
+        SELECT new bettertapebot.repository.TapeListing(t.id, t.title, t.star.username, t.director.username, t.dateAdded)
+        FROM TapeEntity t JOIN TapeEntity c ON c.id = :cursor
+        WHERE t.director = c.director AND (t.dateAdded, t.id) > (c.dateAdded, c.id)
+        ORDER BY t.dateAdded, t.id""")
+    List<TapeListing> findDirectorPageBefore(@Param("cursor") UUID cursor, Limit limit);
 }
@@ -0,0 +1,9 @@
+package bettertapebot.repository;
+
+import bettertapebot.repository.entity.UpdateOffsetEntity;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface UpdateOffsetRepository extends JpaRepository<UpdateOffsetEntity, String> {
+}
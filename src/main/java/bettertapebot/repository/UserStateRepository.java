@@ -3,6 +3,7 @@ package bettertapebot.repository;
 import bettertapebot.repository.entity.UserEntity;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
@@ -11,7 +12,9 @@ import java.util.List;
 
 @Repository
 public interface UserStateRepository extends JpaRepository<UserStateEntity, Long> {
-    List<UserStateEntity> findUserStateEntitiesByUserStateIn(Collection<UserState> userStates);
     long deleteUserStateEntitiesByOwner(UserEntity owner);
-    List<UserStateEntity> findAllByUserStateIsInAndOwner_WantsAbonnement(Collection<UserState> userStates, Boolean ownerWantsAbonnement);
+    long countByUserStateIn(Collection<UserState> userStates);
+    long countByUserStateInAndOwner_WantsAbonnement(Collection<UserState> userStates, Boolean ownerWantsAbonnement);
+    List<UserStateEntity> findAllByUserStateInAndChatIdGreaterThanOrderByChatIdAsc(Collection<UserState> userStates, Long chatId, Limit limit);
+    List<UserStateEntity> findAllByUserStateInAndOwner_WantsAbonnementAndChatIdGreaterThanOrderByChatIdAsc(Collection<UserState> userStates, Boolean ownerWantsAbonnement, Long chatId, Limit limit);
 }
@@ -0,0 +1,8 @@
+package bettertapebot.repository.entity;
+
+public enum BroadcastAudience {
+    //every logged in chat, for broadcasts of admins
+    LOGGED_IN,
+    //logged in chats whose owner wants to hear about new tapes
+    SUBSCRIBERS
+}
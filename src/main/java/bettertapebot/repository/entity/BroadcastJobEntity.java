@@ -0,0 +1,75 @@
+package bettertapebot.repository.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.FieldDefaults;
+
+import java.time.Instant;
+import java.util.UUID;
+
+@Getter
+@Setter
+@Entity
+@Table(name = BroadcastJobEntity.TABLE_NAME)
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder(toBuilder = true)
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class BroadcastJobEntity {
+    
+    public static final String TABLE_NAME = "broadcast_jobs";
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    @Column(name = "id")
+    UUID id;
+    
+    @Column(name = "text", nullable = false)
+    String text;
+    
+    @Enumerated(EnumType.STRING)
+    @Column(name = "audience", nullable = false)
+    BroadcastAudience audience;
+    
+    /*
+      chat that gets told how long it takes and when it's done, null for notifications nobody asked for
+     */
+    @Column(name = "requested_by")
+    Long requestedBy;
+    
+    /*
+      recipients are processed ordered by chat id, every chat up to and including this one got the message
+     */
+    @Column(name = "last_chat_id", nullable = false)
+    Long lastChatId;
+    
+    @Column(name = "sent_count", nullable = false)
+    Integer sentCount;
+    
+    /*
+      recipients when the job was started, chats logging in or out in the meantime change what is actually sent
+     */
+    @Column(name = "recipient_count", nullable = false)
+    Integer recipientCount;
+    
+    @Column(name = "created_at", nullable = false)
+    Instant createdAt;
+    
+    /*
+      null as long as the job is running
+     */
+    @Column(name = "finished_at")
+    Instant finishedAt;
+}
@@ -44,6 +44,6 @@ public class TapeEntity {
     @JoinColumn(name = "star", referencedColumnName = "username", nullable = false)
     UserEntity star;
 
-    @Column(name = "date_added")
+    @Column(name = "date_added", nullable = false)
     Instant dateAdded;
 }
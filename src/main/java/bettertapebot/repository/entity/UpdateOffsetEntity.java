@@ -0,0 +1,41 @@
+package bettertapebot.repository.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.FieldDefaults;
+
+@Getter
+@Setter
+@Entity
+@Table(name = UpdateOffsetEntity.TABLE_NAME)
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder(toBuilder = true)
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class UpdateOffsetEntity {
+
+    public static final String TABLE_NAME = "update_offsets";
+    
+    /*
+      we only run one bot per database, but keep a key so we don't need a schema change if that ever changes
+     */
+    public static final String DEFAULT_ID = "default";
+
+    @Id
+    @Column(name = "id")
+    String id;
+
+    /*
+      every update up to and including this id was processed
+     */
+    @Column(name = "last_update_id", nullable = false)
+    Long lastUpdateId;
+}
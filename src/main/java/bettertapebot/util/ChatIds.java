@@ -0,0 +1,21 @@
+package bettertapebot.util;
+
+import lombok.experimental.UtilityClass;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+@UtilityClass
+public class ChatIds {
+
+    /**
+     * @return the chat a message or a button pressed below one of our messages comes from, null for anything else
+     */
+    public Long of(Update update) {
+        if(update.hasMessage()){
+            return update.getMessage().getChatId();
+        }
+        if(update.hasCallbackQuery() && update.getCallbackQuery().getMessage() != null){
+            return update.getCallbackQuery().getMessage().getChatId();
+        }
+        return null;
+    }
+}
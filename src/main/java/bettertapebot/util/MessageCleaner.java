@@ -25,6 +25,13 @@ public class MessageCleaner {
     }
     
     public String removeCommand(@NonNull String message, @NonNull Command command) {
-        return message.substring(command.getCommand().length()).trim();
+        int start = command.getCommand().length();
+        //in groups the command is followed by the bot name, e.g. /add@BetterTapeBot, commands for other bots never get this far
+        if(start < message.length() && message.charAt(start) == '@'){
+            while (start < message.length() && !Character.isWhitespace(message.charAt(start))) {
+                start++;
+            }
+        }
+        return message.substring(start).trim();
     }
 }
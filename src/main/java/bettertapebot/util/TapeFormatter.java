@@ -1,39 +1,85 @@
 package bettertapebot.util;
 
+import bettertapebot.repository.TapeListing;
 import bettertapebot.repository.entity.TapeEntity;
 import lombok.experimental.UtilityClass;
 import org.jspecify.annotations.NonNull;
 
+import java.time.Instant;
 import java.time.ZoneId;
-import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
-import java.util.Collection;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+/*
+    Tapes are sent with parse mode HTML, everything users typed is escaped.
+    A tape is appended into one builder without any intermediate strings, the pages of /all format dozens of them at once.
+ */
 @UtilityClass
 public class TapeFormatter {
+    public static final String NO_TAPES = "Es gibt noch keine Einträge";
+    //roughly what a tape takes, so the builder rarely has to grow
+    private static final int TAPE_LENGTH_ESTIMATE = 96;
+    private static final int ID_LENGTH = 50;
     private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yy HH:mm");
-    private static final String TEMPLATE = """
-        <b>"%s" — %s</b>
-        <i>von %s am %s</i>""";
-    
+    private static final Map<ZoneId, DateTimeFormatter> DATE_FORMATS = new ConcurrentHashMap<>();
+
     public String formatTape(@NonNull TapeEntity tape, ZoneId zoneId, boolean addId){
-        var dateString = tape.getDateAdded()
-            .atOffset(ZoneOffset.UTC)
-            .atZoneSameInstant(zoneId)
-            .format(DATE_FORMAT);
-        var formatted = String.format(TEMPLATE, tape.getTitle(), tape.getStar().getUsername(), tape.getDirector().getUsername(), dateString);
+        return appendTape(new StringBuilder(estimate(addId)), tape, dateFormat(zoneId), addId).toString();
+    }
+
+    public String formatTape(@NonNull TapeListing tape, ZoneId zoneId, boolean addId){
+        return appendTape(new StringBuilder(estimate(addId)), tape, dateFormat(zoneId), addId).toString();
+    }
+
+    private StringBuilder appendTape(StringBuilder builder, TapeEntity tape, DateTimeFormatter dateFormat, boolean addId){
+        return appendTape(builder, tape.getId(), tape.getTitle(), tape.getStar().getUsername(), tape.getDirector().getUsername(),
+            tape.getDateAdded(), dateFormat, addId);
+    }
+
+    private StringBuilder appendTape(StringBuilder builder, TapeListing tape, DateTimeFormatter dateFormat, boolean addId){
+        return appendTape(builder, tape.id(), tape.title(), tape.star(), tape.director(), tape.dateAdded(), dateFormat, addId);
+    }
+
+    private StringBuilder appendTape(StringBuilder builder, UUID id, String title, String star, String director, Instant dateAdded,
+                                     DateTimeFormatter dateFormat, boolean addId){
+        builder.append("<b>\"");
+        appendEscaped(builder, title);
+        builder.append("\" — ");
+        appendEscaped(builder, star);
+        builder.append("</b>\n<i>von ");
+        appendEscaped(builder, director);
+        builder.append(" am ");
+        dateFormat.formatTo(dateAdded, builder);
+        builder.append("</i>");
         if(addId){
-            formatted += String.format("\n<code>%s</code>", tape.getId().toString());
+            builder.append("\n<code>").append(id).append("</code>");
         }
-        return formatted;
+        return builder;
     }
-    
-    public String formatTapes(@NonNull Collection<TapeEntity> tapes, ZoneId zoneId, boolean addId){
-        if(tapes.isEmpty()){
-            return "Es gibt noch keine Einträge";
+
+    /**
+     * appends the text with everything telegram would take for markup escaped
+     */
+    public void appendEscaped(StringBuilder builder, CharSequence text){
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&' -> builder.append("&amp;");
+                case '<' -> builder.append("&lt;");
+                case '>' -> builder.append("&gt;");
+                default -> builder.append(c);
+            }
         }
-        return tapes.stream().map(t -> formatTape(t, zoneId, addId))
-            .collect(Collectors.joining("\n\n"));
+    }
+
+    private DateTimeFormatter dateFormat(ZoneId zoneId){
+        return DATE_FORMATS.computeIfAbsent(zoneId, DATE_FORMAT::withZone);
+    }
+
+    private int estimate(boolean addId){
+        return addId ? TAPE_LENGTH_ESTIMATE + ID_LENGTH : TAPE_LENGTH_ESTIMATE;
     }
 }
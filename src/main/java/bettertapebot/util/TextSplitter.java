@@ -3,39 +3,244 @@ package bettertapebot.util;
 import lombok.experimental.UtilityClass;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/*
+    Splits texts that are too long for a single telegram message. Messages are sent with parse mode HTML,
+    so a chunk must never end inside a tag, an entity like &amp; or a surrogate pair, and formatting that spans a cut,
+    e.g. <b>, is closed at the end of the chunk and opened again at the start of the next one.
+
+    The text is walked once, chunk by chunk as they are pulled, without copying what's left of it.
+ */
 @UtilityClass
 public class TextSplitter {
+    //the longest named entity is 32 chars, anything longer isn't one
+    private static final int MAX_ENTITY_LENGTH = 32;
 
     public List<String> splitTextSmart(String text, int limit) {
-        List<String> result = new ArrayList<>();
+        return split(text, limit).toList();
+    }
+
+    /**
+     * splits the text into chunks of at most limit chars, preferably at the last blank line that fits, else at the last
+     * line break, else as late as possible. Chunks are trimmed, a text that fits is returned as it is
+     * @return the chunks, each one is cut when it's pulled from the stream
+     */
+    public Stream<String> split(CharSequence text, int limit) {
         if(text.length() <= limit){
-            result.add(text);
-            return result;
+            return Stream.of(text.toString());
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new Chunks(text, limit),
+            Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private static final class Chunks implements Iterator<String> {
+        final CharSequence text;
+        final int limit;
+        //tags open where the last chunk was cut
+        List<Tag> open = new ArrayList<>();
+        int position;
+        String next;
+
+        Chunks(CharSequence text, int limit) {
+            this.text = text;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(next == null){
+                next = nextChunk();
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            var chunk = next;
+            next = null;
+            return chunk;
+        }
+
+        private String nextChunk() {
+            position = skipWhitespace(position);
+            if(position == text.length()){
+                return null;
+            }
+            int prefixLength = 0;
+            for (Tag tag : open) {
+                prefixLength += tag.opening().length();
+            }
+            int end = findEnd(prefixLength);
+
+            var markup = new Markup(text, open);
+            var chunk = new StringBuilder(limit);
+            for (Tag tag : open) {
+                chunk.append(tag.opening());
+            }
+            for (int i = position; i < end; i++) {
+                markup.consume(i);
+            }
+            chunk.append(text, position, trimTrailingWhitespace(end));
+            markup.appendClosing(chunk);
+            open = markup.open;
+            position = end;
+            return chunk.toString();
         }
 
-        while (text.length() > limit) {
-            int splitIndex = findSmartSplitPoint(text, limit);
-            result.add(text.substring(0, splitIndex).trim());
-            text = text.substring(splitIndex).trim();
+        /**
+         * @return where the chunk starting at the current position is cut
+         */
+        private int findEnd(int prefixLength) {
+            var markup = new Markup(text, open);
+            int paragraph = -1;
+            int line = -1;
+            int latest = -1;
+            int i = position;
+            for (; i < text.length() && prefixLength + i - position <= limit; i++) {
+                if(i > position && markup.isBoundary(i) && prefixLength + i - position + markup.closingLength <= limit){
+                    latest = i;
+                    if(text.charAt(i) == '\n'){
+                        line = i;
+                        if(text.charAt(i - 1) == '\n'){
+                            paragraph = i - 1;
+                        }
+                    }
+                }
+                markup.consume(i);
+            }
+            if(i == text.length() && prefixLength + i - position + markup.closingLength <= limit){
+                return i;
+            }
+            if(paragraph > position){
+                return paragraph;
+            }
+            if(line > position){
+                return line;
+            }
+            if(latest > position){
+                return latest;
+            }
+            //not even one tag fits, cut it, but keep at least one char per chunk
+            int end = Math.min(text.length(), position + Math.max(1, limit - prefixLength));
+            return Character.isHighSurrogate(text.charAt(end - 1)) && end < text.length() ? end + 1 : end;
         }
-        if (!text.isEmpty()) {
-            result.add(text);
+
+        private int skipWhitespace(int from) {
+            while (from < text.length() && Character.isWhitespace(text.charAt(from))) {
+                from++;
+            }
+            return from;
+        }
+
+        private int trimTrailingWhitespace(int end) {
+            while (end > position && Character.isWhitespace(text.charAt(end - 1))) {
+                end--;
+            }
+            return end;
         }
-        return result;
     }
 
-    public int findSmartSplitPoint(String text, int start) {
-        // Versuche, ein Absatzende zu finden
-        int index = text.lastIndexOf("\n\n", start);
-        if (index != -1) return index + 2;
+    /*
+        tracks the tags open so far and whether we are within a tag or entity
+     */
+    private static final class Markup {
+        final CharSequence text;
+        final List<Tag> open;
+        int closingLength;
+        int tagStart = -1;
+        int entityStart = -1;
+
+        Markup(CharSequence text, List<Tag> open) {
+            this.text = text;
+            this.open = new ArrayList<>(open);
+            for (Tag tag : open) {
+                closingLength += tag.closingLength();
+            }
+        }
+
+        /**
+         * @return whether the text can be cut right before index i
+         */
+        boolean isBoundary(int i) {
+            return tagStart < 0 && entityStart < 0
+                && !(Character.isLowSurrogate(text.charAt(i)) && Character.isHighSurrogate(text.charAt(i - 1)));
+        }
+
+        void consume(int i) {
+            char c = text.charAt(i);
+            if(tagStart >= 0){
+                if(c == '>'){
+                    tagEnded(i + 1);
+                }
+                return;
+            }
+            if(entityStart >= 0){
+                if(c == ';'){
+                    entityStart = -1;
+                    return;
+                }
+                if((Character.isLetterOrDigit(c) || c == '#') && i - entityStart <= MAX_ENTITY_LENGTH){
+                    return;
+                }
+                //wasn't an entity after all, c may start something new
+                entityStart = -1;
+            }
+            if(c == '<' && i + 1 < text.length() && (Character.isLetter(text.charAt(i + 1)) || text.charAt(i + 1) == '/')){
+                tagStart = i;
+            }
+            else if(c == '&'){
+                entityStart = i;
+            }
+        }
 
-        // Versuche, einen einfachen Zeilenumbruch zu finden
-        index = text.lastIndexOf("\n", start);
-        if (index != -1) return index + 1;
+        private void tagEnded(int end) {
+            boolean closing = text.charAt(tagStart + 1) == '/';
+            int nameStart = closing ? tagStart + 2 : tagStart + 1;
+            int nameEnd = nameStart;
+            while (nameEnd < end - 1 && (Character.isLetterOrDigit(text.charAt(nameEnd)) || text.charAt(nameEnd) == '-')) {
+                nameEnd++;
+            }
+            var name = text.subSequence(nameStart, nameEnd).toString().toLowerCase(Locale.ROOT);
+            if(closing){
+                for (int i = open.size() - 1; i >= 0; i--) {
+                    if(open.get(i).name().equals(name)){
+                        //whatever was opened within and never closed ends here as well
+                        while (open.size() > i) {
+                            closingLength -= open.removeLast().closingLength();
+                        }
+                        break;
+                    }
+                }
+            }
+            else if(text.charAt(end - 2) != '/'){
+                var tag = new Tag(name, text.subSequence(tagStart, end).toString());
+                open.add(tag);
+                closingLength += tag.closingLength();
+            }
+            tagStart = -1;
+        }
 
-        // Kein Zeilenumbruch gefunden
-        return start;
+        void appendClosing(StringBuilder chunk) {
+            for (int i = open.size() - 1; i >= 0; i--) {
+                chunk.append("</").append(open.get(i).name()).append('>');
+            }
+        }
+    }
+
+    private record Tag(String name, String opening) {
+        int closingLength() {
+            return name.length() + 3;
+        }
     }
 }
@@ -1,18 +1,28 @@
 package bettertapebot.bot;
 
 import bettertapebot.properties.BotProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.tck.TestObservationRegistry;
+import io.micrometer.observation.tck.TestObservationRegistryAssert;
 import lombok.SneakyThrows;
 import org.awaitility.Awaitility;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
+import org.springframework.boot.test.system.CapturedOutput;
+import org.springframework.boot.test.system.OutputCaptureExtension;
 import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.ApiResponse;
 import org.telegram.telegrambots.meta.api.objects.ResponseParameters;
 import org.telegram.telegrambots.meta.api.objects.message.Message;
@@ -24,6 +34,7 @@ import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -36,20 +47,40 @@ class AsyncTelegramClientTest {
 
     BotProperties botProperties;
     TelegramClient telegramClient;
+    TestObservationRegistry observationRegistry;
+    SimpleMeterRegistry meterRegistry;
+    Map<String, Double> overflowsBefore = new ConcurrentHashMap<>();
     AsyncTelegramClient asyncTelegramClient;
     
     @BeforeAll
     void setup() {
         botProperties = new BotProperties();
         telegramClient = Mockito.mock(TelegramClient.class);
-        asyncTelegramClient = new AsyncTelegramClient(telegramClient, botProperties);
+        observationRegistry = TestObservationRegistry.create();
+        meterRegistry = new SimpleMeterRegistry();
+        asyncTelegramClient = new AsyncTelegramClient(telegramClient, botProperties, new OutboundRateLimiter(botProperties, meterRegistry), observationRegistry, meterRegistry);
+        asyncTelegramClient.postConstruct();
+    }
+    
+    @AfterAll
+    @SneakyThrows
+    void shutdown() {
+        asyncTelegramClient.shutdown();
     }
     
     @BeforeEach
     void reset(){
         botProperties.getTelegram().setDelayBetweenMessagesForSameChat(Duration.ofMillis(TEST_DELAY));
         botProperties.getTelegram().setRetryCountInCaseOfTooManyRequests(TEST_RETRY);
+        //the global limit has its own tests, here it would only slow things down
+        botProperties.getTelegram().getOutboundRateLimit().setGlobalLimit(100_000);
+        botProperties.getTelegram().getOutboundQueue().setCapacity(100);
+        botProperties.getTelegram().getOutboundQueue().setIdleTtl(Duration.ofMillis(TEST_DELAY));
+        botProperties.getTelegram().getAdaptivePacing().setEnabled(false);
         Mockito.reset(telegramClient);
+        observationRegistry.clear();
+        meterRegistry.get("bettertapebot.telegram.outbound.overflow").counters()
+            .forEach(c -> overflowsBefore.put(c.getId().getTag("action"), c.count()));
     }
     
     @Test
@@ -58,6 +89,7 @@ class AsyncTelegramClientTest {
         botProperties.getTelegram().setDelayBetweenMessagesForSameChat(Duration.ofMillis(1));
         Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenReturn(new Message());
         int count = 1000;
+        botProperties.getTelegram().getOutboundQueue().setCapacity(count);
         for (int i = 0; i < count; i++) {
             final int finalI = i;
             Assertions.assertDoesNotThrow(() -> asyncTelegramClient.sendMessage(1, new SendMessage("1", "" + finalI)));
@@ -81,12 +113,110 @@ class AsyncTelegramClientTest {
     @Test
     @SneakyThrows
     void testRetriesError(){
-        ApiResponse<Object> apiResponse = new ApiResponse<>(Boolean.FALSE, 429, "TooManyRequests", new ResponseParameters(0L, 10), new Object());
-        TelegramApiRequestException expected = new TelegramApiRequestException("expected", apiResponse);
-        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenThrow(expected);
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenThrow(tooManyRequests(0));
         Assertions.assertDoesNotThrow(() -> asyncTelegramClient.sendMessage(1, new SendMessage("1", "")));
+        //first try and then the retries
         Awaitility.await().atMost(Duration.ofSeconds(3)).untilAsserted(() ->
-            Mockito.verify(telegramClient, Mockito.times(TEST_RETRY)).execute(ArgumentMatchers.any(SendMessage.class)));
+            Mockito.verify(telegramClient, Mockito.times(TEST_RETRY + 1)).execute(ArgumentMatchers.any(SendMessage.class)));
+        Thread.sleep(TEST_DELAY * 3);
+        Mockito.verify(telegramClient, Mockito.times(TEST_RETRY + 1)).execute(ArgumentMatchers.any(SendMessage.class));
+    }
+    
+    @Test
+    @SneakyThrows
+    void testRetryWaitsForRetryAfterOfGroup(){
+        List<Instant> attempts = new CopyOnWriteArrayList<>();
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenAnswer(i -> {
+            SendMessage sm = i.getArgument(0);
+            if("-1".equals(sm.getChatId())){
+                attempts.add(Instant.now());
+                if(attempts.size() == 1){
+                    throw tooManyRequests(1);
+                }
+            }
+            return new Message();
+        });
+        asyncTelegramClient.sendMessage(-1, new SendMessage("-1", ""));
+        Awaitility.await().atMost(Duration.ofSeconds(1)).until(() -> attempts.size() == 1);
+        
+        //only the group is paused
+        asyncTelegramClient.sendMessage(2, new SendMessage("2", ""));
+        Awaitility.await().atMost(Duration.ofMillis(500)).untilAsserted(() ->
+            Mockito.verify(telegramClient).execute(ArgumentMatchers.argThat((SendMessage sm) -> "2".equals(sm.getChatId()))));
+        assertThat(attempts).hasSize(1);
+        
+        Awaitility.await().atMost(Duration.ofSeconds(3)).until(() -> attempts.size() == 2);
+        assertThat(Duration.between(attempts.get(0), attempts.get(1))).isGreaterThanOrEqualTo(Duration.ofSeconds(1));
+    }
+    
+    @Test
+    @SneakyThrows
+    void testRetryAfterOfPrivateChatPausesAllChats(){
+        List<Instant> sentToOtherChat = new CopyOnWriteArrayList<>();
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenAnswer(i -> {
+            SendMessage sm = i.getArgument(0);
+            if("3".equals(sm.getChatId())){
+                sentToOtherChat.add(Instant.now());
+                return new Message();
+            }
+            throw tooManyRequests(1);
+        });
+        Instant start = Instant.now();
+        asyncTelegramClient.sendMessage(1, new SendMessage("1", ""));
+        Awaitility.await().atMost(Duration.ofSeconds(1)).untilAsserted(() ->
+            Mockito.verify(telegramClient).execute(ArgumentMatchers.any(SendMessage.class)));
+        asyncTelegramClient.sendMessage(3, new SendMessage("3", ""));
+        Awaitility.await().atMost(Duration.ofSeconds(3)).until(() -> sentToOtherChat.size() == 1);
+        assertThat(Duration.between(start, sentToOtherChat.getFirst())).isGreaterThanOrEqualTo(Duration.ofSeconds(1));
+        //let the retries of the first chat run out, so the pauses are over for the other tests
+        Awaitility.await().atMost(Duration.ofSeconds(TEST_RETRY + 2)).untilAsserted(() ->
+            Mockito.verify(telegramClient, Mockito.times(TEST_RETRY + 2)).execute(ArgumentMatchers.any(SendMessage.class)));
+    }
+    
+    @Test
+    @SneakyThrows
+    void testRetryAfterOfPrivateChatFasterThanItsLimitOnlyPausesThatChat(){
+        var adaptive = botProperties.getTelegram().getAdaptivePacing();
+        adaptive.setEnabled(true);
+        adaptive.setMinDelayBetweenMessagesForSameChat(Duration.ofMillis(10));
+        List<Instant> attempts = new CopyOnWriteArrayList<>();
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenAnswer(i -> {
+            SendMessage sm = i.getArgument(0);
+            if("5".equals(sm.getChatId())){
+                attempts.add(Instant.now());
+                if(attempts.size() == 2){
+                    throw tooManyRequests(1);
+                }
+            }
+            return new Message();
+        });
+        //the first message goes through and lets the chat speed up below the delay, the second one runs into 429
+        asyncTelegramClient.sendMessage(5, new SendMessage("5", ""));
+        asyncTelegramClient.sendMessage(5, new SendMessage("5", ""));
+        Awaitility.await().atMost(Duration.ofSeconds(1)).until(() -> attempts.size() == 2);
+        
+        //only the chat is paused
+        asyncTelegramClient.sendMessage(6, new SendMessage("6", ""));
+        Awaitility.await().atMost(Duration.ofMillis(500)).untilAsserted(() ->
+            Mockito.verify(telegramClient).execute(ArgumentMatchers.argThat((SendMessage sm) -> "6".equals(sm.getChatId()))));
+        assertThat(attempts).hasSize(2);
+        
+        Awaitility.await().atMost(Duration.ofSeconds(3)).until(() -> attempts.size() == 3);
+        assertThat(Duration.between(attempts.get(1), attempts.get(2))).isGreaterThanOrEqualTo(Duration.ofSeconds(1));
+    }
+    
+    @Test
+    @SneakyThrows
+    void testCallbackQueryIsAnsweredOnVirtualThread(){
+        List<Thread> answeredOn = new CopyOnWriteArrayList<>();
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(AnswerCallbackQuery.class))).thenAnswer(_ -> {
+            answeredOn.add(Thread.currentThread());
+            return true;
+        });
+        asyncTelegramClient.answerCallbackQuery(AnswerCallbackQuery.builder().callbackQueryId("query").build());
+        //no pool of okhttp's dispatcher involved, like every other call
+        Awaitility.await().atMost(Duration.ofSeconds(1)).until(() -> answeredOn.size() == 1);
+        assertThat(answeredOn.getFirst().isVirtual()).isTrue();
     }
     
     @Test
@@ -129,4 +259,244 @@ class AsyncTelegramClientTest {
             assertThat(diff).isLessThanOrEqualTo(TEST_DELAY / 2);
         }
     }
-}
\ No newline at end of file
+    
+    @Test
+    @SneakyThrows
+    void testQueueWaitAndSendAreObservedBelowCaller(){
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenReturn(new Message());
+        var parent = Observation.start("parent", observationRegistry);
+        try (var _ = parent.openScope()) {
+            asyncTelegramClient.sendMessage(2, new SendMessage("2", "first"));
+            asyncTelegramClient.sendMessage(2, new SendMessage("2", "second"));
+        }
+        parent.stop();
+        
+        Awaitility.await().atMost(Duration.ofSeconds(3)).untilAsserted(() ->
+            Mockito.verify(telegramClient, Mockito.times(2)).execute(ArgumentMatchers.any(SendMessage.class)));
+        Awaitility.await().atMost(Duration.ofSeconds(3)).untilAsserted(() ->
+            TestObservationRegistryAssert.assertThat(observationRegistry)
+                .hasNumberOfObservationsWithNameEqualTo("bettertapebot.telegram.queue", 2)
+                .hasNumberOfObservationsWithNameEqualTo("bettertapebot.telegram.send", 2)
+                .forAllObservationsWithNameEqualTo("bettertapebot.telegram.queue", o -> o.hasParentObservationEqualTo(parent))
+                .forAllObservationsWithNameEqualTo("bettertapebot.telegram.send", o -> o.hasParentObservationEqualTo(parent)));
+    }
+    
+    @Test
+    @SneakyThrows
+    void testGlobalLimitSpreadsMessagesOfAllChats(){
+        botProperties.getTelegram().getOutboundRateLimit().setGlobalLimit(20);
+        List<Instant> timestamps = new CopyOnWriteArrayList<>();
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenAnswer(_ -> {
+            timestamps.add(Instant.now());
+            return new Message();
+        });
+        
+        int chats = 10;
+        var start = Instant.now();
+        for (int i = 0; i < chats; i++) {
+            asyncTelegramClient.sendMessage(100 + i, new SendMessage("" + (100 + i), ""));
+        }
+        
+        Awaitility.await().atMost(Duration.ofSeconds(3)).untilAsserted(() ->
+            Mockito.verify(telegramClient, Mockito.times(chats)).execute(ArgumentMatchers.any(SendMessage.class)));
+        //20 per second means one slot every 50ms, the last chat got the 10th slot
+        var last = timestamps.stream().max(Instant::compareTo).orElseThrow();
+        assertThat(Duration.between(start, last).toMillis()).isGreaterThanOrEqualTo((chats - 1) * 50L);
+    }
+    
+    @Test
+    @SneakyThrows
+    void testIdleChatsAreEvictedOnceTheirLimitsAreOver(){
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenReturn(new Message());
+        //let the chats of the other tests become idle
+        Thread.sleep(TEST_DELAY);
+        asyncTelegramClient.evictIdleChats();
+        botProperties.getTelegram().setDelayBetweenMessagesForSameChat(Duration.ofMillis(TEST_DELAY * 5));
+        
+        asyncTelegramClient.sendMessage(42, new SendMessage("42", "first"));
+        asyncTelegramClient.sendMessage(42, new SendMessage("42", "second"));
+        assertThat(asyncTelegramClient.chatCount()).isEqualTo(1);
+        Awaitility.await().atMost(Duration.ofSeconds(2)).untilAsserted(() ->
+            Mockito.verify(telegramClient, Mockito.times(2)).execute(ArgumentMatchers.any(SendMessage.class)));
+        //it just sent, so the next message would still have to wait
+        asyncTelegramClient.evictIdleChats();
+        assertThat(asyncTelegramClient.chatCount()).isEqualTo(1);
+        
+        Thread.sleep(TEST_DELAY * 5);
+        double evictedBefore = meterRegistry.get("bettertapebot.telegram.outbound.evicted").counter().count();
+        asyncTelegramClient.evictIdleChats();
+        assertThat(asyncTelegramClient.chatCount()).isZero();
+        assertThat(meterRegistry.get("bettertapebot.telegram.outbound.evicted").counter().count()).isEqualTo(evictedBefore + 1);
+        assertThat(meterRegistry.get("bettertapebot.telegram.outbound.queued").gauge().value()).isZero();
+    }
+    
+    @Test
+    @SneakyThrows
+    void testEditsWaitBehindTheMessagesOfTheChat(){
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenReturn(new Message());
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(EditMessageText.class))).thenReturn(new Message());
+        asyncTelegramClient.sendMessage(205, new SendMessage("205", "page 1"));
+        asyncTelegramClient.editMessage(205, EditMessageText.builder().chatId(205L).messageId(1).text("page 2").build());
+        
+        Awaitility.await().atMost(Duration.ofSeconds(3)).untilAsserted(() ->
+            Mockito.verify(telegramClient).execute(ArgumentMatchers.any(EditMessageText.class)));
+        var inOrder = Mockito.inOrder(telegramClient);
+        inOrder.verify(telegramClient).execute(ArgumentMatchers.any(SendMessage.class));
+        inOrder.verify(telegramClient).execute(ArgumentMatchers.argThat((EditMessageText edit) -> "page 2".equals(edit.getText())));
+    }
+    
+    @Test
+    @SneakyThrows
+    void testFullQueueDropsNewest(){
+        botProperties.getTelegram().getOutboundQueue().setOverflowPolicy(BotProperties.OverflowPolicy.DROP_NEWEST);
+        assertThat(sendWhileFirstIsStuck(200, 6)).containsExactly("0", "1", "2", "3");
+        assertThat(overflows("dropped_newest")).isEqualTo(2);
+    }
+    
+    @Test
+    @SneakyThrows
+    void testFullQueueDropsOldestWaiting(){
+        botProperties.getTelegram().getOutboundQueue().setOverflowPolicy(BotProperties.OverflowPolicy.DROP_OLDEST);
+        //the first one is already on its way, the others are dropped in favor of newer ones
+        assertThat(sendWhileFirstIsStuck(201, 6)).containsExactly("0", "3", "4", "5");
+        assertThat(overflows("dropped_oldest")).isEqualTo(2);
+    }
+    
+    @Test
+    @SneakyThrows
+    void testFullQueueCollapsesIntoNewest(){
+        botProperties.getTelegram().getOutboundQueue().setOverflowPolicy(BotProperties.OverflowPolicy.COLLAPSE);
+        assertThat(sendWhileFirstIsStuck(202, 6)).containsExactly("0", "1", "2", "3\n\n4\n\n5");
+        assertThat(overflows("collapsed")).isEqualTo(2);
+        
+        //no room left in the newest message, so the oldest waiting one goes
+        botProperties.getTelegram().setMessageLengthLimit(3);
+        try {
+            assertThat(sendWhileFirstIsStuck(203, 5)).containsExactly("0", "2", "3", "4");
+            assertThat(overflows("dropped_oldest")).isEqualTo(1);
+        }
+        finally {
+            botProperties.getTelegram().setMessageLengthLimit(4096);
+        }
+    }
+    
+    @Test
+    @SneakyThrows
+    void testFullQueueDropsBulkForInteractive(){
+        botProperties.getTelegram().getOutboundQueue().setOverflowPolicy(BotProperties.OverflowPolicy.DROP_NEWEST);
+        botProperties.getTelegram().getOutboundQueue().setCapacity(3);
+        var sent = sendWhileFirstIsStuck(204, MessagePriority.BULK, () -> {
+            queue(204, MessagePriority.BULK, "b1", "b2", "b3");
+            queue(204, MessagePriority.INTERACTIVE, "i1");
+        });
+        assertThat(sent).containsExactly("0", "i1", "b1", "b2");
+    }
+    
+    @Test
+    @SneakyThrows
+    void testInteractiveGoesAheadOfBulk(){
+        botProperties.getTelegram().getOutboundQueue().setInteractiveBeforeBulk(3);
+        var sent = sendWhileFirstIsStuck(205, MessagePriority.BULK, () -> {
+            queue(205, MessagePriority.BULK, "b1");
+            queue(205, MessagePriority.INTERACTIVE, "i1", "i2", "i3", "i4", "i5");
+        });
+        //the bulk message gets its turn after a few interactive ones
+        assertThat(sent).containsExactly("0", "i1", "i2", "i3", "b1", "i4", "i5");
+    }
+    
+    @Test
+    @SneakyThrows
+    void testEveryMessageIsDoneOnceSentDroppedOrCollapsed(){
+        botProperties.getTelegram().getOutboundQueue().setOverflowPolicy(BotProperties.OverflowPolicy.COLLAPSE);
+        botProperties.getTelegram().getOutboundQueue().setCapacity(3);
+        List<String> done = new CopyOnWriteArrayList<>();
+        var sent = sendWhileFirstIsStuck(206, MessagePriority.INTERACTIVE, () -> {
+            for (int i = 1; i < 6; i++) {
+                var text = String.valueOf(i);
+                asyncTelegramClient.sendMessage(206, new SendMessage("206", text), MessagePriority.INTERACTIVE, () -> done.add(text));
+            }
+        });
+        assertThat(sent).containsExactly("0", "1", "2", "3\n\n4\n\n5");
+        //4 and 5 went out as part of 3
+        assertThat(done).containsExactlyInAnyOrder("1", "2", "3", "4", "5");
+        
+        botProperties.getTelegram().getOutboundQueue().setOverflowPolicy(BotProperties.OverflowPolicy.DROP_NEWEST);
+        done.clear();
+        sendWhileFirstIsStuck(207, MessagePriority.INTERACTIVE, () -> {
+            for (int i = 1; i < 6; i++) {
+                var text = String.valueOf(i);
+                asyncTelegramClient.sendMessage(207, new SendMessage("207", text), MessagePriority.INTERACTIVE, () -> done.add(text));
+            }
+        });
+        //dropped ones are done as well, nothing would ever send them
+        assertThat(done).containsExactlyInAnyOrder("1", "2", "3", "4", "5");
+    }
+    
+    //queue with room for 3 waiting messages, the first one blocks until all are queued, returns the texts that were sent
+    private List<String> sendWhileFirstIsStuck(long chatId, int count){
+        botProperties.getTelegram().getOutboundQueue().setCapacity(3);
+        return sendWhileFirstIsStuck(chatId, MessagePriority.INTERACTIVE, () -> {
+            for (int i = 1; i < count; i++) {
+                queue(chatId, MessagePriority.INTERACTIVE, String.valueOf(i));
+            }
+        });
+    }
+    
+    private void queue(long chatId, MessagePriority priority, String... texts){
+        for (String text : texts) {
+            asyncTelegramClient.sendMessage(chatId, new SendMessage(String.valueOf(chatId), text), priority);
+        }
+    }
+    
+    @SneakyThrows
+    private List<String> sendWhileFirstIsStuck(long chatId, MessagePriority firstPriority, Runnable queueOthers){
+        botProperties.getTelegram().setDelayBetweenMessagesForSameChat(Duration.ofMillis(1));
+        var queued = new CountDownLatch(1);
+        List<String> sent = new CopyOnWriteArrayList<>();
+        Mockito.reset(telegramClient);
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenAnswer(i -> {
+            SendMessage sm = i.getArgument(0);
+            queued.await();
+            sent.add(sm.getText());
+            return new Message();
+        });
+        queue(chatId, firstPriority, "0");
+        //the first message has to be on its way before the queue overflows
+        Awaitility.await().atMost(Duration.ofSeconds(1)).untilAsserted(() ->
+            Mockito.verify(telegramClient).execute(ArgumentMatchers.any(SendMessage.class)));
+        queueOthers.run();
+        queued.countDown();
+        Thread.sleep(TEST_DELAY);
+        Awaitility.await().atMost(Duration.ofSeconds(1)).until(() -> asyncTelegramClient.queuedMessages() == 0);
+        return sent;
+    }
+    
+    @Test
+    @SneakyThrows
+    @ExtendWith(OutputCaptureExtension.class)
+    void testUnmodifiedEditIsNoFailure(CapturedOutput output){
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(SendMessage.class))).thenReturn(new Message());
+        ApiResponse<Object> apiResponse = new ApiResponse<>(Boolean.FALSE, 400,
+            "Bad Request: message is not modified: specified new message content and reply markup are exactly the same as a current content and reply markup of the message",
+            null, new Object());
+        Mockito.when(telegramClient.execute(ArgumentMatchers.any(EditMessageText.class))).thenThrow(new TelegramApiRequestException("expected", apiResponse));
+        asyncTelegramClient.editMessage(206, EditMessageText.builder().chatId(206L).messageId(1).text("page 2").build());
+        asyncTelegramClient.sendMessage(206, new SendMessage("206", "after the edit"));
+
+        Awaitility.await().atMost(Duration.ofSeconds(3)).untilAsserted(() ->
+            Mockito.verify(telegramClient).execute(ArgumentMatchers.any(SendMessage.class)));
+        Mockito.verify(telegramClient, Mockito.times(1)).execute(ArgumentMatchers.any(EditMessageText.class));
+        assertThat(output.getAll()).doesNotContain("message is not modified");
+    }
+    
+    private double overflows(String action){
+        //counted over all tests, so every test only looks at what it added
+        return meterRegistry.get("bettertapebot.telegram.outbound.overflow").tag("action", action).counter().count()
+            - overflowsBefore.getOrDefault(action, 0d);
+    }
+    
+    private static TelegramApiRequestException tooManyRequests(int retryAfter){
+        ApiResponse<Object> apiResponse = new ApiResponse<>(Boolean.FALSE, 429, "TooManyRequests", new ResponseParameters(0L, retryAfter), new Object());
+        return new TelegramApiRequestException("expected", apiResponse);
+    }
+}
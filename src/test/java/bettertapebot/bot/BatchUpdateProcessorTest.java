@@ -0,0 +1,125 @@
+package bettertapebot.bot;
+
+import bettertapebot.cache.UserStateStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.chat.Chat;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+
+import java.util.Collection;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class BatchUpdateProcessorTest {
+
+    MessageDelegator messageDelegator;
+    UserStateStore userStateStore;
+    PlatformTransactionManager transactionManager;
+    BatchUpdateProcessor batchUpdateProcessor;
+
+    private static Update createUpdate(int updateId, long chatId){
+        Message message = Message.builder()
+            .chat(Chat.builder()
+                .id(chatId)
+                .type("private")
+                .build())
+            .text("text")
+            .build();
+
+        Update update = new Update();
+        update.setUpdateId(updateId);
+        update.setMessage(message);
+        return update;
+    }
+
+    @BeforeEach
+    void setup(){
+        messageDelegator = Mockito.mock(MessageDelegator.class);
+        userStateStore = Mockito.mock(UserStateStore.class);
+        transactionManager = Mockito.mock(PlatformTransactionManager.class);
+        Mockito.when(transactionManager.getTransaction(ArgumentMatchers.any())).thenAnswer(_ -> new SimpleTransactionStatus());
+        batchUpdateProcessor = new BatchUpdateProcessor(messageDelegator, userStateStore, transactionManager);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testBatchLoadsAllUserStatesAtOnce(){
+        var updates = List.of(createUpdate(1, 1L), createUpdate(2, 2L), createUpdate(3, 1L));
+
+        batchUpdateProcessor.processBatch(updates);
+
+        ArgumentCaptor<Collection<Long>> captor = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(userStateStore, Mockito.times(1)).preload(captor.capture());
+        assertThat(captor.getValue()).containsExactly(1L, 2L);
+        Mockito.verify(transactionManager, Mockito.times(1)).getTransaction(ArgumentMatchers.any());
+        Mockito.verify(transactionManager, Mockito.times(1)).commit(ArgumentMatchers.any());
+        InOrder inOrder = Mockito.inOrder(messageDelegator);
+        for (Update update : updates) {
+            inOrder.verify(messageDelegator).processUpdate(update);
+        }
+    }
+
+    @Test
+    void testFailingUpdateGetsRetriedOnItsOwn(){
+        var first = createUpdate(1, 1L);
+        var failing = createUpdate(2, 2L);
+        var last = createUpdate(3, 1L);
+        Mockito.doThrow(new IllegalStateException("expected"))
+            .doNothing()
+            .when(messageDelegator).processUpdate(failing);
+
+        batchUpdateProcessor.processBatch(List.of(first, failing, last));
+
+        InOrder inOrder = Mockito.inOrder(messageDelegator, transactionManager);
+        //first attempt breaks off at the failing update
+        inOrder.verify(messageDelegator).processUpdate(first);
+        inOrder.verify(messageDelegator).processUpdate(failing);
+        inOrder.verify(transactionManager).rollback(ArgumentMatchers.any());
+        //then the updates before as batch, the failing one alone and the rest as batch
+        inOrder.verify(messageDelegator).processUpdate(first);
+        inOrder.verify(transactionManager).commit(ArgumentMatchers.any());
+        inOrder.verify(messageDelegator).processUpdate(failing);
+        inOrder.verify(messageDelegator).processUpdate(last);
+        inOrder.verify(transactionManager).commit(ArgumentMatchers.any());
+        inOrder.verifyNoMoreInteractions();
+    }
+
+    @Test
+    void testFailingCommitFallsBackToSingleUpdates(){
+        Mockito.doThrow(new TransactionSystemException("expected"))
+            .when(transactionManager).commit(ArgumentMatchers.any());
+        var updates = List.of(createUpdate(1, 1L), createUpdate(2, 2L));
+
+        batchUpdateProcessor.processBatch(updates);
+
+        //once in the batch and once on its own
+        for (Update update : updates) {
+            Mockito.verify(messageDelegator, Mockito.times(2)).processUpdate(update);
+        }
+    }
+
+    @Test
+    void testFailingPreloadFallsBackToSingleUpdates(){
+        Mockito.doThrow(new IllegalStateException("expected"))
+            .when(userStateStore).preload(ArgumentMatchers.any());
+        var updates = List.of(createUpdate(1, 1L), createUpdate(2, 2L));
+
+        batchUpdateProcessor.processBatch(updates);
+
+        //none of them got to run in the batch, so each of them only on its own
+        for (Update update : updates) {
+            Mockito.verify(messageDelegator, Mockito.times(1)).processUpdate(update);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package bettertapebot.bot;
+
+import bettertapebot.cache.UserStateStore;
+import bettertapebot.properties.BotProperties;
+import bettertapebot.repository.BroadcastJobRepository;
+import bettertapebot.repository.UserRepository;
+import bettertapebot.repository.UserStateRepository;
+import bettertapebot.repository.entity.BroadcastAudience;
+import bettertapebot.repository.entity.BroadcastJobEntity;
+import bettertapebot.repository.entity.UserEntity;
+import bettertapebot.repository.entity.UserState;
+import bettertapebot.repository.entity.UserStateEntity;
+import bettertapebot.testutil.TestcontainersConfiguration;
+import org.assertj.core.api.InstanceOfAssertFactories;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.data.jpa.test.autoconfigure.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@DataJpaTest
+@Import({TestcontainersConfiguration.class, BroadcastJobService.class, BotProperties.class})
+class BroadcastJobServiceTest {
+
+    @Autowired
+    BroadcastJobService broadcastJobService;
+
+    @Autowired
+    BotProperties botProperties;
+
+    @Autowired
+    BroadcastJobRepository broadcastJobRepository;
+
+    @Autowired
+    UserStateRepository userStateRepository;
+
+    @Autowired
+    UserRepository userRepository;
+
+    @MockitoBean
+    ResponseService responseService;
+
+    @MockitoBean
+    UserStateStore userStateStore;
+
+    @BeforeEach
+    void setup(){
+        //two recipients per run
+        botProperties.getTelegram().getOutboundRateLimit().setBulkLimit(2);
+        var subscriber = userRepository.save(UserEntity.builder()
+            .username("subscriber")
+            .pin("1234")
+            .build());
+        var muted = userRepository.save(UserEntity.builder()
+            .username("muted")
+            .pin("1234")
+            .wantsAbonnement(false)
+            .build());
+        saveChat(5L, UserState.LOGGED_IN, subscriber);
+        saveChat(1L, UserState.LOGGED_IN, subscriber);
+        saveChat(3L, UserState.LOGGED_IN, muted);
+        saveChat(2L, UserState.LOGGED_OUT, subscriber);
+        saveChat(4L, UserState.LOGGED_IN, subscriber);
+        saveChat(6L, UserState.LOGGED_IN, subscriber);
+        Mockito.reset(responseService, userStateStore);
+    }
+
+    @AfterEach
+    void cleanUp(){
+        botProperties.getTelegram().getOutboundRateLimit().setBulkLimit(new BotProperties.OutboundRateLimitProperties().getBulkLimit());
+        broadcastJobRepository.deleteAll();
+        userStateRepository.deleteAll();
+        userRepository.deleteAll();
+    }
+
+    private void saveChat(long chatId, UserState userState, UserEntity owner){
+        userStateRepository.save(UserStateEntity.builder()
+            .chatId(chatId)
+            .userState(userState)
+            .owner(owner)
+            .build());
+    }
+
+    @Test
+    public void loggedInChatsGetMessageInPages(){
+        var job = broadcastJobService.start(BroadcastAudience.LOGGED_IN, "testmessage", null);
+        assertThat(job.getRecipientCount()).isEqualTo(5);
+
+        broadcastJobService.sendNextPages();
+        broadcastJobService.sendNextPages();
+        broadcastJobService.sendNextPages();
+
+        assertThat(sentPages()).containsExactly(List.of(1L, 3L), List.of(4L, 5L), List.of(6L));
+        assertThat(broadcastJobRepository.findById(job.getId())).get()
+            .satisfies(j -> assertThat(j.getSentCount()).isEqualTo(5))
+            .satisfies(j -> assertThat(j.getFinishedAt()).isNotNull());
+
+        Mockito.reset(responseService);
+        broadcastJobService.sendNextPages();
+        Mockito.verifyNoInteractions(responseService);
+    }
+
+    @Test
+    public void pendingUserStatesAreWrittenBeforeRecipientsAreRead(){
+        broadcastJobService.sendNextPages();
+        Mockito.verifyNoInteractions(userStateStore);
+
+        broadcastJobService.start(BroadcastAudience.LOGGED_IN, "testmessage", null);
+        broadcastJobService.sendNextPages();
+        var inOrder = Mockito.inOrder(userStateStore, responseService);
+        inOrder.verify(userStateStore).flushPending();
+        inOrder.verify(responseService).broadcast(ArgumentMatchers.anyList(), ArgumentMatchers.eq("testmessage"));
+    }
+
+    @Test
+    public void subscribersGetNotification(){
+        broadcastJobService.start(BroadcastAudience.SUBSCRIBERS, "new tape", null);
+
+        broadcastJobService.sendNextPages();
+        broadcastJobService.sendNextPages();
+
+        assertThat(sentPages()).containsExactly(List.of(1L, 4L), List.of(5L, 6L));
+        Mockito.verify(responseService, Mockito.never()).send(ArgumentMatchers.anyLong(), ArgumentMatchers.anyString());
+    }
+
+    @Test
+    public void jobContinuesAtCursorAfterRestart(){
+        //as it was left by the last run before the restart
+        var job = broadcastJobRepository.save(BroadcastJobEntity.builder()
+            .text("testmessage")
+            .audience(BroadcastAudience.LOGGED_IN)
+            .lastChatId(3L)
+            .sentCount(2)
+            .recipientCount(5)
+            .createdAt(Instant.now())
+            .build());
+
+        broadcastJobService.sendNextPages();
+        broadcastJobService.sendNextPages();
+
+        assertThat(sentPages()).containsExactly(List.of(4L, 5L), List.of(6L));
+        assertThat(broadcastJobRepository.findById(job.getId())).get()
+            .extracting(BroadcastJobEntity::getSentCount)
+            .isEqualTo(5);
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED) //the runs need transactions of their own to race
+    public void racingRunsDontSendTheSamePageTwice(){
+        var job = broadcastJobService.start(BroadcastAudience.LOGGED_IN, "testmessage", null);
+        AtomicBoolean raced = new AtomicBoolean();
+        Mockito.doAnswer(_ -> {
+            //another run starts while the first one is in the middle of its page
+            if(raced.compareAndSet(false, true)){
+                CompletableFuture.runAsync(broadcastJobService::sendNextPages).join();
+            }
+            return null;
+        }).when(responseService).broadcast(ArgumentMatchers.anyList(), ArgumentMatchers.anyString());
+
+        broadcastJobService.sendNextPages();
+
+        assertThat(raced).isTrue();
+        assertThat(sentPages()).containsExactly(List.of(1L, 3L));
+        assertThat(broadcastJobRepository.findById(job.getId())).get()
+            .extracting(BroadcastJobEntity::getSentCount)
+            .isEqualTo(2);
+        //the next run continues behind the page
+        broadcastJobService.sendNextPages();
+        assertThat(sentPages()).containsExactly(List.of(1L, 3L), List.of(4L, 5L));
+    }
+
+    @Test
+    public void olderJobGoesFirst(){
+        broadcastJobService.start(BroadcastAudience.LOGGED_IN, "first", null);
+        broadcastJobService.start(BroadcastAudience.LOGGED_IN, "second", null);
+
+        broadcastJobService.sendNextPages();
+
+        Mockito.verify(responseService, Mockito.times(1)).broadcast(List.of(1L, 3L), "first");
+        Mockito.verify(responseService, Mockito.never()).broadcast(ArgumentMatchers.anyList(), ArgumentMatchers.eq("second"));
+    }
+
+    @Test
+    public void requesterGetsEstimateAndSummary(){
+        long adminChatId = 1L;
+        broadcastJobService.start(BroadcastAudience.LOGGED_IN, "testmessage", adminChatId);
+        for (int i = 0; i < 3; i++) {
+            broadcastJobService.sendNextPages();
+        }
+
+        ArgumentCaptor<String> textCaptor = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(responseService, Mockito.times(2)).send(ArgumentMatchers.eq(adminChatId), textCaptor.capture());
+        assertThat(textCaptor.getAllValues()).hasSize(2);
+        assertThat(textCaptor.getAllValues().getFirst())
+            .asInstanceOf(InstanceOfAssertFactories.STRING)
+            .contains("Broadcast an 5 Chats wird gesendet")
+            .contains("Sekunden");
+        assertThat(textCaptor.getAllValues().getLast())
+            .asInstanceOf(InstanceOfAssertFactories.STRING)
+            .contains("Broadcast an 5 Chats gesendet");
+    }
+
+    private List<List<Long>> sentPages(){
+        //noinspection unchecked
+        ArgumentCaptor<List<Long>> chatIdsCaptor = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(responseService, Mockito.atLeastOnce()).broadcast(chatIdsCaptor.capture(), ArgumentMatchers.anyString());
+        return chatIdsCaptor.getAllValues();
+    }
+}
@@ -0,0 +1,179 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.chat.Chat;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class InboundFloodProtectionTest {
+    private static final int BURST = 3;
+    private static final Duration REFILL_INTERVAL = Duration.ofSeconds(1);
+
+    BotProperties botProperties;
+    ResponseService responseService;
+    SimpleMeterRegistry meterRegistry;
+    AtomicLong now;
+    InboundFloodProtection inboundFloodProtection;
+
+    private static Update createUpdate(long chatId){
+        Message message = Message.builder()
+            .chat(Chat.builder()
+                .id(chatId)
+                .type("private")
+                .build())
+            .text("spam")
+            .build();
+
+        Update update = new Update();
+        update.setMessage(message);
+        return update;
+    }
+
+    @BeforeEach
+    void setup(){
+        botProperties = new BotProperties();
+        botProperties.getTelegram().getFloodProtection().setBurst(BURST);
+        botProperties.getTelegram().getFloodProtection().setRefillInterval(REFILL_INTERVAL);
+        responseService = Mockito.mock(ResponseService.class);
+        meterRegistry = new SimpleMeterRegistry();
+        now = new AtomicLong(-42);
+        inboundFloodProtection = new InboundFloodProtection(botProperties, responseService, meterRegistry, now::get);
+    }
+
+    private double droppedUpdates(){
+        return meterRegistry.get("bettertapebot.updates.dropped").counter().count();
+    }
+
+    @Test
+    void testBurstGetsAdmittedAndRestDropped(){
+        for (int i = 0; i < BURST; i++) {
+            assertThat(inboundFloodProtection.tryAdmit(createUpdate(1L))).isTrue();
+        }
+        assertThat(inboundFloodProtection.tryAdmit(createUpdate(1L))).isFalse();
+        assertThat(inboundFloodProtection.tryAdmit(createUpdate(1L))).isFalse();
+        assertThat(droppedUpdates()).isEqualTo(2);
+
+        //other chats have their own budget
+        assertThat(inboundFloodProtection.tryAdmit(createUpdate(2L))).isTrue();
+    }
+
+    @Test
+    void testBudgetGetsRefilled(){
+        for (int i = 0; i < BURST; i++) {
+            inboundFloodProtection.tryAdmit(createUpdate(1L));
+        }
+        assertThat(inboundFloodProtection.tryAdmit(createUpdate(1L))).isFalse();
+
+        now.addAndGet(REFILL_INTERVAL.toNanos());
+        assertThat(inboundFloodProtection.tryAdmit(createUpdate(1L))).isTrue();
+        assertThat(inboundFloodProtection.tryAdmit(createUpdate(1L))).isFalse();
+    }
+
+    @Test
+    void testThrottledChatGetsToldOnlyOnce(){
+        for (int i = 0; i < BURST + 5; i++) {
+            inboundFloodProtection.tryAdmit(createUpdate(1L));
+        }
+        Mockito.verify(responseService, Mockito.times(1))
+            .send(ArgumentMatchers.eq(1L), ArgumentMatchers.isNull(), ArgumentMatchers.contains("zu viele Nachrichten"));
+    }
+
+    @Test
+    void testSilentDrop(){
+        botProperties.getTelegram().getFloodProtection().setReplyWhenThrottled(false);
+        for (int i = 0; i < BURST + 1; i++) {
+            inboundFloodProtection.tryAdmit(createUpdate(1L));
+        }
+        assertThat(droppedUpdates()).isEqualTo(1);
+        Mockito.verifyNoInteractions(responseService);
+    }
+
+    @Test
+    void testDisabledProtectionAdmitsEverything(){
+        botProperties.getTelegram().getFloodProtection().setEnabled(false);
+        for (int i = 0; i < BURST * 10; i++) {
+            assertThat(inboundFloodProtection.tryAdmit(createUpdate(1L))).isTrue();
+        }
+    }
+
+    @Test
+    void testRefilledBucketsGetRemoved(){
+        inboundFloodProtection.tryAdmit(createUpdate(1L));
+        inboundFloodProtection.tryAdmit(createUpdate(2L));
+        inboundFloodProtection.removeFullBuckets();
+        assertThat(inboundFloodProtection.trackedChats()).isEqualTo(2);
+
+        now.addAndGet(REFILL_INTERVAL.toNanos());
+        inboundFloodProtection.removeFullBuckets();
+        assertThat(inboundFloodProtection.trackedChats()).isZero();
+    }
+
+    @Test
+    void testConcurrentlyThrottledChatGetsToldOnlyOnce(){
+        for (int i = 0; i < BURST; i++) {
+            inboundFloodProtection.tryAdmit(createUpdate(1L));
+        }
+        var start = new CountDownLatch(1);
+        var rejections = IntStream.range(0, 8)
+            .mapToObj(_ -> CompletableFuture.runAsync(() -> {
+                awaitQuietly(start);
+                for (int i = 0; i < 100; i++) {
+                    inboundFloodProtection.tryAdmit(createUpdate(1L));
+                }
+            }))
+            .toList();
+        start.countDown();
+        rejections.forEach(CompletableFuture::join);
+
+        assertThat(droppedUpdates()).isEqualTo(800);
+        Mockito.verify(responseService, Mockito.times(1))
+            .send(ArgumentMatchers.eq(1L), ArgumentMatchers.isNull(), ArgumentMatchers.contains("zu viele Nachrichten"));
+    }
+
+    @Test
+    void testRemovingBucketsDoesntResetChatsConcurrently(){
+        var sweeping = new AtomicBoolean(true);
+        var sweeper = CompletableFuture.runAsync(() -> {
+            while (sweeping.get()) {
+                inboundFloodProtection.removeFullBuckets();
+            }
+        });
+        //a new bucket is full until its first update, so that one may get lost to the sweep
+        for (long chatId = 1; chatId <= 2000; chatId++) {
+            int admitted = 0;
+            for (int i = 0; i < BURST + 1; i++) {
+                if(inboundFloodProtection.tryAdmit(createUpdate(chatId))){
+                    admitted++;
+                }
+            }
+            assertThat(admitted).as("admitted updates of chat %d", chatId).isEqualTo(BURST);
+        }
+        sweeping.set(false);
+        sweeper.join();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch){
+        try {
+            latch.await();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
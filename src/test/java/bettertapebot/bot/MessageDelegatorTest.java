@@ -1,12 +1,17 @@
 package bettertapebot.bot;
 
+import bettertapebot.cache.CachedUserState;
+import bettertapebot.cache.UserStateStore;
+import bettertapebot.handler.CallbackHandler;
 import bettertapebot.handler.Command;
 import bettertapebot.handler.CommandHandler;
 import bettertapebot.handler.StateHandler;
 import bettertapebot.properties.BotProperties;
-import bettertapebot.repository.UserStateRepository;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
+import io.micrometer.core.instrument.observation.DefaultMeterObservationHandler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
 import org.assertj.core.api.InstanceOfAssertFactories;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -15,13 +20,15 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
 import org.telegram.telegrambots.meta.api.objects.MessageEntity;
 import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.chat.Chat;
 import org.telegram.telegrambots.meta.api.objects.message.Message;
 
 import java.util.ArrayList;
-import java.util.Optional;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -39,9 +46,15 @@ class MessageDelegatorTest {
 
     BotProperties botProperties;
     ResponseService responseService;
-    UserStateRepository userStateRepository;
+    UserStateStore userStateStore;
     CommandHandler commandHandler;
+    CommandHandler readOnlyCommandHandler;
+    CommandHandler statelessCommandHandler;
     StateHandler stateHandler;
+    CallbackHandler callbackHandler;
+    PlatformTransactionManager transactionManager;
+    BotUsername botUsername;
+    SimpleMeterRegistry meterRegistry;
     MessageDelegator messageDelegator;
     
     private static Update createUpdate(long chatId, String text){
@@ -73,26 +86,83 @@ class MessageDelegatorTest {
         return update;
     }
     
+    private static Update createCallbackUpdate(long chatId, String data){
+        var callbackQuery = new CallbackQuery();
+        callbackQuery.setId("query");
+        callbackQuery.setData(data);
+        callbackQuery.setMessage(Message.builder()
+            .messageId(1)
+            .chat(Chat.builder()
+                .id(chatId)
+                .type("private")
+                .build())
+            .build());
+        Update update = new Update();
+        update.setCallbackQuery(callbackQuery);
+        return update;
+    }
+    
+    private static UserStateEntity toEntity(CachedUserState state){
+        return UserStateEntity.builder()
+            .chatId(state.chatId())
+            .userState(state.userState())
+            .adminMode(state.adminMode())
+            .build();
+    }
+    
+    private void verifyNothingSent(){
+        Mockito.verify(responseService, Mockito.atLeastOnce()).batched(ArgumentMatchers.any());
+        Mockito.verifyNoMoreInteractions(responseService);
+    }
+    
     @BeforeEach
     void setup(){
         botProperties = new BotProperties();
         botProperties.getTelegram().setToken("token");
         
         responseService = Mockito.mock(ResponseService.class);
+        //whatever is sent within goes straight to the mock, merging has its own tests
+        Mockito.doAnswer(i -> {
+            i.<Runnable>getArgument(0).run();
+            return null;
+        }).when(responseService).batched(ArgumentMatchers.any());
         
-        
-        userStateRepository = Mockito.mock(UserStateRepository.class);
-        Mockito.when(userStateRepository.findById(ArgumentMatchers.any())).thenReturn(Optional.of(USER_STATE_ENTITY));
+        userStateStore = Mockito.mock(UserStateStore.class);
+        Mockito.when(userStateStore.get(ArgumentMatchers.anyLong())).thenReturn(CachedUserState.of(USER_STATE_ENTITY));
+        Mockito.when(userStateStore.toEntity(ArgumentMatchers.any())).thenAnswer(i -> toEntity(i.getArgument(0)));
         
         commandHandler = Mockito.mock(CommandHandler.class);
         Mockito.when(commandHandler.forCommand()).thenReturn(HANDLED_COMMAND);
         
+        readOnlyCommandHandler = Mockito.mock(CommandHandler.class);
+        Mockito.when(readOnlyCommandHandler.forCommand()).thenReturn(Command.HELP);
+        
+        statelessCommandHandler = Mockito.mock(CommandHandler.class);
+        Mockito.when(statelessCommandHandler.forCommand()).thenReturn(Command.DSGVO);
+        
         stateHandler = Mockito.mock(StateHandler.class);
         Mockito.when(stateHandler.forStates()).thenReturn(Set.of(HANDLED_STATE));
         
-        messageDelegator = new MessageDelegator(responseService, userStateRepository, Set.of(commandHandler), Set.of(stateHandler));
+        callbackHandler = Mockito.mock(CallbackHandler.class);
+        Mockito.when(callbackHandler.forPrefix()).thenReturn("pages");
+        
+        transactionManager = Mockito.mock(PlatformTransactionManager.class);
+        Mockito.when(transactionManager.getTransaction(ArgumentMatchers.any())).thenAnswer(_ -> new SimpleTransactionStatus());
+        
+        botUsername = Mockito.mock(BotUsername.class);
+        Mockito.when(botUsername.get()).thenReturn("BetterTapeBot");
+        
+        meterRegistry = new SimpleMeterRegistry();
+        //like spring boot does, the handler timer comes from the observations
+        var observationRegistry = ObservationRegistry.create();
+        observationRegistry.observationConfig().observationHandler(new DefaultMeterObservationHandler(meterRegistry));
+        messageDelegator = new MessageDelegator(responseService, userStateStore, new HandlerMetrics(meterRegistry, observationRegistry), botUsername, Set.of(commandHandler, readOnlyCommandHandler, statelessCommandHandler),
+            Set.of(stateHandler), Set.of(callbackHandler), transactionManager);
         messageDelegator.postConstruct();
-        Mockito.reset(commandHandler, stateHandler);
+        Mockito.reset(commandHandler, readOnlyCommandHandler, statelessCommandHandler, stateHandler);
+        Mockito.when(commandHandler.stateAccess()).thenReturn(CommandHandler.StateAccess.FULL);
+        Mockito.when(readOnlyCommandHandler.stateAccess()).thenReturn(CommandHandler.StateAccess.READ_ONLY);
+        Mockito.when(statelessCommandHandler.stateAccess()).thenReturn(CommandHandler.StateAccess.NONE);
     }
     
     @Test
@@ -107,7 +177,7 @@ class MessageDelegatorTest {
         update.setMessage(message);
         
         Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
-        Mockito.verifyNoInteractions(responseService, userStateRepository, commandHandler, stateHandler);
+        Mockito.verifyNoInteractions(responseService, userStateStore, commandHandler, stateHandler);
     }
     
     @Test
@@ -116,10 +186,27 @@ class MessageDelegatorTest {
         Update update = createUpdate(chatId, "/unknown command");
         
         Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
-        Mockito.verify(userStateRepository, Mockito.times(1)).findById(chatId);
-        Mockito.verifyNoInteractions(commandHandler, stateHandler);
+        Mockito.verifyNoInteractions(userStateStore, transactionManager, commandHandler, stateHandler);
         Mockito.verify(responseService, Mockito.times(1))
             .send(ArgumentMatchers.eq(chatId), ArgumentMatchers.isNull(), ArgumentMatchers.contains("ungültiger Bot-Befehl"));
+        assertThat(meterRegistry.get("bettertapebot.messages.unhandled").tag("reason", "unknown_command").counter().count()).isEqualTo(1);
+    }
+    
+    @Test
+    void testCommandForOtherBotGetsIgnored(){
+        Update update = createUpdate(235L, HANDLED_COMMAND.getCommand() + "@SomeOtherBot data");
+        
+        Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
+        Mockito.verifyNoInteractions(userStateStore, transactionManager, commandHandler, stateHandler);
+        verifyNothingSent();
+    }
+    
+    @Test
+    void testCommandWithOwnNameGetsHandled(){
+        Update update = createUpdate(236L, HANDLED_COMMAND.getCommand() + "@bettertapebot data");
+        
+        Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
+        Mockito.verify(commandHandler, Mockito.times(1)).handleMessage(ArgumentMatchers.any(), ArgumentMatchers.eq("data"));
     }
     
     @Test
@@ -128,9 +215,77 @@ class MessageDelegatorTest {
         var text = "data";
         Update update = createUpdate(chatId, HANDLED_COMMAND.getCommand() + " "  + text);
         Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
-        Mockito.verify(userStateRepository, Mockito.times(1)).findById(chatId);
-        Mockito.verifyNoInteractions(responseService, stateHandler);
-        Mockito.verify(commandHandler, Mockito.times(1)).handleMessage(USER_STATE_ENTITY, text);
+        Mockito.verify(userStateStore, Mockito.times(1)).get(chatId);
+        verifyNothingSent();
+        Mockito.verifyNoInteractions(stateHandler);
+        Mockito.verify(commandHandler, Mockito.times(1)).handleMessage(
+            ArgumentMatchers.argThat(e -> e.getChatId().equals(USER_STATE_ENTITY.getChatId())), ArgumentMatchers.eq(text));
+        Mockito.verify(transactionManager, Mockito.times(1)).commit(ArgumentMatchers.any());
+        //once for the update and once within the transaction
+        Mockito.verify(responseService, Mockito.times(2)).batched(ArgumentMatchers.any());
+        var timer = meterRegistry.get("bettertapebot.handler.duration")
+            .tags("command", "logout", "state", "none", "outcome", "success")
+            .timer();
+        assertThat(timer.count()).isEqualTo(1);
+    }
+    
+    @Test
+    void testFailingHandlerGetsTimedAsError(){
+        long chatId = 348L;
+        Mockito.doThrow(new IllegalStateException("expected"))
+            .when(commandHandler).handleMessage(ArgumentMatchers.any(), ArgumentMatchers.any());
+        Update update = createUpdate(chatId, HANDLED_COMMAND.getCommand());
+        Assertions.assertThrows(IllegalStateException.class, () -> messageDelegator.processUpdate(update));
+        Mockito.verify(transactionManager, Mockito.times(1)).rollback(ArgumentMatchers.any());
+        var timer = meterRegistry.get("bettertapebot.handler.duration")
+            .tags("command", "logout", "outcome", "error")
+            .timer();
+        assertThat(timer.count()).isEqualTo(1);
+        assertThat(meterRegistry.find("bettertapebot.handler.duration").tag("outcome", "success").timer()).isNull();
+    }
+    
+    @Test
+    void testStatelessCommandDoesNotTouchState(){
+        long chatId = 346L;
+        Update update = createUpdate(chatId, Command.DSGVO.getCommand());
+        Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
+        verifyNothingSent();
+        Mockito.verifyNoInteractions(userStateStore, transactionManager, stateHandler);
+        Mockito.verify(statelessCommandHandler, Mockito.times(1)).handleMessage(
+            ArgumentMatchers.argThat(e -> e.getChatId() == chatId && e.getUserState() == null), ArgumentMatchers.eq(""));
+    }
+    
+    @Test
+    void testReadOnlyCommandGetsCachedStateWithoutTransaction(){
+        long chatId = 347L;
+        Mockito.when(userStateStore.get(chatId)).thenReturn(new CachedUserState(chatId, UserState.LOGGED_IN, true, "user"));
+        Update update = createUpdate(chatId, Command.HELP.getCommand());
+        Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
+        Mockito.verify(userStateStore, Mockito.times(1)).get(chatId);
+        Mockito.verifyNoMoreInteractions(userStateStore);
+        verifyNothingSent();
+        Mockito.verifyNoInteractions(transactionManager, stateHandler);
+        Mockito.verify(readOnlyCommandHandler, Mockito.times(1)).handleMessage(
+            ArgumentMatchers.argThat(e -> e.getUserState() == UserState.LOGGED_IN && e.isAdminModeActive() && e.getOwner() == null), ArgumentMatchers.eq(""));
+    }
+    
+    @Test
+    void testButtonGetsCachedStateWithoutTransaction(){
+        long chatId = 348L;
+        Mockito.when(userStateStore.get(chatId)).thenReturn(new CachedUserState(chatId, UserState.LOGGED_IN, false, "user"));
+        Update update = createCallbackUpdate(chatId, "pages:next:1");
+        Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
+        Mockito.verifyNoInteractions(transactionManager, commandHandler, stateHandler);
+        Mockito.verify(callbackHandler, Mockito.times(1)).handleCallback(
+            ArgumentMatchers.argThat(e -> e.getChatId() == chatId && e.getUserState() == UserState.LOGGED_IN), ArgumentMatchers.same(update.getCallbackQuery()));
+    }
+    
+    @Test
+    void testButtonNobodyHandlesGetsIgnored(){
+        Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(createCallbackUpdate(349L, "unknown:data")));
+        Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(createCallbackUpdate(349L, "pages")));
+        Mockito.verifyNoInteractions(responseService, userStateStore, transactionManager);
+        Mockito.verify(callbackHandler, Mockito.never()).handleCallback(ArgumentMatchers.any(), ArgumentMatchers.any());
     }
     
     @Test
@@ -142,9 +297,9 @@ class MessageDelegatorTest {
             .chatId(chatId)
             .userState(UserState.NEW_CHAT)
             .build();
-        Mockito.when(userStateRepository.findById(chatId)).thenReturn(Optional.of(userStateEntity));
+        Mockito.when(userStateStore.get(chatId)).thenReturn(CachedUserState.of(userStateEntity));
         Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
-        Mockito.verify(userStateRepository, Mockito.times(1)).findById(chatId);
+        Mockito.verify(userStateStore, Mockito.times(1)).get(chatId);
         Mockito.verifyNoInteractions(commandHandler, stateHandler);
         
         ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
@@ -168,7 +323,7 @@ class MessageDelegatorTest {
         Update update = createUpdate(chatId, text);
         Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
         Mockito.verifyNoInteractions(commandHandler, stateHandler);
-        Mockito.verify(userStateRepository, Mockito.times(1)).findById(chatId);
+        Mockito.verify(userStateStore, Mockito.times(1)).get(chatId);
         
         ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
         Mockito.verify(responseService, Mockito.times(1))
@@ -193,11 +348,39 @@ class MessageDelegatorTest {
             .chatId(chatId)
             .userState(HANDLED_STATE)
             .build();
-        Mockito.when(userStateRepository.findById(chatId)).thenReturn(Optional.of(userStateEntity));
+        Mockito.when(userStateStore.get(chatId)).thenReturn(CachedUserState.of(userStateEntity));
         Assertions.assertDoesNotThrow(() -> messageDelegator.processUpdate(update));
         Mockito.verifyNoInteractions(commandHandler);
-        Mockito.verify(userStateRepository, Mockito.times(1)).findById(chatId);
+        Mockito.verify(userStateStore, Mockito.times(1)).get(chatId);
         Mockito.verify(stateHandler, Mockito.times(1))
             .handleMessage(ArgumentMatchers.any(), ArgumentMatchers.eq(text));
+        var timer = meterRegistry.get("bettertapebot.handler.duration")
+            .tags("command", "none", "state", "logged_out", "outcome", "success")
+            .timer();
+        assertThat(timer.count()).isEqualTo(1);
+    }
+    
+    @Test
+    void testChangedStateGetsHandedToStore(){
+        long chatId = 789L;
+        var before = new CachedUserState(chatId, HANDLED_STATE, null, null);
+        Mockito.when(userStateStore.get(chatId)).thenReturn(before);
+        Mockito.doAnswer(i -> {
+            UserStateEntity entity = i.getArgument(0);
+            entity.setUserState(UserState.LOGGED_IN);
+            return null;
+        }).when(stateHandler).handleMessage(ArgumentMatchers.any(), ArgumentMatchers.any());
+        
+        messageDelegator.processUpdate(createUpdate(chatId, "data"));
+        Mockito.verify(userStateStore, Mockito.times(1)).put(before, new CachedUserState(chatId, UserState.LOGGED_IN, null, null));
+    }
+    
+    @Test
+    void testUnchangedStateIsNotWritten(){
+        long chatId = 890L;
+        Mockito.when(userStateStore.get(chatId)).thenReturn(new CachedUserState(chatId, HANDLED_STATE, null, null));
+        messageDelegator.processUpdate(createUpdate(chatId, "data"));
+        Mockito.verify(stateHandler, Mockito.times(1)).handleMessage(ArgumentMatchers.any(), ArgumentMatchers.eq("data"));
+        Mockito.verify(userStateStore, Mockito.never()).put(ArgumentMatchers.any(), ArgumentMatchers.any());
     }
-}
\ No newline at end of file
+}
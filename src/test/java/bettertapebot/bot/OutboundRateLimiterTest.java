@@ -0,0 +1,291 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class OutboundRateLimiterTest {
+    private static final long CHAT_DELAY = Duration.ofSeconds(1).toNanos();
+    private static final long GLOBAL_INTERVAL = Duration.ofMillis(100).toNanos();
+    private static final long GROUP_PERIOD = Duration.ofMinutes(1).toNanos();
+    private static final int GROUP_LIMIT = 3;
+
+    BotProperties botProperties;
+    AtomicLong now;
+    SimpleMeterRegistry meterRegistry;
+    OutboundRateLimiter outboundRateLimiter;
+
+    @BeforeEach
+    void setup(){
+        botProperties = new BotProperties();
+        botProperties.getTelegram().setDelayBetweenMessagesForSameChat(Duration.ofNanos(CHAT_DELAY));
+        var limits = botProperties.getTelegram().getOutboundRateLimit();
+        limits.setGlobalLimit(10);
+        limits.setGlobalPeriod(Duration.ofSeconds(1));
+        limits.setGroupLimit(GROUP_LIMIT);
+        limits.setGroupPeriod(Duration.ofNanos(GROUP_PERIOD));
+        //start close to the overflow, the limiter must only compare differences
+        now = new AtomicLong(Long.MAX_VALUE - CHAT_DELAY);
+        meterRegistry = new SimpleMeterRegistry();
+        outboundRateLimiter = new OutboundRateLimiter(botProperties, meterRegistry, now::get);
+    }
+
+    //what AsyncTelegramClient does for every message, returns the nanos it waited
+    private long next(OutboundRateLimiter.ChatPacing chat){
+        long waited = Math.max(outboundRateLimiter.nanosUntilChatReady(chat), 0);
+        now.addAndGet(waited);
+        long reserved = outboundRateLimiter.reserve();
+        now.addAndGet(reserved);
+        outboundRateLimiter.sent(chat);
+        return waited + reserved;
+    }
+
+    @Test
+    void testFirstMessageGoesOutImmediately(){
+        var chat = outboundRateLimiter.newChat(1L);
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isLessThanOrEqualTo(0);
+        assertThat(outboundRateLimiter.reserve()).isZero();
+    }
+
+    @Test
+    void testSameChatWaitsForDelay(){
+        var chat = outboundRateLimiter.newChat(1L);
+        assertThat(next(chat)).isZero();
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isEqualTo(CHAT_DELAY);
+        now.addAndGet(CHAT_DELAY / 2);
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isEqualTo(CHAT_DELAY / 2);
+    }
+
+    @Test
+    void testDifferentChatsShareGlobalLimit(){
+        for (int i = 0; i < 5; i++) {
+            var chat = outboundRateLimiter.newChat(i);
+            assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isLessThanOrEqualTo(0);
+            assertThat(outboundRateLimiter.reserve()).isEqualTo(i * GLOBAL_INTERVAL);
+        }
+    }
+
+    @Test
+    void testBulkLeavesGlobalSlotsForInteractive(){
+        botProperties.getTelegram().getOutboundRateLimit().setBulkLimit(5);
+        //bulk gets one slot every 200ms
+        assertThat(outboundRateLimiter.reserveBulk()).isZero();
+        assertThat(outboundRateLimiter.reserveBulk()).isEqualTo(2 * GLOBAL_INTERVAL);
+        assertThat(outboundRateLimiter.reserveBulk()).isEqualTo(4 * GLOBAL_INTERVAL);
+        //only the global slot counts for interactive messages, bulk takes it once its bulk slot is due
+        assertThat(outboundRateLimiter.reserve()).isZero();
+        assertThat(outboundRateLimiter.reserve()).isEqualTo(GLOBAL_INTERVAL);
+    }
+    
+    @Test
+    void testUnusedGlobalSlotsDoNotAddUp(){
+        now.addAndGet(Duration.ofMinutes(5).toNanos());
+        assertThat(outboundRateLimiter.reserve()).isZero();
+        assertThat(outboundRateLimiter.reserve()).isEqualTo(GLOBAL_INTERVAL);
+    }
+
+    @Test
+    void testGroupGetsBurstThenWaitsForWindow(){
+        var group = outboundRateLimiter.newChat(-100L);
+        long start = now.get();
+        for (int i = 0; i < GROUP_LIMIT; i++) {
+            next(group);
+        }
+        //the chat delay was the limit so far, now the first message has to leave the window
+        long waited = now.get() - start;
+        assertThat(waited).isEqualTo((GROUP_LIMIT - 1) * CHAT_DELAY);
+        assertThat(outboundRateLimiter.nanosUntilChatReady(group)).isEqualTo(GROUP_PERIOD - waited);
+
+        now.addAndGet(GROUP_PERIOD - waited);
+        assertThat(outboundRateLimiter.nanosUntilChatReady(group)).isZero();
+        next(group);
+        //then the second one
+        assertThat(outboundRateLimiter.nanosUntilChatReady(group)).isEqualTo(CHAT_DELAY);
+    }
+
+    @Test
+    void testPrivateChatHasNoGroupLimit(){
+        var chat = outboundRateLimiter.newChat(100L);
+        for (int i = 0; i < GROUP_LIMIT * 2; i++) {
+            next(chat);
+        }
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isEqualTo(CHAT_DELAY);
+    }
+
+    @Test
+    void testWaitingGroupDoesNotBlockOtherChats(){
+        var group = outboundRateLimiter.newChat(-100L);
+        for (int i = 0; i < GROUP_LIMIT; i++) {
+            next(group);
+        }
+        assertThat(outboundRateLimiter.nanosUntilChatReady(group)).isPositive();
+        //the group didn't take a global slot while waiting
+        assertThat(outboundRateLimiter.reserve()).isLessThanOrEqualTo(GLOBAL_INTERVAL);
+    }
+
+    @Test
+    void testPausedChatWaitsExactlyRetryAfter(){
+        var chat = outboundRateLimiter.newChat(-100L);
+        var other = outboundRateLimiter.newChat(-200L);
+        next(chat);
+        outboundRateLimiter.pauseChat(chat, Duration.ofSeconds(7));
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isEqualTo(Duration.ofSeconds(7).toNanos());
+        //a shorter pause afterwards doesn't end the longer one
+        outboundRateLimiter.pauseChat(chat, Duration.ofSeconds(2));
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isEqualTo(Duration.ofSeconds(7).toNanos());
+        assertThat(outboundRateLimiter.nanosUntilChatReady(other)).isLessThanOrEqualTo(0);
+        assertThat(outboundRateLimiter.isPaused()).isFalse();
+        //the shorter pause didn't add any time
+        assertThat(meterRegistry.get("bettertapebot.telegram.throttled").tag("scope", "chat").counter().count()).isEqualTo(7);
+        //a longer one only adds what goes beyond the current pause
+        now.addAndGet(Duration.ofSeconds(3).toNanos());
+        outboundRateLimiter.pauseChat(chat, Duration.ofSeconds(6));
+        assertThat(meterRegistry.get("bettertapebot.telegram.throttled").tag("scope", "chat").counter().count()).isEqualTo(9);
+    }
+
+    @Test
+    void testGlobalPauseDelaysEveryChat(){
+        outboundRateLimiter.pauseAll(Duration.ofSeconds(5));
+        assertThat(outboundRateLimiter.isPaused()).isTrue();
+        var chat = outboundRateLimiter.newChat(1L);
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isLessThanOrEqualTo(0);
+        assertThat(outboundRateLimiter.reserve()).isEqualTo(Duration.ofSeconds(5).toNanos());
+        //the ones after it are spread out behind the pause
+        assertThat(outboundRateLimiter.reserve()).isEqualTo(Duration.ofSeconds(5).toNanos() + GLOBAL_INTERVAL);
+
+        now.addAndGet(Duration.ofSeconds(5).toNanos());
+        assertThat(outboundRateLimiter.isPaused()).isFalse();
+        assertThat(meterRegistry.get("bettertapebot.telegram.throttled").tag("scope", "global").counter().count()).isEqualTo(5);
+    }
+
+    @Test
+    void testOverlappingGlobalPausesAreCountedOnce(){
+        //several chats running into the same 429 at once
+        outboundRateLimiter.pauseAll(Duration.ofSeconds(5));
+        outboundRateLimiter.pauseAll(Duration.ofSeconds(5));
+        now.addAndGet(Duration.ofSeconds(1).toNanos());
+        outboundRateLimiter.pauseAll(Duration.ofSeconds(5));
+        assertThat(meterRegistry.get("bettertapebot.telegram.throttled").tag("scope", "global").counter().count()).isEqualTo(6);
+        //a pause after the last one is over counts in full
+        now.addAndGet(Duration.ofSeconds(10).toNanos());
+        outboundRateLimiter.pauseAll(Duration.ofSeconds(2));
+        assertThat(meterRegistry.get("bettertapebot.telegram.throttled").tag("scope", "global").counter().count()).isEqualTo(8);
+    }
+
+    @Test
+    void testAdaptiveChatSpeedsUpWhileMessagesGoThrough(){
+        var adaptive = enableAdaptivePacing();
+        var chat = outboundRateLimiter.newChat(1L);
+        next(chat);
+        outboundRateLimiter.succeeded(chat);
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isEqualTo(CHAT_DELAY - adaptive.getChatSpeedUpStep().toNanos());
+        
+        for (int i = 0; i < 1000; i++) {
+            next(chat);
+            outboundRateLimiter.succeeded(chat);
+        }
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isEqualTo(adaptive.getMinDelayBetweenMessagesForSameChat().toNanos());
+    }
+    
+    @Test
+    void testAdaptiveChatBacksOffOnTooManyRequests(){
+        var adaptive = enableAdaptivePacing();
+        var chat = outboundRateLimiter.newChat(-100L);
+        next(chat);
+        outboundRateLimiter.pauseChat(chat, Duration.ZERO);
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isEqualTo(CHAT_DELAY * 2);
+        for (int i = 0; i < 10; i++) {
+            outboundRateLimiter.pauseChat(chat, Duration.ZERO);
+        }
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isEqualTo(adaptive.getMaxDelayBetweenMessagesForSameChat().toNanos());
+        //other chats are not affected
+        var other = outboundRateLimiter.newChat(-200L);
+        next(other);
+        assertThat(outboundRateLimiter.nanosUntilChatReady(other)).isEqualTo(CHAT_DELAY);
+    }
+    
+    @Test
+    void testAdaptiveGlobalIntervalBacksOffAndRecoversUpToLimit(){
+        var adaptive = enableAdaptivePacing();
+        var chat = outboundRateLimiter.newChat(1L);
+        assertThat(outboundRateLimiter.globalInterval()).isEqualTo(GLOBAL_INTERVAL);
+        //already at the configured limit, succeeding doesn't go above it
+        outboundRateLimiter.succeeded(chat);
+        assertThat(outboundRateLimiter.globalInterval()).isEqualTo(GLOBAL_INTERVAL);
+        
+        outboundRateLimiter.pauseAll(Duration.ZERO);
+        assertThat(outboundRateLimiter.globalInterval()).isEqualTo(GLOBAL_INTERVAL * 2);
+        outboundRateLimiter.reserve();
+        assertThat(outboundRateLimiter.reserve()).isEqualTo(GLOBAL_INTERVAL * 2);
+        for (int i = 0; i < 10; i++) {
+            outboundRateLimiter.pauseAll(Duration.ZERO);
+        }
+        //globalMinLimit of 5 per second
+        assertThat(outboundRateLimiter.globalInterval()).isEqualTo(Duration.ofMillis(200).toNanos());
+        
+        outboundRateLimiter.succeeded(chat);
+        assertThat(outboundRateLimiter.globalInterval()).isEqualTo(Duration.ofMillis(200).toNanos() - adaptive.getGlobalSpeedUpStep().toNanos());
+        for (int i = 0; i < 10_000; i++) {
+            outboundRateLimiter.succeeded(chat);
+        }
+        assertThat(outboundRateLimiter.globalInterval()).isEqualTo(GLOBAL_INTERVAL);
+    }
+    
+    @Test
+    void testSucceededDoesNothingWithoutAdaptivePacing(){
+        var chat = outboundRateLimiter.newChat(-100L);
+        next(chat);
+        outboundRateLimiter.succeeded(chat);
+        outboundRateLimiter.pauseChat(chat, Duration.ZERO);
+        outboundRateLimiter.pauseAll(Duration.ZERO);
+        assertThat(outboundRateLimiter.nanosUntilChatReady(chat)).isEqualTo(CHAT_DELAY);
+        assertThat(outboundRateLimiter.globalInterval()).isEqualTo(GLOBAL_INTERVAL);
+    }
+    
+    @Test
+    void testChatIsIdleOnceItsLimitsAreOver(){
+        var chat = outboundRateLimiter.newChat(1L);
+        assertThat(outboundRateLimiter.nanosUntilIdle(chat)).isLessThanOrEqualTo(0);
+        next(chat);
+        assertThat(outboundRateLimiter.nanosUntilIdle(chat)).isEqualTo(CHAT_DELAY);
+        outboundRateLimiter.pauseChat(chat, Duration.ofSeconds(5));
+        assertThat(outboundRateLimiter.nanosUntilIdle(chat)).isEqualTo(Duration.ofSeconds(5).toNanos());
+        
+        //a group is only idle once its last message left the window, even if it could send again before
+        var group = outboundRateLimiter.newChat(-100L);
+        next(group);
+        now.addAndGet(CHAT_DELAY);
+        next(group);
+        assertThat(outboundRateLimiter.nanosUntilChatReady(group)).isEqualTo(CHAT_DELAY);
+        assertThat(outboundRateLimiter.nanosUntilIdle(group)).isEqualTo(GROUP_PERIOD);
+    }
+    
+    @Test
+    void testChatIsFasterThanItsLimitOnlyWhileAdaptiveDelayIsBelowIt(){
+        var chat = outboundRateLimiter.newChat(1L);
+        assertThat(outboundRateLimiter.isFasterThanChatLimit(chat)).isFalse();
+        enableAdaptivePacing();
+        next(chat);
+        assertThat(outboundRateLimiter.isFasterThanChatLimit(chat)).isFalse();
+        outboundRateLimiter.succeeded(chat);
+        assertThat(outboundRateLimiter.isFasterThanChatLimit(chat)).isTrue();
+        //a 429 backs the chat off to its limit and beyond
+        outboundRateLimiter.pauseChat(chat, Duration.ZERO);
+        assertThat(outboundRateLimiter.isFasterThanChatLimit(chat)).isFalse();
+    }
+    
+    private BotProperties.AdaptivePacingProperties enableAdaptivePacing(){
+        var adaptive = botProperties.getTelegram().getAdaptivePacing();
+        adaptive.setEnabled(true);
+        adaptive.setGlobalMinLimit(5);
+        return adaptive;
+    }
+}
@@ -0,0 +1,175 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import bettertapebot.testutil.TestcontainersConfiguration;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.data.jpa.test.autoconfigure.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/*
+    the outbox sql against the real table, OutboxRelayTest covers the rest with a mocked JdbcTemplate
+ */
+@DataJpaTest
+@Import(TestcontainersConfiguration.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED) //the outbox is written right before a commit, so every test needs real ones
+class OutboxRelayDatabaseTest {
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    BotProperties botProperties;
+    AsyncTelegramClient asyncTelegramClient;
+    TransactionTemplate transactionTemplate;
+    OutboxRelay outboxRelay;
+
+    @BeforeEach
+    void setup(){
+        botProperties = new BotProperties();
+        botProperties.getOutbox().setBatchSize(2);
+        asyncTelegramClient = Mockito.mock(AsyncTelegramClient.class);
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        //not a bean, the relay thread would claim the rows before the tests do
+        outboxRelay = new OutboxRelay(botProperties, jdbcTemplate, asyncTelegramClient, ObservationRegistry.create());
+    }
+
+    @AfterEach
+    void cleanUp(){
+        jdbcTemplate.update("DELETE FROM " + OutboxRelay.TABLE_NAME);
+    }
+
+    private void addInTransaction(long... chatIds){
+        transactionTemplate.executeWithoutResult(_ -> {
+            for (long chatId : chatIds) {
+                outboxRelay.add(chatId, new SendMessage(String.valueOf(chatId), "message to " + chatId), MessagePriority.INTERACTIVE);
+            }
+        });
+    }
+
+    private int count(String where){
+        return jdbcTemplate.queryForObject("SELECT count(*) FROM " + OutboxRelay.TABLE_NAME + " WHERE " + where, Integer.class);
+    }
+
+    private ArgumentCaptor<Runnable> verifyRelayed(long... chatIds){
+        var inOrder = Mockito.inOrder(asyncTelegramClient);
+        var whenDone = ArgumentCaptor.forClass(Runnable.class);
+        for (long chatId : chatIds) {
+            inOrder.verify(asyncTelegramClient).sendMessage(ArgumentMatchers.eq(chatId), ArgumentMatchers.any(SendMessage.class),
+                ArgumentMatchers.eq(MessagePriority.INTERACTIVE), whenDone.capture());
+        }
+        Mockito.verifyNoMoreInteractions(asyncTelegramClient);
+        return whenDone;
+    }
+
+    @Test
+    void testMessagesAreOnlyWrittenWhenTheTransactionCommits(){
+        transactionTemplate.executeWithoutResult(_ -> {
+            outboxRelay.add(1L, new SendMessage("1", "committed"), MessagePriority.INTERACTIVE);
+            //inserted right before the commit, not when added
+            assertThat(count("TRUE")).isZero();
+        });
+        assertThat(count("TRUE")).isOne();
+
+        transactionTemplate.executeWithoutResult(status -> {
+            outboxRelay.add(2L, new SendMessage("2", "rolled back"), MessagePriority.INTERACTIVE);
+            status.setRollbackOnly();
+        });
+        assertThat(count("TRUE")).isOne();
+        assertThat(count("chat_id = 1 AND claimed_at IS NULL AND delivered_at IS NULL AND created_at IS NOT NULL")).isOne();
+    }
+
+    @Test
+    void testEveryRowIsClaimedOnceInOrder(){
+        addInTransaction(1L, 2L, 3L, 4L, 5L);
+
+        //three claims of at most two rows
+        assertThat(outboxRelay.drain()).isEqualTo(5);
+        verifyRelayed(1L, 2L, 3L, 4L, 5L);
+        assertThat(count("claimed_at IS NOT NULL")).isEqualTo(5);
+
+        assertThat(outboxRelay.drain()).isZero();
+        Mockito.verifyNoMoreInteractions(asyncTelegramClient);
+    }
+
+    @Test
+    void testClaimSkipsRowsLockedByAnotherTransaction(){
+        addInTransaction(1L, 2L, 3L);
+
+        transactionTemplate.executeWithoutResult(_ -> {
+            jdbcTemplate.queryForList("SELECT id FROM " + OutboxRelay.TABLE_NAME + " WHERE chat_id = 1 FOR UPDATE");
+            //on another connection, it would wait for the lock without skip locked
+            int relayed = CompletableFuture.supplyAsync(outboxRelay::drain).join();
+            assertThat(relayed).isEqualTo(2);
+        });
+        verifyRelayed(2L, 3L);
+
+        assertThat(outboxRelay.drain()).isOne();
+    }
+
+    @Test
+    void testOnlyExpiredClaimsAreRelayedAgain(){
+        botProperties.getOutbox().setClaimTimeout(Duration.ofMinutes(10));
+        addInTransaction(1L, 2L, 3L);
+        outboxRelay.drain();
+        var whenDone = verifyRelayed(1L, 2L, 3L);
+
+        //only the first one made it to telegram before the crash
+        whenDone.getAllValues().getFirst().run();
+        outboxRelay.flushDelivered();
+        assertThat(count("chat_id = 1 AND delivered_at IS NOT NULL")).isOne();
+        //the third one was claimed just now, e.g. by another instance that's still sending it
+        jdbcTemplate.update("UPDATE " + OutboxRelay.TABLE_NAME + " SET claimed_at = ? WHERE chat_id <> 3",
+            Timestamp.from(Instant.now().minus(Duration.ofMinutes(11))));
+
+        Mockito.clearInvocations(asyncTelegramClient);
+        outboxRelay.relayExpiredClaims();
+        assertThat(count("claimed_at IS NULL")).isOne();
+        assertThat(outboxRelay.drain()).isOne();
+        verifyRelayed(2L);
+    }
+
+    @Test
+    void testPruneOnlyDeletesRowsDeliveredBeforeTheRetention(){
+        botProperties.getOutbox().setRetention(Duration.ofHours(1));
+        var now = Instant.now();
+        var old = Timestamp.from(now.minus(Duration.ofHours(2)));
+        var recent = Timestamp.from(now.minus(Duration.ofMinutes(1)));
+        for (var deliveredAt : List.of(old, old, old, old, old, recent)) {
+            jdbcTemplate.update("INSERT INTO " + OutboxRelay.TABLE_NAME + " (chat_id, message, priority, created_at, claimed_at, delivered_at) VALUES (?, ?, ?, ?, ?, ?)",
+                1L, "{}", MessagePriority.INTERACTIVE.name(), old, old, deliveredAt);
+        }
+        //relayed long ago but never delivered, it has to be sent again after a restart
+        jdbcTemplate.update("INSERT INTO " + OutboxRelay.TABLE_NAME + " (chat_id, message, priority, created_at, claimed_at) VALUES (?, ?, ?, ?, ?)",
+            2L, "{}", MessagePriority.INTERACTIVE.name(), old, old);
+
+        //more rows than one delete takes
+        outboxRelay.prune();
+
+        assertThat(count("TRUE")).isEqualTo(2);
+        assertThat(count("delivered_at IS NOT NULL")).isOne();
+        assertThat(count("chat_id = 2 AND delivered_at IS NULL")).isOne();
+    }
+}
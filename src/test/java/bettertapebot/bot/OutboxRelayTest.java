@@ -0,0 +1,231 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.tracing.handler.DefaultTracingObservationHandler;
+import io.micrometer.tracing.handler.PropagatingReceiverTracingObservationHandler;
+import io.micrometer.tracing.handler.PropagatingSenderTracingObservationHandler;
+import io.micrometer.tracing.otel.bridge.OtelCurrentTraceContext;
+import io.micrometer.tracing.otel.bridge.OtelPropagator;
+import io.micrometer.tracing.otel.bridge.OtelTracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.propagation.ContextPropagators;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SimpleSpanProcessor;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardRemove;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringJUnitConfig
+class OutboxRelayTest {
+
+    ObjectMapper objectMapper = new ObjectMapper();
+    BotProperties botProperties;
+    JdbcTemplate jdbcTemplate;
+    AsyncTelegramClient asyncTelegramClient;
+    OutboxRelay outboxRelay;
+
+    @BeforeEach
+    void setup(){
+        botProperties = new BotProperties();
+        botProperties.getOutbox().setBatchSize(2);
+        jdbcTemplate = Mockito.mock(JdbcTemplate.class);
+        asyncTelegramClient = Mockito.mock(AsyncTelegramClient.class);
+        outboxRelay = new OutboxRelay(botProperties, jdbcTemplate, asyncTelegramClient, ObservationRegistry.create());
+    }
+
+    @AfterEach
+    void cleanUp(){
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        TransactionSynchronizationManager.unbindResourceIfPossible(outboxRelay);
+    }
+
+    @SneakyThrows
+    private String json(SendMessage message){
+        return objectMapper.writeValueAsString(message);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void claimReturns(List<OutboxRelay.OutboxRow>... batches){
+        var stubbing = Mockito.when(jdbcTemplate.query(ArgumentMatchers.eq(OutboxRelay.CLAIM), ArgumentMatchers.<RowMapper<OutboxRelay.OutboxRow>>any(),
+            ArgumentMatchers.any(), ArgumentMatchers.any()));
+        for (List<OutboxRelay.OutboxRow> batch : batches) {
+            stubbing = stubbing.thenReturn(batch);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void testMessagesOfTransactionAreWrittenBeforeCommit(){
+        var message = SendMessage.builder()
+            .chatId(1L)
+            .text("<b>hello</b>")
+            .parseMode("HTML")
+            .replyMarkup(new ReplyKeyboardRemove(true))
+            .build();
+        TransactionSynchronizationManager.initSynchronization();
+        outboxRelay.add(1L, message, MessagePriority.INTERACTIVE);
+        outboxRelay.add(2L, new SendMessage("2", "other"), MessagePriority.BULK);
+        Mockito.verifyNoInteractions(jdbcTemplate);
+
+        TransactionSynchronizationUtils.triggerBeforeCommit(false);
+        //noinspection unchecked
+        ArgumentCaptor<List<Object[]>> rowsCaptor = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(jdbcTemplate, Mockito.times(1)).batchUpdate(ArgumentMatchers.eq(OutboxRelay.INSERT), rowsCaptor.capture());
+        var rows = rowsCaptor.getValue();
+        assertThat(rows).hasSize(2);
+        assertThat(rows.getFirst()[0]).isEqualTo(1L);
+        assertThat(objectMapper.readValue((String) rows.getFirst()[1], SendMessage.class)).isEqualTo(message);
+        assertThat(rows.getFirst()[2]).isEqualTo(MessagePriority.INTERACTIVE.name());
+        assertThat(rows.get(1)[2]).isEqualTo(MessagePriority.BULK.name());
+        //nothing traced, nothing to continue
+        assertThat(rows.getFirst()[4]).isNull();
+        Mockito.verifyNoInteractions(asyncTelegramClient);
+    }
+
+    @Test
+    void testOutboxNeedsTransaction(){
+        assertThatThrownBy(() -> outboxRelay.add(1L, new SendMessage("1", "m"), MessagePriority.INTERACTIVE))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testClaimedRowsAreRelayedInOrder(){
+        claimReturns(
+            List.of(new OutboxRelay.OutboxRow(2, 10L, json(new SendMessage("10", "second")), MessagePriority.INTERACTIVE, null),
+                new OutboxRelay.OutboxRow(1, 10L, json(new SendMessage("10", "first")), MessagePriority.INTERACTIVE, null)),
+            List.of(new OutboxRelay.OutboxRow(3, 11L, json(new SendMessage("11", "bulk")), MessagePriority.BULK, null)));
+
+        assertThat(outboxRelay.drain()).isEqualTo(3);
+
+        ArgumentCaptor<SendMessage> messageCaptor = ArgumentCaptor.forClass(SendMessage.class);
+        var inOrder = Mockito.inOrder(asyncTelegramClient);
+        inOrder.verify(asyncTelegramClient, Mockito.times(2)).sendMessage(ArgumentMatchers.eq(10L), messageCaptor.capture(), ArgumentMatchers.eq(MessagePriority.INTERACTIVE), ArgumentMatchers.any());
+        inOrder.verify(asyncTelegramClient).sendMessage(ArgumentMatchers.eq(11L), messageCaptor.capture(), ArgumentMatchers.eq(MessagePriority.BULK), ArgumentMatchers.any());
+        assertThat(messageCaptor.getAllValues()).extracting(SendMessage::getText).containsExactly("first", "second", "bulk");
+    }
+
+    @Test
+    void testDeliveredRowsAreMarked(){
+        claimReturns(List.of(new OutboxRelay.OutboxRow(7, 10L, json(new SendMessage("10", "m")), MessagePriority.INTERACTIVE, null)));
+        outboxRelay.drain();
+        ArgumentCaptor<Runnable> whenDoneCaptor = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(asyncTelegramClient).sendMessage(ArgumentMatchers.eq(10L), ArgumentMatchers.any(), ArgumentMatchers.any(), whenDoneCaptor.capture());
+
+        outboxRelay.flushDelivered();
+        Mockito.verify(jdbcTemplate, Mockito.never()).batchUpdate(ArgumentMatchers.eq(OutboxRelay.MARK_DELIVERED), ArgumentMatchers.<List<Object[]>>any());
+
+        whenDoneCaptor.getValue().run();
+        Mockito.when(jdbcTemplate.batchUpdate(ArgumentMatchers.eq(OutboxRelay.MARK_DELIVERED), ArgumentMatchers.<List<Object[]>>any()))
+            .thenThrow(new QueryTimeoutException("db down"))
+            .thenReturn(new int[]{1});
+        outboxRelay.flushDelivered();
+        //kept for the next flush
+        outboxRelay.flushDelivered();
+
+        //noinspection unchecked
+        ArgumentCaptor<List<Object[]>> rowsCaptor = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(jdbcTemplate, Mockito.times(2)).batchUpdate(ArgumentMatchers.eq(OutboxRelay.MARK_DELIVERED), rowsCaptor.capture());
+        assertThat(rowsCaptor.getValue()).singleElement().satisfies(row -> assertThat(row[1]).isEqualTo(7L));
+    }
+
+    @Test
+    void testUnreadableRowIsDropped(){
+        claimReturns(List.of(new OutboxRelay.OutboxRow(8, 10L, "not json", MessagePriority.INTERACTIVE, null)));
+        outboxRelay.drain();
+        Mockito.verifyNoInteractions(asyncTelegramClient);
+
+        outboxRelay.flushDelivered();
+        Mockito.verify(jdbcTemplate).batchUpdate(ArgumentMatchers.eq(OutboxRelay.MARK_DELIVERED), ArgumentMatchers.<List<Object[]>>argThat(rows -> rows.size() == 1 && rows.getFirst()[1].equals(8L)));
+    }
+
+    @Test
+    void testPruneDeletesInBatches(){
+        Mockito.when(jdbcTemplate.update(ArgumentMatchers.eq(OutboxRelay.PRUNE), ArgumentMatchers.<Object>any(), ArgumentMatchers.anyInt()))
+            .thenReturn(2, 2, 1);
+        outboxRelay.prune();
+        Mockito.verify(jdbcTemplate, Mockito.times(3)).update(ArgumentMatchers.eq(OutboxRelay.PRUNE), ArgumentMatchers.any(), ArgumentMatchers.eq(2));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testRelayedMessageContinuesTheTraceOfTheUpdate(){
+        List<SpanData> spans = new CopyOnWriteArrayList<>();
+        var tracerProvider = SdkTracerProvider.builder()
+            .addSpanProcessor(SimpleSpanProcessor.create(new SpanExporter() {
+                @Override
+                public CompletableResultCode export(Collection<SpanData> exported) {
+                    spans.addAll(exported);
+                    return CompletableResultCode.ofSuccess();
+                }
+
+                @Override
+                public CompletableResultCode flush() {
+                    return CompletableResultCode.ofSuccess();
+                }
+
+                @Override
+                public CompletableResultCode shutdown() {
+                    return CompletableResultCode.ofSuccess();
+                }
+            }))
+            .build();
+        var otelTracer = tracerProvider.get("test");
+        var tracer = new OtelTracer(otelTracer, new OtelCurrentTraceContext(), _ -> {});
+        var propagator = new OtelPropagator(ContextPropagators.create(W3CTraceContextPropagator.getInstance()), otelTracer);
+        var observationRegistry = ObservationRegistry.create();
+        observationRegistry.observationConfig().observationHandler(new ObservationHandler.FirstMatchingCompositeObservationHandler(
+            new PropagatingSenderTracingObservationHandler<>(tracer, propagator),
+            new PropagatingReceiverTracingObservationHandler<>(tracer, propagator),
+            new DefaultTracingObservationHandler(tracer)));
+        outboxRelay = new OutboxRelay(botProperties, jdbcTemplate, asyncTelegramClient, observationRegistry);
+
+        TransactionSynchronizationManager.initSynchronization();
+        Observation.createNotStarted("bettertapebot.update", observationRegistry)
+            .observe(() -> outboxRelay.add(1L, new SendMessage("1", "m"), MessagePriority.INTERACTIVE));
+        TransactionSynchronizationUtils.triggerBeforeCommit(false);
+        ArgumentCaptor<List<Object[]>> rowsCaptor = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(jdbcTemplate).batchUpdate(ArgumentMatchers.eq(OutboxRelay.INSERT), rowsCaptor.capture());
+        var traceContext = (String) rowsCaptor.getValue().getFirst()[4];
+        assertThat(traceContext).contains("traceparent");
+
+        //relayed on the relay thread, where nothing of the update is current anymore
+        claimReturns(List.of(new OutboxRelay.OutboxRow(1, 1L, json(new SendMessage("1", "m")), MessagePriority.INTERACTIVE, traceContext)));
+        Mockito.doAnswer(_ -> {
+            assertThat(observationRegistry.getCurrentObservation()).isNotNull();
+            return null;
+        }).when(asyncTelegramClient).sendMessage(ArgumentMatchers.anyLong(), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
+        outboxRelay.drain();
+        Mockito.verify(asyncTelegramClient).sendMessage(ArgumentMatchers.eq(1L), ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.any());
+
+        assertThat(spans).extracting(SpanData::getName).containsExactlyInAnyOrder("bettertapebot.update", "outbox write", "outbox relay");
+        assertThat(spans).extracting(SpanData::getTraceId).containsOnly(spans.getFirst().getTraceId());
+    }
+}
@@ -0,0 +1,208 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import bettertapebot.repository.UpdateOffsetRepository;
+import io.micrometer.observation.ObservationRegistry;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.chat.Chat;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class PartitionedUpdateConsumerTest {
+
+    BotProperties botProperties;
+    MessageDelegator messageDelegator;
+    BatchUpdateProcessor batchUpdateProcessor;
+    InboundFloodProtection inboundFloodProtection;
+    UpdateOffsetTracker updateOffsetTracker;
+    PartitionedUpdateConsumer partitionedUpdateConsumer;
+
+    private static Update createUpdate(int updateId, long chatId, String text){
+        Message message = Message.builder()
+            .chat(Chat.builder()
+                .id(chatId)
+                .type("private")
+                .build())
+            .text(text)
+            .build();
+
+        Update update = new Update();
+        update.setUpdateId(updateId);
+        update.setMessage(message);
+        return update;
+    }
+
+    @BeforeEach
+    void setup(){
+        botProperties = new BotProperties();
+        botProperties.getTelegram().setUpdatePartitionCount(4);
+        botProperties.getTelegram().setMaxUpdatesInFlight(1000);
+        messageDelegator = Mockito.mock(MessageDelegator.class);
+        batchUpdateProcessor = Mockito.mock(BatchUpdateProcessor.class);
+        inboundFloodProtection = Mockito.mock(InboundFloodProtection.class);
+        Mockito.when(inboundFloodProtection.tryAdmit(ArgumentMatchers.any())).thenReturn(true);
+        updateOffsetTracker = Mockito.mock(UpdateOffsetTracker.class);
+        Mockito.when(updateOffsetTracker.tryBegin(ArgumentMatchers.anyLong())).thenReturn(true);
+        partitionedUpdateConsumer = new PartitionedUpdateConsumer(botProperties, messageDelegator, batchUpdateProcessor, inboundFloodProtection, updateOffsetTracker,
+            ObservationRegistry.NOOP);
+        partitionedUpdateConsumer.postConstruct();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        partitionedUpdateConsumer.shutdown();
+    }
+
+    @Test
+    void testRejectedUpdatesAreFetchedAgainAfterRestart() throws InterruptedException {
+        botProperties.getTelegram().setMaxUpdatesInFlight(2);
+        var realTracker = new UpdateOffsetTracker(botProperties, Mockito.mock(UpdateOffsetRepository.class));
+        realTracker.postConstruct();
+        var consumer = new PartitionedUpdateConsumer(botProperties, messageDelegator, batchUpdateProcessor, inboundFloodProtection, realTracker,
+            ObservationRegistry.NOOP);
+        consumer.postConstruct();
+        consumer.shutdown();
+
+        consumer.consume(createUpdate(5, 1L, "rejected"));
+        botProperties.getTelegram().setBatchTransactions(true);
+        consumer.consume(List.of(createUpdate(6, 1L, "rejected"), createUpdate(7, 2L, "rejected")));
+
+        Mockito.verifyNoInteractions(messageDelegator, batchUpdateProcessor);
+        assertThat(realTracker.getWatermark()).isLessThan(5);
+        assertThat(realTracker.nextGetUpdates(0).getOffset()).isLessThanOrEqualTo(5);
+        //the permits are back all the same
+        assertThat(consumer.tryConsume(createUpdate(8, 1L, "rejected"))).isTrue();
+        assertThat(consumer.tryConsume(createUpdate(9, 1L, "rejected"))).isTrue();
+    }
+
+    @Test
+    void testOrderIsKeptPerChat(){
+        Map<Long, List<Integer>> processed = new ConcurrentHashMap<>();
+        Mockito.doAnswer(i -> {
+            Update update = i.getArgument(0);
+            processed.computeIfAbsent(update.getMessage().getChatId(), _ -> new CopyOnWriteArrayList<>())
+                .add(Integer.parseInt(update.getMessage().getText()));
+            return null;
+        }).when(messageDelegator).processUpdate(ArgumentMatchers.any());
+
+        int chats = 10;
+        int perChat = 100;
+        List<Update> updates = new ArrayList<>();
+        for (int i = 0; i < perChat; i++) {
+            for (long chatId = 0; chatId < chats; chatId++) {
+                updates.add(createUpdate(updates.size(), chatId, "" + i));
+            }
+        }
+        partitionedUpdateConsumer.consume(updates);
+
+        Awaitility.await().atMost(Duration.ofSeconds(3)).untilAsserted(() ->
+            Mockito.verify(messageDelegator, Mockito.times(chats * perChat)).processUpdate(ArgumentMatchers.any()));
+        assertThat(processed).hasSize(chats)
+            .allSatisfy((_, texts) -> assertThat(texts).isSorted().hasSize(perChat));
+    }
+
+    @Test
+    void testSlowChatDoesNotBlockOtherChats() throws InterruptedException {
+        CountDownLatch slowChatReleased = new CountDownLatch(1);
+        AtomicInteger fastChatCount = new AtomicInteger();
+        Mockito.doAnswer(i -> {
+            Update update = i.getArgument(0);
+            if(update.getMessage().getChatId() == 0L){
+                slowChatReleased.await(5, TimeUnit.SECONDS);
+            }
+            else {
+                fastChatCount.incrementAndGet();
+            }
+            return null;
+        }).when(messageDelegator).processUpdate(ArgumentMatchers.any());
+
+        //chat 0 and 1 land in different partitions
+        partitionedUpdateConsumer.consume(List.of(createUpdate(1, 0L, "slow"), createUpdate(2, 1L, "fast"), createUpdate(3, 1L, "fast")));
+
+        Awaitility.await().atMost(Duration.ofSeconds(1)).untilAsserted(() -> assertThat(fastChatCount).hasValue(2));
+        slowChatReleased.countDown();
+    }
+
+    @Test
+    void testFailingUpdateDoesNotStopPartition(){
+        Mockito.doThrow(new IllegalStateException("expected"))
+            .doNothing()
+            .when(messageDelegator).processUpdate(ArgumentMatchers.any());
+
+        partitionedUpdateConsumer.consume(List.of(createUpdate(1, 5L, "a"), createUpdate(2, 5L, "b")));
+
+        Awaitility.await().atMost(Duration.ofSeconds(1)).untilAsserted(() ->
+            Mockito.verify(messageDelegator, Mockito.times(2)).processUpdate(ArgumentMatchers.any()));
+    }
+
+    @Test
+    void testAlreadyHandledUpdateGetsSkipped(){
+        Mockito.when(updateOffsetTracker.tryBegin(1L)).thenReturn(false);
+        partitionedUpdateConsumer.consume(List.of(createUpdate(1, 5L, "a"), createUpdate(2, 5L, "b")));
+
+        Awaitility.await().atMost(Duration.ofSeconds(1)).untilAsserted(() ->
+            Mockito.verify(updateOffsetTracker, Mockito.times(1)).complete(2L));
+        Mockito.verify(messageDelegator, Mockito.times(1)).processUpdate(ArgumentMatchers.any());
+        Mockito.verify(updateOffsetTracker, Mockito.never()).complete(1L);
+    }
+
+    @Test
+    void testBatchModeHandsOverOneBatchPerPartition(){
+        botProperties.getTelegram().setBatchTransactions(true);
+        Map<Long, List<Integer>> processed = new ConcurrentHashMap<>();
+        Mockito.doAnswer(i -> {
+            List<Update> batch = i.getArgument(0);
+            for (Update update : batch) {
+                processed.computeIfAbsent(update.getMessage().getChatId(), _ -> new CopyOnWriteArrayList<>())
+                    .add(update.getUpdateId());
+            }
+            return null;
+        }).when(batchUpdateProcessor).processBatch(ArgumentMatchers.any());
+        Mockito.when(updateOffsetTracker.tryBegin(3L)).thenReturn(false);
+
+        //chat 0 and 4 share a partition, chat 1 has its own
+        partitionedUpdateConsumer.consume(List.of(createUpdate(1, 0L, "a"), createUpdate(2, 1L, "b"), createUpdate(3, 4L, "c"),
+            createUpdate(4, 4L, "d"), createUpdate(5, 0L, "e")));
+
+        Awaitility.await().atMost(Duration.ofSeconds(1)).untilAsserted(() ->
+            Mockito.verify(updateOffsetTracker, Mockito.times(1)).complete(5L));
+        Mockito.verify(batchUpdateProcessor, Mockito.times(2)).processBatch(ArgumentMatchers.any());
+        Mockito.verifyNoInteractions(messageDelegator);
+        assertThat(processed).containsOnly(
+            Map.entry(0L, List.of(1, 5)),
+            Map.entry(1L, List.of(2)),
+            Map.entry(4L, List.of(4)));
+        Mockito.verify(updateOffsetTracker, Mockito.never()).complete(3L);
+    }
+
+    @Test
+    void testFloodedUpdateGetsDropped(){
+        var flooded = createUpdate(1, 5L, "a");
+        Mockito.when(inboundFloodProtection.tryAdmit(flooded)).thenReturn(false);
+        partitionedUpdateConsumer.consume(List.of(flooded, createUpdate(2, 5L, "b")));
+
+        Awaitility.await().atMost(Duration.ofSeconds(1)).untilAsserted(() ->
+            Mockito.verify(updateOffsetTracker, Mockito.times(1)).complete(2L));
+        Mockito.verify(messageDelegator, Mockito.times(1)).processUpdate(ArgumentMatchers.any());
+        Mockito.verify(updateOffsetTracker, Mockito.times(1)).complete(1L);
+    }
+}
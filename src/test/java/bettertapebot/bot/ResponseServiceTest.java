@@ -9,8 +9,15 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.ReplyKeyboardRemove;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardRow;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.KeyboardRow;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -25,6 +32,7 @@ class ResponseServiceTest {
     
     BotProperties botProperties;
     AsyncTelegramClient asyncTelegramClient;
+    OutboxRelay outboxRelay;
     ResponseService responseService;
     
     @BeforeAll
@@ -32,12 +40,13 @@ class ResponseServiceTest {
         botProperties = new BotProperties();
         botProperties.getTelegram().setMessageLengthLimit(TEST_MESSAGE_LENGTH);
         asyncTelegramClient = Mockito.mock(AsyncTelegramClient.class);
-        responseService = new ResponseService(botProperties, asyncTelegramClient);
+        outboxRelay = Mockito.mock(OutboxRelay.class);
+        responseService = new ResponseService(botProperties, asyncTelegramClient, outboxRelay);
     }
     
     @AfterEach
     void reset() {
-        Mockito.reset(asyncTelegramClient);
+        Mockito.reset(asyncTelegramClient, outboxRelay);
     }
     
     @Test
@@ -47,7 +56,7 @@ class ResponseServiceTest {
         String message = "m".repeat(messageLength);
         responseService.send(chatId, message);
         ArgumentCaptor<SendMessage> messageCaptor = ArgumentCaptor.forClass(SendMessage.class);
-        Mockito.verify(asyncTelegramClient, Mockito.times(2)).sendMessage(ArgumentMatchers.eq(chatId), messageCaptor.capture());
+        Mockito.verify(asyncTelegramClient, Mockito.times(2)).sendMessage(ArgumentMatchers.eq(chatId), messageCaptor.capture(), ArgumentMatchers.eq(MessagePriority.INTERACTIVE));
         var sendMessages = messageCaptor.getAllValues();
         assertThat(sendMessages).hasSize(2);
         
@@ -71,7 +80,7 @@ class ResponseServiceTest {
         
         responseService.broadcast(chatIds, message);
         ArgumentCaptor<SendMessage> messageCaptor = ArgumentCaptor.forClass(SendMessage.class);
-        Mockito.verify(asyncTelegramClient, Mockito.times(6)).sendMessage(ArgumentMatchers.anyLong(), messageCaptor.capture());
+        Mockito.verify(asyncTelegramClient, Mockito.times(6)).sendMessage(ArgumentMatchers.anyLong(), messageCaptor.capture(), ArgumentMatchers.eq(MessagePriority.BULK));
         var sendMessages = messageCaptor.getAllValues();
         assertThat(sendMessages).hasSize(6);
         var idMessageMap = sendMessages.stream().collect(Collectors.groupingBy(SendMessage::getChatId));
@@ -84,4 +93,73 @@ class ResponseServiceTest {
                     assertThat(sm.getReplyMarkup()).isNull();
                 }));
     }
-}
\ No newline at end of file
+    
+    @Test
+    void testMessagesInTransactionGoToOutbox(){
+        long chatId = 2;
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            responseService.send(chatId, "m");
+            Mockito.verify(outboxRelay, Mockito.times(1)).add(ArgumentMatchers.eq(chatId), ArgumentMatchers.any(), ArgumentMatchers.eq(MessagePriority.INTERACTIVE));
+            Mockito.verifyNoInteractions(asyncTelegramClient);
+        }
+        finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+    
+    @Test
+    void testSendsOfBatchAreMerged(){
+        var keyboard = new ReplyKeyboardMarkup(List.of(new KeyboardRow(List.of(new KeyboardButton("ok")))));
+        responseService.batched(() -> {
+            responseService.send(3, "a");
+            responseService.send(3, "b");
+            responseService.send(4, "x");
+            responseService.send(3, keyboard, "c");
+            responseService.send(3, null, "d");
+            Mockito.verifyNoInteractions(asyncTelegramClient);
+        });
+        
+        ArgumentCaptor<SendMessage> messageCaptor = ArgumentCaptor.forClass(SendMessage.class);
+        Mockito.verify(asyncTelegramClient, Mockito.times(1)).sendMessage(ArgumentMatchers.eq(3L), messageCaptor.capture(), ArgumentMatchers.eq(MessagePriority.INTERACTIVE));
+        assertThat(messageCaptor.getValue().getText()).isEqualTo("a\n\nb\n\nc\n\nd");
+        //the last keyboard that was sent, a message without one doesn't change it
+        assertThat(messageCaptor.getValue().getReplyMarkup()).isEqualTo(keyboard);
+        Mockito.verify(asyncTelegramClient, Mockito.times(1)).sendMessage(ArgumentMatchers.eq(4L), ArgumentMatchers.argThat(m -> m.getText().equals("x")), ArgumentMatchers.any());
+    }
+    
+    @Test
+    void testMergingStopsAtLengthLimitInlineKeyboardAndPriority(){
+        var inlineKeyboard = new InlineKeyboardMarkup(List.of(new InlineKeyboardRow(InlineKeyboardButton.builder().text("next").callbackData("next").build())));
+        responseService.batched(() -> {
+            responseService.send(5, "aaaa");
+            responseService.send(5, "bbbb");
+            responseService.send(5, "cccc");
+            responseService.send(5, inlineKeyboard, "i");
+            responseService.send(5, "j");
+            responseService.send(5, null, "k", MessagePriority.BULK);
+        });
+        
+        ArgumentCaptor<SendMessage> messageCaptor = ArgumentCaptor.forClass(SendMessage.class);
+        Mockito.verify(asyncTelegramClient, Mockito.times(4)).sendMessage(ArgumentMatchers.eq(5L), messageCaptor.capture(), ArgumentMatchers.any());
+        assertThat(messageCaptor.getAllValues()).extracting(SendMessage::getText)
+            .containsExactly("aaaa\n\nbbbb", "cccc\n\ni", "j", "k");
+        assertThat(messageCaptor.getAllValues().get(1).getReplyMarkup()).isEqualTo(inlineKeyboard);
+    }
+    
+    @Test
+    void testBatchIsFlushedWithinTransaction(){
+        long chatId = 6;
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            responseService.batched(() -> {
+                responseService.send(chatId, "a");
+                responseService.send(chatId, "b");
+            });
+            Mockito.verify(outboxRelay, Mockito.times(1)).add(ArgumentMatchers.eq(chatId), ArgumentMatchers.argThat(m -> m.getText().equals("a\n\nb")), ArgumentMatchers.any());
+        }
+        finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+}
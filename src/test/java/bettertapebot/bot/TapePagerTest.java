@@ -0,0 +1,139 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import bettertapebot.repository.TapeListing;
+import bettertapebot.repository.TapeRepository;
+import bettertapebot.repository.entity.UserEntity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.domain.Limit;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardRow;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class TapePagerTest {
+    private static final UserEntity USER = UserEntity.builder().username("user").build();
+
+    BotProperties botProperties;
+    TapeRepository tapeRepository;
+    ResponseService responseService;
+    TapePager tapePager;
+
+    @BeforeEach
+    void setup(){
+        botProperties = new BotProperties();
+        botProperties.setTapesPageSize(2);
+        tapeRepository = Mockito.mock(TapeRepository.class);
+        responseService = Mockito.mock(ResponseService.class);
+        tapePager = new TapePager(botProperties, tapeRepository, responseService);
+    }
+
+    private static TapeListing tape(String title){
+        return new TapeListing(UUID.randomUUID(), title, USER.getUsername(), USER.getUsername(), Instant.now());
+    }
+
+    private static List<InlineKeyboardButton> buttons(InlineKeyboardMarkup keyboard){
+        assertThat(keyboard.getKeyboard()).hasSize(1);
+        return keyboard.getKeyboard().getFirst();
+    }
+
+    @Test
+    void testFirstPageWithEverythingOnItHasNoButtons(){
+        Mockito.when(tapeRepository.findFirstPage(Limit.of(3))).thenReturn(List.of(tape("first"), tape("second")));
+        var page = tapePager.firstPage(TapePager.TapeList.ALL, null, false);
+
+        assertThat(page.text()).contains("first", "second");
+        assertThat(page.keyboard()).isNull();
+    }
+
+    @Test
+    void testEmptyListHasNoButtons(){
+        var page = tapePager.firstPage(TapePager.TapeList.STARRING, USER, false);
+
+        Mockito.verify(tapeRepository).findFirstStarPage(USER, Limit.of(3));
+        assertThat(page.text()).isEqualTo("Es gibt noch keine Einträge");
+        assertThat(page.keyboard()).isNull();
+    }
+
+    @Test
+    void testFirstPageLeadsToTheOlderTapes(){
+        var tapes = List.of(tape("first"), tape("second"), tape("third"));
+        Mockito.when(tapeRepository.findFirstDirectorPage(USER, Limit.of(3))).thenReturn(tapes);
+        var page = tapePager.firstPage(TapePager.TapeList.DIRECTING, USER, false);
+
+        assertThat(page.text()).contains("first", "second").doesNotContain("third");
+        assertThat(buttons(page.keyboard())).singleElement()
+            .extracting(InlineKeyboardButton::getCallbackData)
+            .isEqualTo("tapes:dir:next:" + tapes.get(1).id());
+    }
+
+    @Test
+    void testPageInBetweenLeadsBothWays(){
+        var cursor = UUID.randomUUID();
+        var tapes = List.of(tape("third"), tape("fourth"), tape("fifth"));
+        Mockito.when(tapeRepository.findStarPageAfter(cursor, Limit.of(3))).thenReturn(tapes);
+        var page = tapePager.page("tapes:star:next:" + cursor, false).orElseThrow();
+
+        assertThat(page.text()).contains("third", "fourth").doesNotContain("fifth");
+        assertThat(buttons(page.keyboard())).extracting(InlineKeyboardButton::getCallbackData)
+            .containsExactly("tapes:star:prev:" + tapes.get(0).id(), "tapes:star:next:" + tapes.get(1).id());
+    }
+
+    @Test
+    void testPreviousPageIsShownNewestFirst(){
+        var cursor = UUID.randomUUID();
+        //read away from the cursor, so oldest first
+        var tapes = List.of(tape("second"), tape("first"));
+        Mockito.when(tapeRepository.findPageBefore(cursor, Limit.of(3))).thenReturn(tapes);
+        var page = tapePager.page("tapes:all:prev:" + cursor, false).orElseThrow();
+
+        assertThat(page.text().indexOf("first")).isLessThan(page.text().indexOf("second"));
+        //back on the first page, only the way back to where we came from is left
+        assertThat(buttons(page.keyboard())).singleElement()
+            .extracting(InlineKeyboardButton::getCallbackData)
+            .isEqualTo("tapes:all:next:" + tapes.get(0).id());
+    }
+
+    @Test
+    void testTapesThatDontFitIntoTheMessageGoToTheNextPage(){
+        botProperties.getTelegram().setMessageLengthLimit(100);
+        var tapes = List.of(tape("first"), tape("second"), tape("third"));
+        Mockito.when(tapeRepository.findFirstPage(Limit.of(3))).thenReturn(tapes);
+        var page = tapePager.firstPage(TapePager.TapeList.ALL, null, false);
+
+        assertThat(page.text()).hasSizeLessThanOrEqualTo(100).contains("first").doesNotContain("second");
+        assertThat(buttons(page.keyboard())).singleElement()
+            .extracting(InlineKeyboardButton::getCallbackData)
+            .isEqualTo("tapes:all:next:" + tapes.get(0).id());
+    }
+
+    @Test
+    void testUnknownDataOrDeletedCursorHasNoPage(){
+        assertThat(tapePager.page("tapes:all:next:no-uuid", false)).isEmpty();
+        assertThat(tapePager.page("tapes:unknown:next:" + UUID.randomUUID(), false)).isEmpty();
+        assertThat(tapePager.page("tapes:all:sideways:" + UUID.randomUUID(), false)).isEmpty();
+        assertThat(tapePager.page("other:data", false)).isEmpty();
+        Mockito.verifyNoInteractions(tapeRepository);
+
+        assertThat(tapePager.page("tapes:dir:next:" + UUID.randomUUID(), false)).isEmpty();
+    }
+
+    @Test
+    void testSinglePageKeepsTheReplyKeyboardRemoved(){
+        tapePager.send(1L, new TapePager.TapePage("text", null));
+        Mockito.verify(responseService).send(1L, "text");
+
+        var keyboard = InlineKeyboardMarkup.builder().keyboardRow(new InlineKeyboardRow()).build();
+        tapePager.send(1L, new TapePager.TapePage("text", keyboard));
+        Mockito.verify(responseService).send(1L, keyboard, "text");
+    }
+}
@@ -0,0 +1,142 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import jakarta.validation.Validation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class TelegramWebhookHandlerTest {
+    private static final String PATH = "/telegram/webhook";
+    private static final String SECRET = "secret";
+    private static final String SAMPLE_UPDATE = """
+        {
+          "update_id": 10000,
+          "message": {
+            "message_id": 1365,
+            "date": 1441645532,
+            "chat": {
+              "id": 1111111,
+              "type": "private",
+              "first_name": "Test"
+            },
+            "text": "/help"
+          }
+        }""";
+
+    BotProperties botProperties;
+    PartitionedUpdateConsumer partitionedUpdateConsumer;
+    WebTestClient webTestClient;
+
+    @BeforeEach
+    void setup(){
+        botProperties = new BotProperties();
+        botProperties.getTelegram().getWebhook().setSecretToken(SECRET);
+        partitionedUpdateConsumer = Mockito.mock(PartitionedUpdateConsumer.class);
+        Mockito.when(partitionedUpdateConsumer.tryConsume(ArgumentMatchers.any())).thenReturn(true);
+        var handler = new TelegramWebhookHandler(botProperties, Mockito.mock(TelegramClient.class), partitionedUpdateConsumer);
+        webTestClient = WebTestClient.bindToRouterFunction(RouterFunctions.route()
+                .POST(PATH, handler::handle)
+                .build())
+            .build();
+    }
+
+    @Test
+    void testUpdateGetsHandedOver(){
+        webTestClient.post().uri(PATH)
+            .header(TelegramWebhookHandler.SECRET_TOKEN_HEADER, SECRET)
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(SAMPLE_UPDATE)
+            .exchange()
+            .expectStatus().isOk();
+
+        ArgumentCaptor<Update> captor = ArgumentCaptor.forClass(Update.class);
+        Mockito.verify(partitionedUpdateConsumer, Mockito.times(1)).tryConsume(captor.capture());
+        var update = captor.getValue();
+        assertThat(update.getUpdateId()).isEqualTo(10000);
+        assertThat(update.getMessage().getChatId()).isEqualTo(1111111L);
+        assertThat(update.getMessage().getText()).isEqualTo("/help");
+    }
+
+    @Test
+    void testWrongSecretGetsRejected(){
+        webTestClient.post().uri(PATH)
+            .header(TelegramWebhookHandler.SECRET_TOKEN_HEADER, "wrong")
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(SAMPLE_UPDATE)
+            .exchange()
+            .expectStatus().isUnauthorized();
+        Mockito.verifyNoInteractions(partitionedUpdateConsumer);
+    }
+
+    @Test
+    void testMissingSecretGetsRejected(){
+        webTestClient.post().uri(PATH)
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(SAMPLE_UPDATE)
+            .exchange()
+            .expectStatus().isUnauthorized();
+
+        //not even if the secret isn't configured
+        botProperties.getTelegram().getWebhook().setSecretToken(null);
+        webTestClient.post().uri(PATH)
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(SAMPLE_UPDATE)
+            .exchange()
+            .expectStatus().isUnauthorized();
+        Mockito.verifyNoInteractions(partitionedUpdateConsumer);
+    }
+
+    @Test
+    void testEnabledWebhookRequiresUrlAndSecret(){
+        try (var validatorFactory = Validation.buildDefaultValidatorFactory()) {
+            var validator = validatorFactory.getValidator();
+            var webhook = new BotProperties.WebhookProperties();
+            assertThat(validator.validate(webhook)).isEmpty();
+
+            webhook.setEnabled(true);
+            webhook.setUrl("https://bot.example.com");
+            assertThat(validator.validate(webhook)).isNotEmpty();
+
+            webhook.setSecretToken(SECRET);
+            assertThat(validator.validate(webhook)).isEmpty();
+
+            webhook.setUrl(null);
+            assertThat(validator.validate(webhook)).isNotEmpty();
+        }
+    }
+
+    @Test
+    void testInvalidJsonGetsRejected(){
+        webTestClient.post().uri(PATH)
+            .header(TelegramWebhookHandler.SECRET_TOKEN_HEADER, SECRET)
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue("{ not json")
+            .exchange()
+            .expectStatus().isBadRequest();
+        Mockito.verifyNoInteractions(partitionedUpdateConsumer);
+    }
+
+    @Test
+    void testFullConsumerAsksTelegramToRetry(){
+        Mockito.when(partitionedUpdateConsumer.tryConsume(ArgumentMatchers.any())).thenReturn(false);
+        webTestClient.post().uri(PATH)
+            .header(TelegramWebhookHandler.SECRET_TOKEN_HEADER, SECRET)
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(SAMPLE_UPDATE)
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+}
@@ -0,0 +1,88 @@
+package bettertapebot.bot;
+
+import bettertapebot.properties.BotProperties;
+import bettertapebot.repository.UpdateOffsetRepository;
+import bettertapebot.repository.entity.UpdateOffsetEntity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class UpdateOffsetTrackerTest {
+    private static final long PERSISTED = 100L;
+
+    BotProperties botProperties;
+    UpdateOffsetRepository updateOffsetRepository;
+    UpdateOffsetTracker updateOffsetTracker;
+
+    @BeforeEach
+    void setup(){
+        botProperties = new BotProperties();
+        botProperties.getTelegram().setUpdateDeduplicationWindow(10);
+        updateOffsetRepository = Mockito.mock(UpdateOffsetRepository.class);
+        Mockito.when(updateOffsetRepository.findById(UpdateOffsetEntity.DEFAULT_ID))
+            .thenReturn(Optional.of(new UpdateOffsetEntity(UpdateOffsetEntity.DEFAULT_ID, PERSISTED)));
+        updateOffsetTracker = new UpdateOffsetTracker(botProperties, updateOffsetRepository);
+        updateOffsetTracker.postConstruct();
+    }
+
+    @Test
+    void testResumesAfterPersistedOffset(){
+        assertThat(updateOffsetTracker.getWatermark()).isEqualTo(PERSISTED);
+        assertThat(updateOffsetTracker.nextGetUpdates(0).getOffset()).isEqualTo((int) PERSISTED + 1);
+        assertThat(updateOffsetTracker.tryBegin(PERSISTED)).isFalse();
+        assertThat(updateOffsetTracker.tryBegin(PERSISTED + 1)).isTrue();
+    }
+
+    @Test
+    void testDuplicatesGetRejected(){
+        assertThat(updateOffsetTracker.tryBegin(101)).isTrue();
+        assertThat(updateOffsetTracker.tryBegin(101)).isFalse();
+        updateOffsetTracker.complete(101);
+        assertThat(updateOffsetTracker.tryBegin(101)).isFalse();
+    }
+
+    @Test
+    void testWatermarkOnlyAdvancesOverFinishedUpdates(){
+        updateOffsetTracker.tryBegin(101);
+        updateOffsetTracker.tryBegin(102);
+        updateOffsetTracker.tryBegin(103);
+
+        updateOffsetTracker.complete(102);
+        updateOffsetTracker.complete(103);
+        assertThat(updateOffsetTracker.getWatermark()).isEqualTo(PERSISTED);
+        //102 is done but still above the watermark, so only the window protects it
+        assertThat(updateOffsetTracker.tryBegin(102)).isFalse();
+
+        updateOffsetTracker.complete(101);
+        assertThat(updateOffsetTracker.getWatermark()).isEqualTo(103);
+    }
+
+    @Test
+    void testFlushPersistsWatermarkOnlyWhenChanged(){
+        updateOffsetTracker.flush();
+        Mockito.verify(updateOffsetRepository, Mockito.never()).save(ArgumentMatchers.any());
+
+        updateOffsetTracker.tryBegin(101);
+        updateOffsetTracker.complete(101);
+        updateOffsetTracker.flush();
+        updateOffsetTracker.flush();
+
+        ArgumentCaptor<UpdateOffsetEntity> captor = ArgumentCaptor.forClass(UpdateOffsetEntity.class);
+        Mockito.verify(updateOffsetRepository, Mockito.times(1)).save(captor.capture());
+        assertThat(captor.getValue().getLastUpdateId()).isEqualTo(101L);
+    }
+
+    @Test
+    void testPollingConfirmsReceivedUpdates(){
+        updateOffsetTracker.tryBegin(101);
+        assertThat(updateOffsetTracker.nextGetUpdates(101).getOffset()).isEqualTo(102);
+    }
+}
@@ -0,0 +1,124 @@
+package bettertapebot.bot;
+
+import bettertapebot.testutil.TestcontainersConfiguration;
+import io.opentelemetry.api.trace.SpanId;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.telegram.telegrambots.longpolling.TelegramBotsLongPollingApplication;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.MessageEntity;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.chat.Chat;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+import org.telegram.telegrambots.meta.generics.TelegramClient;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+/*
+    runs an update through the whole bot, transaction, outbox and relay included, down to the call to telegram
+    and checks that everything on the way ends up in the same trace
+ */
+@SpringBootTest(properties = "management.tracing.sampling.probability=1.0")
+@Import({TestcontainersConfiguration.class, UpdateTracingTest.InMemorySpans.class})
+class UpdateTracingTest {
+    private static final long CHAT_ID = 4242L;
+
+    @MockitoBean
+    TelegramBotsLongPollingApplication telegramBotsApplication; //disable the telegram api
+
+    @MockitoBean
+    TelegramClient telegramClient;
+
+    @Autowired
+    PartitionedUpdateConsumer partitionedUpdateConsumer;
+
+    @Autowired
+    SdkTracerProvider sdkTracerProvider;
+
+    @Autowired
+    InMemorySpans spans;
+
+    private static Update loginUpdate(){
+        Message message = Message.builder()
+            .chat(Chat.builder()
+                .id(CHAT_ID)
+                .type("private")
+                .build())
+            .text("/login")
+            .entities(List.of(MessageEntity.builder()
+                .type("bot_command")
+                .offset(0)
+                .length(6)
+                .build()))
+            .build();
+        Update update = new Update();
+        update.setUpdateId(1);
+        update.setMessage(message);
+        return update;
+    }
+
+    @Test
+    @SneakyThrows
+    void testUpdateIsOneTraceDownToTheTelegramCall(){
+        partitionedUpdateConsumer.consume(loginUpdate());
+
+        await().atMost(Duration.ofSeconds(30)).untilAsserted(() -> {
+            Mockito.verify(telegramClient, Mockito.atLeastOnce()).execute(ArgumentMatchers.any(SendMessage.class));
+            sdkTracerProvider.forceFlush().join(5, TimeUnit.SECONDS);
+            assertThat(spans.spans).extracting(SpanData::getName).contains("telegram send");
+        });
+
+        var root = spans.spans.stream()
+            .filter(span -> span.getName().equals("update"))
+            .findFirst()
+            .orElseThrow();
+        var trace = spans.spans.stream()
+            .filter(span -> span.getTraceId().equals(root.getTraceId()))
+            .toList();
+        assertThat(trace).extracting(SpanData::getName)
+            .contains("update", "handler /login", "outbox write", "outbox relay", "telegram queue", "telegram send");
+        //connected, every span but the root hangs below another span of the trace
+        var spanIds = trace.stream().map(SpanData::getSpanId).toList();
+        assertThat(root.getParentSpanId()).isEqualTo(SpanId.getInvalid());
+        assertThat(trace).filteredOn(span -> span != root)
+            .allSatisfy(span -> assertThat(spanIds).contains(span.getParentSpanId()));
+    }
+
+    //picked up by the otel auto configuration like any other exporter
+    static class InMemorySpans implements SpanExporter {
+        final List<SpanData> spans = new CopyOnWriteArrayList<>();
+
+        @Override
+        public CompletableResultCode export(Collection<SpanData> exported) {
+            spans.addAll(exported);
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+        }
+
+        @Override
+        public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package bettertapebot.cache;
+
+import bettertapebot.bot.ResponseService;
+import bettertapebot.bot.TapePager;
+import bettertapebot.properties.BotProperties;
+import bettertapebot.repository.TapeListing;
+import bettertapebot.repository.TapeRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class AllTapesCacheTest {
+    
+    TapeRepository tapeRepository;
+    SimpleMeterRegistry meterRegistry;
+    AllTapesCache allTapesCache;
+    
+    @BeforeEach
+    void setup(){
+        tapeRepository = Mockito.mock(TapeRepository.class);
+        meterRegistry = new SimpleMeterRegistry();
+        allTapesCache = new AllTapesCache(new TapePager(new BotProperties(), tapeRepository, Mockito.mock(ResponseService.class)), meterRegistry);
+        Mockito.when(tapeRepository.findFirstPage(ArgumentMatchers.any())).thenReturn(List.of(tape("first")));
+    }
+    
+    @AfterEach
+    void cleanUp(){
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+    
+    private TapeListing tape(String title){
+        return new TapeListing(UUID.randomUUID(), title, "user", "user", Instant.now());
+    }
+    
+    private double count(String result){
+        return meterRegistry.get("bettertapebot.cache.gets").tag("result", result).counter().count();
+    }
+    
+    @Test
+    void testRepeatedGetIsServedFromCache(){
+        var first = allTapesCache.get(false);
+        var second = allTapesCache.get(false);
+        
+        assertThat(second).isSameAs(first).extracting(TapePager.TapePage::text).asString().contains("first");
+        Mockito.verify(tapeRepository, Mockito.times(1)).findFirstPage(ArgumentMatchers.any());
+        assertThat(count("miss")).isEqualTo(1);
+        assertThat(count("hit")).isEqualTo(1);
+    }
+    
+    @Test
+    void testAdminsGetTheirOwnVariant(){
+        var withIds = allTapesCache.get(true);
+        var withoutIds = allTapesCache.get(false);
+        
+        assertThat(withIds.text()).contains("<code>");
+        assertThat(withoutIds.text()).doesNotContain("<code>");
+        assertThat(allTapesCache.get(true)).isSameAs(withIds);
+        Mockito.verify(tapeRepository, Mockito.times(2)).findFirstPage(ArgumentMatchers.any());
+    }
+    
+    @Test
+    void testEmptyListIsCached(){
+        Mockito.when(tapeRepository.findFirstPage(ArgumentMatchers.any())).thenReturn(List.of());
+        assertThat(allTapesCache.get(false).text()).isEqualTo("Es gibt noch keine Einträge");
+        allTapesCache.get(false);
+        Mockito.verify(tapeRepository, Mockito.times(1)).findFirstPage(ArgumentMatchers.any());
+    }
+    
+    @Test
+    void testInvalidateLoadsAgain(){
+        allTapesCache.get(false);
+        Mockito.when(tapeRepository.findFirstPage(ArgumentMatchers.any())).thenReturn(List.of(tape("second")));
+        allTapesCache.invalidate();
+        
+        assertThat(allTapesCache.get(false)).extracting(TapePager.TapePage::text).asString().contains("second");
+    }
+    
+    @Test
+    void testLoadRunningDuringInvalidateIsNotKept(){
+        Mockito.when(tapeRepository.findFirstPage(ArgumentMatchers.any())).thenAnswer(_ -> {
+            //a tape gets added while the old ones are formatted
+            allTapesCache.invalidate();
+            return List.of(tape("first"));
+        }).thenReturn(List.of(tape("second")));
+        
+        assertThat(allTapesCache.get(false)).extracting(TapePager.TapePage::text).asString().contains("first");
+        assertThat(allTapesCache.get(false)).extracting(TapePager.TapePage::text).asString().contains("second");
+    }
+    
+    @Test
+    void testInvalidatedAgainOnceTransactionCompletes(){
+        TransactionSynchronizationManager.initSynchronization();
+        allTapesCache.invalidate();
+        //another chat asks before the change is committed and sees the old tapes
+        allTapesCache.get(false);
+        Mockito.when(tapeRepository.findFirstPage(ArgumentMatchers.any())).thenReturn(List.of(tape("second")));
+        
+        TransactionSynchronizationUtils.invokeAfterCompletion(TransactionSynchronizationManager.getSynchronizations(), TransactionSynchronization.STATUS_COMMITTED);
+        
+        assertThat(allTapesCache.get(false)).extracting(TapePager.TapePage::text).asString().contains("second");
+    }
+}
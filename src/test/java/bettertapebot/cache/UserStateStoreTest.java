@@ -0,0 +1,311 @@
+package bettertapebot.cache;
+
+import bettertapebot.properties.BotProperties;
+import bettertapebot.repository.UserRepository;
+import bettertapebot.repository.UserStateRepository;
+import bettertapebot.repository.entity.UserEntity;
+import bettertapebot.repository.entity.UserState;
+import bettertapebot.repository.entity.UserStateEntity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class UserStateStoreTest {
+
+    BotProperties botProperties;
+    UserStateRepository userStateRepository;
+    UserRepository userRepository;
+    JdbcTemplate jdbcTemplate;
+    PlatformTransactionManager transactionManager;
+    AtomicLong now;
+    UserStateStore userStateStore;
+
+    @BeforeEach
+    void setup(){
+        botProperties = new BotProperties();
+        botProperties.getUserStateStore().setFlushInterval(Duration.ofSeconds(1));
+        botProperties.getUserStateStore().setMaxStaleness(Duration.ofSeconds(10));
+        userStateRepository = Mockito.mock(UserStateRepository.class);
+        userRepository = Mockito.mock(UserRepository.class);
+        jdbcTemplate = Mockito.mock(JdbcTemplate.class);
+        transactionManager = Mockito.mock(PlatformTransactionManager.class);
+        Mockito.when(transactionManager.getTransaction(ArgumentMatchers.any())).thenAnswer(_ -> new SimpleTransactionStatus());
+        now = new AtomicLong();
+        userStateStore = new UserStateStore(botProperties, userStateRepository, userRepository, jdbcTemplate, transactionManager, now::get);
+    }
+
+    @AfterEach
+    void cleanUp(){
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private static CachedUserState loggedIn(long chatId){
+        return new CachedUserState(chatId, UserState.LOGGED_IN, false, "user");
+    }
+
+    private void advance(Duration duration){
+        now.addAndGet(duration.toNanos());
+    }
+
+    @Test
+    void testStateGetsLoadedOnce(){
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.of(UserStateEntity.builder()
+            .chatId(1L)
+            .userState(UserState.LOGGED_IN)
+            .adminMode(false)
+            .owner(UserEntity.builder().username("user").build())
+            .build()));
+
+        assertThat(userStateStore.get(1L)).isEqualTo(loggedIn(1L));
+        assertThat(userStateStore.get(1L)).isEqualTo(loggedIn(1L));
+
+        Mockito.verify(userStateRepository, Mockito.times(1)).findById(1L);
+    }
+
+    @Test
+    void testUnknownChatIsNewChatWithoutWrite(){
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.empty());
+
+        assertThat(userStateStore.get(1L)).isEqualTo(CachedUserState.newChat(1L));
+        assertThat(userStateStore.pendingWrites()).isZero();
+        //not kept, a chat that never gets a row mustn't stay on the heap
+        assertThat(userStateStore.cachedChats()).isZero();
+    }
+
+    @Test
+    void testPreloadUsesOneQuery(){
+        Mockito.when(userStateRepository.findAllById(ArgumentMatchers.any())).thenReturn(List.of(UserStateEntity.builder()
+            .chatId(1L)
+            .userState(UserState.LOGGED_IN)
+            .adminMode(false)
+            .owner(UserEntity.builder().username("user").build())
+            .build()));
+
+        userStateStore.preload(List.of(1L, 2L));
+
+        assertThat(userStateStore.get(1L)).isEqualTo(loggedIn(1L));
+        Mockito.verify(userStateRepository, Mockito.times(1)).findAllById(ArgumentMatchers.any());
+        Mockito.verify(userStateRepository, Mockito.never()).findById(1L);
+        assertThat(userStateStore.cachedChats()).isEqualTo(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testChangesGetCoalescedAndWrittenOnceQuiet(){
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.empty());
+        var newChat = userStateStore.get(1L);
+        var intermediate = new CachedUserState(1L, UserState.LOGIN_VALIDATE_PIN, null, null);
+        userStateStore.put(newChat, intermediate);
+        userStateStore.put(intermediate, loggedIn(1L));
+        assertThat(userStateStore.get(1L)).isEqualTo(loggedIn(1L));
+        assertThat(userStateStore.pendingWrites()).isEqualTo(1);
+
+        advance(Duration.ofMillis(500));
+        userStateStore.flush();
+        Mockito.verifyNoInteractions(jdbcTemplate);
+
+        advance(Duration.ofSeconds(1));
+        userStateStore.flush();
+        ArgumentCaptor<List<Object[]>> captor = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(jdbcTemplate, Mockito.times(1)).batchUpdate(ArgumentMatchers.startsWith("INSERT"), captor.capture());
+        assertThat(captor.getValue()).hasSize(1);
+        assertThat(captor.getValue().getFirst()).containsExactly(1L, "LOGGED_IN", false, "user");
+        assertThat(userStateStore.pendingWrites()).isZero();
+    }
+
+    @Test
+    void testBusyChatGetsWrittenAfterMaxStaleness(){
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.empty());
+        var state = userStateStore.get(1L);
+        for (int i = 0; i < 11; i++) {
+            var updated = new CachedUserState(1L, i % 2 == 0 ? UserState.LOGGED_IN : UserState.ADD_TAPE_GET_TITLE, false, "user");
+            userStateStore.put(state, updated);
+            state = updated;
+            advance(Duration.ofMillis(999));
+            userStateStore.flush();
+            if(i < 10){
+                Mockito.verifyNoInteractions(jdbcTemplate);
+            }
+        }
+
+        Mockito.verify(jdbcTemplate, Mockito.times(1)).batchUpdate(ArgumentMatchers.startsWith("INSERT"), ArgumentMatchers.<List<Object[]>>any());
+    }
+
+    @Test
+    void testTransactionalChangeIsOnlyVisibleAfterCommit(){
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.empty());
+        var newChat = userStateStore.get(1L);
+
+        TransactionSynchronizationManager.initSynchronization();
+        userStateStore.put(newChat, loggedIn(1L));
+        assertThat(userStateStore.get(1L)).isEqualTo(loggedIn(1L));
+        assertThat(userStateStore.pendingWrites()).isZero();
+
+        var synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        //other threads don't see it yet
+        assertThat(userStateStore.get(1L)).isEqualTo(newChat);
+
+        TransactionSynchronizationUtils.invokeAfterCommit(synchronizations);
+        TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations, TransactionSynchronization.STATUS_COMMITTED);
+        assertThat(userStateStore.get(1L)).isEqualTo(loggedIn(1L));
+        assertThat(userStateStore.pendingWrites()).isEqualTo(1);
+        assertThat(TransactionSynchronizationManager.hasResource(userStateStore)).isFalse();
+    }
+
+    @Test
+    void testRolledBackChangeIsDropped(){
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.empty());
+        var newChat = userStateStore.get(1L);
+
+        TransactionSynchronizationManager.initSynchronization();
+        userStateStore.put(newChat, loggedIn(1L));
+        var synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        TransactionSynchronizationUtils.invokeAfterCompletion(synchronizations, TransactionSynchronization.STATUS_ROLLED_BACK);
+
+        assertThat(userStateStore.get(1L)).isEqualTo(newChat);
+        assertThat(userStateStore.pendingWrites()).isZero();
+    }
+
+    @Test
+    void testChangeBasedOnOutdatedStateIsDropped(){
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.empty());
+        var newChat = userStateStore.get(1L);
+        userStateStore.put(newChat, loggedIn(1L));
+
+        userStateStore.put(newChat, new CachedUserState(1L, UserState.LOGIN_VALIDATE_PIN, null, null));
+
+        assertThat(userStateStore.get(1L)).isEqualTo(loggedIn(1L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testDeleteIsWrittenThroughAndFlushed(){
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.empty());
+        var newChat = userStateStore.get(1L);
+        userStateStore.put(newChat, loggedIn(1L));
+
+        userStateStore.delete(1L);
+
+        Mockito.verify(userStateRepository, Mockito.times(1)).deleteById(1L);
+        assertThat(userStateStore.get(1L)).isEqualTo(CachedUserState.newChat(1L));
+        userStateStore.shutdown();
+        ArgumentCaptor<List<Object[]>> captor = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(jdbcTemplate, Mockito.times(1)).batchUpdate(ArgumentMatchers.startsWith("DELETE"), captor.capture());
+        assertThat(captor.getValue().getFirst()).containsExactly(1L);
+        Mockito.verify(jdbcTemplate, Mockito.never()).batchUpdate(ArgumentMatchers.startsWith("INSERT"), ArgumentMatchers.<List<Object[]>>any());
+    }
+
+    @Test
+    void testEvictOwnerForgetsAllChatsOfUser(){
+        Mockito.when(userStateRepository.findById(ArgumentMatchers.anyLong())).thenReturn(Optional.empty());
+        userStateStore.put(userStateStore.get(1L), loggedIn(1L));
+        userStateStore.put(userStateStore.get(2L), loggedIn(2L));
+        userStateStore.put(userStateStore.get(3L), new CachedUserState(3L, UserState.LOGGED_IN, false, "other"));
+
+        userStateStore.evictOwner("user");
+
+        assertThat(userStateStore.get(1L)).isEqualTo(CachedUserState.newChat(1L));
+        assertThat(userStateStore.get(2L)).isEqualTo(CachedUserState.newChat(2L));
+        assertThat(userStateStore.get(3L).userState()).isEqualTo(UserState.LOGGED_IN);
+    }
+
+    @Test
+    void testIntegrityViolationFallsBackToSingleWrites(){
+        Mockito.when(userStateRepository.findById(ArgumentMatchers.anyLong())).thenReturn(Optional.empty());
+        userStateStore.put(userStateStore.get(1L), loggedIn(1L));
+        userStateStore.put(userStateStore.get(2L), loggedIn(2L));
+        Mockito.when(jdbcTemplate.batchUpdate(ArgumentMatchers.anyString(), ArgumentMatchers.<List<Object[]>>any()))
+            .thenThrow(new DataIntegrityViolationException("expected"))
+            .thenThrow(new DataIntegrityViolationException("expected"))
+            .thenReturn(new int[]{1});
+
+        userStateStore.shutdown();
+
+        Mockito.verify(jdbcTemplate, Mockito.times(3)).batchUpdate(ArgumentMatchers.startsWith("INSERT"), ArgumentMatchers.<List<Object[]>>any());
+        assertThat(userStateStore.pendingWrites()).isZero();
+    }
+
+    @Test
+    void testFailingDbKeepsWritesPending(){
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.empty());
+        userStateStore.put(userStateStore.get(1L), loggedIn(1L));
+        Mockito.when(jdbcTemplate.batchUpdate(ArgumentMatchers.anyString(), ArgumentMatchers.<List<Object[]>>any()))
+            .thenThrow(new QueryTimeoutException("expected"))
+            .thenReturn(new int[]{1});
+
+        userStateStore.shutdown();
+        assertThat(userStateStore.pendingWrites()).isEqualTo(1);
+
+        userStateStore.shutdown();
+        assertThat(userStateStore.pendingWrites()).isZero();
+    }
+
+    @Test
+    void testIdleChatsGetEvictedUnlessTheyHavePendingWrites(){
+        botProperties.getUserStateStore().setIdleTtl(Duration.ofMinutes(30));
+        Mockito.when(userStateRepository.findById(ArgumentMatchers.anyLong())).thenReturn(Optional.empty());
+        userStateStore.put(userStateStore.get(1L), loggedIn(1L));
+        userStateStore.put(userStateStore.get(2L), loggedIn(2L));
+        userStateStore.shutdown();
+        userStateStore.put(userStateStore.get(2L), new CachedUserState(2L, UserState.ADD_TAPE_GET_TITLE, false, "user"));
+        Mockito.when(jdbcTemplate.batchUpdate(ArgumentMatchers.anyString(), ArgumentMatchers.<List<Object[]>>any()))
+            .thenThrow(new QueryTimeoutException("expected"));
+
+        advance(Duration.ofMinutes(31));
+        userStateStore.flush();
+        userStateStore.evictIdleChats();
+
+        //the change of chat 2 couldn't be written, the db still has the old state
+        assertThat(userStateStore.cachedChats()).isEqualTo(1);
+        assertThat(userStateStore.get(2L).userState()).isEqualTo(UserState.ADD_TAPE_GET_TITLE);
+        Mockito.verify(userStateRepository, Mockito.times(1)).findById(2L);
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.of(UserStateEntity.builder()
+            .chatId(1L)
+            .userState(UserState.LOGGED_IN)
+            .adminMode(false)
+            .owner(UserEntity.builder().username("user").build())
+            .build()));
+        assertThat(userStateStore.get(1L)).isEqualTo(loggedIn(1L));
+        Mockito.verify(userStateRepository, Mockito.times(2)).findById(1L);
+    }
+
+    @Test
+    void testRecentlyUsedChatIsKept(){
+        botProperties.getUserStateStore().setIdleTtl(Duration.ofMinutes(30));
+        Mockito.when(userStateRepository.findById(1L)).thenReturn(Optional.empty());
+        userStateStore.put(userStateStore.get(1L), loggedIn(1L));
+        userStateStore.shutdown();
+
+        advance(Duration.ofMinutes(20));
+        userStateStore.get(1L);
+        advance(Duration.ofMinutes(20));
+        userStateStore.evictIdleChats();
+
+        assertThat(userStateStore.cachedChats()).isEqualTo(1);
+        Mockito.verify(userStateRepository, Mockito.times(1)).findById(1L);
+    }
+}
@@ -0,0 +1,80 @@
+package bettertapebot.config;
+
+import bettertapebot.properties.BotProperties;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.SneakyThrows;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class TelegramHttpClientTest {
+
+    HttpServer server;
+    SimpleMeterRegistry meterRegistry;
+    OkHttpClient client;
+
+    @BeforeEach
+    @SneakyThrows
+    void setup(){
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            var body = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        meterRegistry = new SimpleMeterRegistry();
+        client = new ContextConfig().telegramHttpClient(new BotProperties(), meterRegistry);
+    }
+
+    @AfterEach
+    void cleanUp(){
+        server.stop(0);
+        client.connectionPool().evictAll();
+    }
+
+    @SneakyThrows
+    private void call(String path){
+        var request = new Request.Builder()
+            .url("http://localhost:" + server.getAddress().getPort() + path)
+            .build();
+        try (var response = client.newCall(request).execute()) {
+            assertThat(response.code()).isEqualTo(200);
+            response.body().string();
+        }
+    }
+
+    @Test
+    void testConnectionIsKeptAlive(){
+        for (int i = 0; i < 5; i++) {
+            call("/bot123:secret/sendMessage");
+        }
+        assertThat(meterRegistry.get("bettertapebot.telegram.http.connections.opened").counter().count()).isEqualTo(1);
+        assertThat(meterRegistry.get("bettertapebot.telegram.http.connections.acquired").counter().count()).isEqualTo(5);
+        assertThat(meterRegistry.get("bettertapebot.telegram.http.pool.connection.count").tag("state", "idle").gauge().value()).isEqualTo(1);
+    }
+
+    @Test
+    void testCallsAreTimedPerApiMethodWithoutToken(){
+        call("/bot123:secret/sendMessage");
+        call("/bot123:secret/sendMessage");
+        call("/bot123:secret/setWebhook");
+
+        var sendMessage = meterRegistry.get("bettertapebot.telegram.http").tag("uri", "sendMessage").timer();
+        assertThat(sendMessage.count()).isEqualTo(2);
+        assertThat(meterRegistry.get("bettertapebot.telegram.http").tag("uri", "setWebhook").timer().count()).isEqualTo(1);
+        assertThat(meterRegistry.getMeters())
+            .allSatisfy(meter -> assertThat(meter.getId().getTags()).noneMatch(tag -> tag.getValue().contains("secret")));
+    }
+}
@@ -7,7 +7,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
-import org.telegram.telegrambots.longpolling.starter.TelegramBotInitializer;
+import org.telegram.telegrambots.longpolling.TelegramBotsLongPollingApplication;
 
 import java.util.List;
 import java.util.stream.Collectors;
@@ -19,7 +19,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 class CommandHandlerTest {
     
     @MockitoBean
-    TelegramBotInitializer telegramBotInitializer; //disable the telegram api
+    TelegramBotsLongPollingApplication telegramBotsApplication; //disable the telegram api
 
     @Autowired
     List<CommandHandler> commandHandlers;
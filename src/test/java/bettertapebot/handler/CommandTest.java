@@ -0,0 +1,57 @@
+package bettertapebot.handler;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class CommandTest {
+    private static final String BOT_USERNAME = "BetterTapeBot";
+
+    @ParameterizedTest
+    @EnumSource(Command.class)
+    void testEveryCommandGetsFound(Command command){
+        assertThat(Command.fromCommandString(command.getCommand(), BOT_USERNAME)).isEqualTo(command);
+        assertThat(Command.fromCommandString(command.getCommand().toUpperCase(Locale.ROOT), BOT_USERNAME)).isEqualTo(command);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Command.class)
+    void testOwnBotNameSuffixGetsIgnored(Command command){
+        assertThat(Command.fromCommandString(command.getCommand() + "@BetterTapeBot", BOT_USERNAME)).isEqualTo(command);
+        assertThat(Command.fromCommandString(command.getCommand() + "@bettertapebot", BOT_USERNAME)).isEqualTo(command);
+    }
+
+    @ParameterizedTest
+    @EnumSource(Command.class)
+    void testCommandForOtherBotIsNotFound(Command command){
+        assertThat(Command.fromCommandString(command.getCommand() + "@SomeOtherBot", BOT_USERNAME)).isNull();
+        assertThat(Command.fromCommandString(command.getCommand() + "@BetterTapeBot2", BOT_USERNAME)).isNull();
+        assertThat(Command.fromCommandString(command.getCommand() + "@", BOT_USERNAME)).isNull();
+        assertThat(Command.isAddressedTo(command.getCommand() + "@SomeOtherBot", BOT_USERNAME)).isFalse();
+    }
+
+    @ParameterizedTest
+    @EnumSource(Command.class)
+    void testAnySuffixIsAcceptedAsLongAsOwnNameIsUnknown(Command command){
+        assertThat(Command.fromCommandString(command.getCommand() + "@SomeOtherBot", null)).isEqualTo(command);
+        assertThat(Command.fromCommandString(command.getCommand() + "@", null)).isEqualTo(command);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "/", "@", "/unknown", "/hel", "/helpme", "help", "/help me", "@/help", "/unknown@BetterTapeBot"})
+    void testUnknownCommandsAreNotFound(String in){
+        assertThat(Command.fromCommandString(in, BOT_USERNAME)).isNull();
+    }
+
+    @Test
+    void testNullIsNotFound(){
+        assertThat(Command.fromCommandString(null, BOT_USERNAME)).isNull();
+    }
+}
@@ -8,7 +8,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
-import org.telegram.telegrambots.longpolling.starter.TelegramBotInitializer;
+import org.telegram.telegrambots.longpolling.TelegramBotsLongPollingApplication;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -24,7 +24,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 class StateHandlerTest {
     
     @MockitoBean
-    TelegramBotInitializer telegramBotInitializer; //disable the telegram api
+    TelegramBotsLongPollingApplication telegramBotsApplication; //disable the telegram api
     
     @Autowired
     List<StateHandler> stateHandlers;
@@ -1,9 +1,11 @@
 package bettertapebot.handler.admin;
 
+import bettertapebot.bot.BroadcastJobService;
 import bettertapebot.bot.ResponseService;
 import bettertapebot.handler.Command;
 import bettertapebot.repository.UserRepository;
 import bettertapebot.repository.UserStateRepository;
+import bettertapebot.repository.entity.BroadcastAudience;
 import bettertapebot.repository.entity.UserEntity;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
@@ -32,6 +34,9 @@ class BroadcastHandlerTest {
     @MockitoBean
     ResponseService responseService;
     
+    @MockitoBean
+    BroadcastJobService broadcastJobService;
+    
     @Autowired
     UserStateRepository userStateRepository;
     
@@ -40,7 +45,7 @@ class BroadcastHandlerTest {
     
     @BeforeEach
     void reset(){
-        Mockito.reset(responseService);
+        Mockito.reset(responseService, broadcastJobService);
     }
     
     @AfterEach
@@ -114,8 +119,6 @@ class BroadcastHandlerTest {
     @Test
     public void broadcastMessageGetsSent(){
         long chatId = 4567L;
-        Long loggedInChatId = 1234L;
-        Long loggedOutChatId = 9876L;
         String message = "testmessage";
         
         var userEntity = userRepository.save(UserEntity.builder()
@@ -130,28 +133,9 @@ class BroadcastHandlerTest {
             .owner(userEntity)
             .build());
         
-        userStateRepository.save(UserStateEntity.builder()
-            .userState(UserState.LOGGED_IN)
-            .chatId(loggedInChatId)
-            .build());
-        userStateRepository.save(UserStateEntity.builder()
-            .userState(UserState.LOGGED_OUT)
-            .chatId(loggedOutChatId)
-            .build());
-        
         broadcastHandler.handleMessage(userStateEntity, message);
-        ArgumentCaptor<String> textCaptor = ArgumentCaptor.forClass(String.class);
-        Mockito.verify(responseService, Mockito.times(1))
-            .broadcast(ArgumentMatchers.assertArg(l ->
-                assertThat(l).containsExactlyInAnyOrder(loggedInChatId, chatId)),
-                textCaptor.capture());
-        
-        var texts = textCaptor.getAllValues();
-        assertThat(texts).isNotNull()
-            .hasSize(1)
-            .element(0)
-            .asInstanceOf(InstanceOfAssertFactories.STRING)
-            .contains(message);
+        Mockito.verify(broadcastJobService, Mockito.times(1)).start(BroadcastAudience.LOGGED_IN, message, chatId);
+        Mockito.verify(responseService, Mockito.never()).broadcast(ArgumentMatchers.anyList(), ArgumentMatchers.anyString());
         
         assertThat(userStateEntity)
             .extracting(UserStateEntity::getUserState)
@@ -1,6 +1,7 @@
 package bettertapebot.handler.admin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.AllTapesCache;
 import bettertapebot.handler.Command;
 import bettertapebot.repository.TapeRepository;
 import bettertapebot.repository.UserRepository;
@@ -40,6 +41,9 @@ class DeleteTapeHandlerTest {
     @MockitoBean
     ResponseService responseService;
     
+    @MockitoBean
+    AllTapesCache allTapesCache;
+    
     @Autowired
     UserStateRepository userStateRepository;
     
@@ -186,6 +190,7 @@ class DeleteTapeHandlerTest {
         Mockito.reset(tapeRepository, responseService);
         deleteTapeHandler.handleMessage(userStateEntity, tape.getId().toString());
         Mockito.verify(tapeRepository, Mockito.times(1)).deleteTapeEntityById(tape.getId());
+        Mockito.verify(allTapesCache, Mockito.times(1)).invalidate();
         
         var tapeOptional = tapeRepository.findById(tape.getId());
         assertThat(tapeOptional).isNotNull().isEmpty();
@@ -214,6 +219,7 @@ class DeleteTapeHandlerTest {
         UUID randomId = UUID.randomUUID();
         deleteTapeHandler.handleMessage(userStateEntity, randomId.toString());
         Mockito.verify(tapeRepository, Mockito.times(1)).deleteTapeEntityById(randomId);
+        Mockito.verify(allTapesCache, Mockito.never()).invalidate();
         
         ArgumentCaptor<String> textCaptor = ArgumentCaptor.forClass(String.class);
         Mockito.verify(responseService, Mockito.times(1)).send(ArgumentMatchers.eq(chatId), textCaptor.capture());
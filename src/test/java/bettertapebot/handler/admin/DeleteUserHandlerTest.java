@@ -1,6 +1,8 @@
 package bettertapebot.handler.admin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.AllTapesCache;
+import bettertapebot.cache.UserStateStore;
 import bettertapebot.handler.Command;
 import bettertapebot.repository.UserRepository;
 import bettertapebot.repository.UserStateRepository;
@@ -35,6 +37,12 @@ class DeleteUserHandlerTest {
     @MockitoBean
     ResponseService responseService;
     
+    @MockitoBean
+    UserStateStore userStateStore;
+    
+    @MockitoBean
+    AllTapesCache allTapesCache;
+    
     @Autowired
     UserStateRepository userStateRepository;
     
@@ -166,6 +174,7 @@ class DeleteUserHandlerTest {
         Mockito.reset(userRepository, responseService);
         deleteUserHandler.handleMessage(userStateEntity, userToRemove.getUsername());
         Mockito.verify(userRepository, Mockito.times(1)).deleteByUsername(userToRemove.getUsername());
+        Mockito.verify(allTapesCache, Mockito.times(1)).invalidate();
         Mockito.verifyNoInteractions(responseService);
         
         var deleted = userRepository.findById(userToRemove.getUsername());
@@ -1,7 +1,9 @@
 package bettertapebot.handler.admin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.UserStateStore;
 import bettertapebot.handler.Command;
+import bettertapebot.properties.BotProperties;
 import bettertapebot.repository.UserRepository;
 import bettertapebot.repository.UserStateRepository;
 import bettertapebot.repository.entity.UserEntity;
@@ -25,7 +27,7 @@ import java.util.Objects;
 import static org.assertj.core.api.Assertions.assertThat;
 
 @DataJpaTest
-@Import({TestcontainersConfiguration.class, ResetUserHandler.class})
+@Import({TestcontainersConfiguration.class, ResetUserHandler.class, UserStateStore.class, BotProperties.class})
 class ResetUserHandlerTest {
     
     @Autowired
@@ -2,6 +2,7 @@ package bettertapebot.handler.general;
 
 import bettertapebot.bot.ResponseService;
 import bettertapebot.handler.Command;
+import bettertapebot.handler.CommandHandler;
 import bettertapebot.properties.BotProperties;
 import bettertapebot.repository.UserStateRepository;
 import bettertapebot.repository.entity.UserState;
@@ -35,6 +36,7 @@ class GetDsgvoHandlerTest {
     @Test
     public void registersForCorrectCommand(){
         assertThat(getDsgvoHandler.forCommand()).isEqualTo(Command.DSGVO);
+        assertThat(getDsgvoHandler.stateAccess()).isEqualTo(CommandHandler.StateAccess.NONE);
     }
 
     @Test
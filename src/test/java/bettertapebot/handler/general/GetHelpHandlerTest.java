@@ -2,6 +2,7 @@ package bettertapebot.handler.general;
 
 import bettertapebot.bot.ResponseService;
 import bettertapebot.handler.Command;
+import bettertapebot.handler.CommandHandler;
 import bettertapebot.repository.UserStateRepository;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
@@ -43,6 +44,7 @@ class GetHelpHandlerTest {
     @Test
     public void registersForCorrectCommand(){
         assertThat(getHelpHandler.forCommand()).isEqualTo(Command.HELP);
+        assertThat(getHelpHandler.stateAccess()).isEqualTo(CommandHandler.StateAccess.READ_ONLY);
     }
 
     @Test
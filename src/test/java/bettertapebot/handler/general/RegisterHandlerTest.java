@@ -1,6 +1,7 @@
 package bettertapebot.handler.general;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.UserStateStore;
 import bettertapebot.config.PasscodeGenerator;
 import bettertapebot.handler.Command;
 import bettertapebot.properties.BotProperties;
@@ -28,7 +29,7 @@ import java.util.List;
 import static org.assertj.core.api.Assertions.assertThat;
 
 @DataJpaTest
-@Import({TestcontainersConfiguration.class, RegisterHandler.class, BotProperties.class, PasscodeGenerator.class})
+@Import({TestcontainersConfiguration.class, RegisterHandler.class, BotProperties.class, PasscodeGenerator.class, UserStateStore.class})
 class RegisterHandlerTest {
     
     @Autowired
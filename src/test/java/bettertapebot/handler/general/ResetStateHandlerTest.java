@@ -1,7 +1,9 @@
 package bettertapebot.handler.general;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.UserStateStore;
 import bettertapebot.handler.Command;
+import bettertapebot.properties.BotProperties;
 import bettertapebot.repository.UserStateRepository;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
@@ -21,7 +23,7 @@ import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
 import static org.assertj.core.api.Assertions.assertThat;
 
 @DataJpaTest
-@Import({TestcontainersConfiguration.class, ResetStateHandler.class})
+@Import({TestcontainersConfiguration.class, ResetStateHandler.class, UserStateStore.class, BotProperties.class})
 class ResetStateHandlerTest {
     
     @Autowired
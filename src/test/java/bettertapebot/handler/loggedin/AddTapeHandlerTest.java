@@ -1,6 +1,8 @@
 package bettertapebot.handler.loggedin;
 
+import bettertapebot.bot.BroadcastJobService;
 import bettertapebot.bot.ResponseService;
+import bettertapebot.cache.AllTapesCache;
 import bettertapebot.cache.TapeCache;
 import bettertapebot.cache.TapeCacheEntry;
 import bettertapebot.handler.Command;
@@ -8,6 +10,7 @@ import bettertapebot.properties.BotProperties;
 import bettertapebot.repository.TapeRepository;
 import bettertapebot.repository.UserRepository;
 import bettertapebot.repository.UserStateRepository;
+import bettertapebot.repository.entity.BroadcastAudience;
 import bettertapebot.repository.entity.UserEntity;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
@@ -26,7 +29,6 @@ import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
 
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
-import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -49,6 +51,12 @@ class AddTapeHandlerTest {
     @MockitoBean
     ResponseService responseService;
     
+    @MockitoBean
+    BroadcastJobService broadcastJobService;
+    
+    @MockitoBean
+    AllTapesCache allTapesCache;
+    
     @MockitoBean
     TapeCache tapeCache;
     
@@ -167,10 +175,6 @@ class AddTapeHandlerTest {
     @Test
     public void addWithKnownStarGetsAdded(){
         long chatId = 1234L;
-        long starChatId = 2234L;
-        long otherActiveChatId = 3456L;
-        long otherNotActiveChatId = 4567L;
-        long mutedChatId = 5678L;
         
         var requestorEntity = userRepository.save(UserEntity.builder()
             .username("requestor")
@@ -180,41 +184,12 @@ class AddTapeHandlerTest {
             .username("star")
             .pin("9876")
             .build());
-        var otherEntity = userRepository.save(UserEntity.builder()
-            .username("someone")
-            .pin("8765")
-            .build());
-        var mutedEntity = userRepository.save(UserEntity.builder()
-            .username("afk")
-            .pin("7654")
-            .wantsAbonnement(false)
-            .build());
         
         var userStateEntity = userStateRepository.save(UserStateEntity.builder()
             .chatId(chatId)
             .userState(UserState.ADD_TAPE_GET_STAR)
             .owner(requestorEntity)
             .build());
-        userStateRepository.save(UserStateEntity.builder()
-            .chatId(starChatId)
-            .userState(UserState.LOGGED_IN)
-            .owner(starEntity)
-            .build());
-        userStateRepository.save(UserStateEntity.builder()
-            .chatId(otherActiveChatId)
-            .userState(UserState.LOGGED_IN)
-            .owner(otherEntity)
-            .build());
-        userStateRepository.save(UserStateEntity.builder()
-            .chatId(otherNotActiveChatId)
-            .userState(UserState.LOGGED_OUT)
-            .owner(otherEntity)
-            .build());
-        userStateRepository.save(UserStateEntity.builder()
-            .chatId(mutedChatId)
-            .userState(UserState.LOGGED_IN)
-            .owner(mutedEntity)
-            .build());
         
         ZonedDateTime time = ZonedDateTime.of(2026,1,1,12,0,0,0, ZoneOffset.UTC);
         String expectedTime = "01.01.26 13:00";
@@ -223,24 +198,16 @@ class AddTapeHandlerTest {
         TapeCacheEntry cacheEntry = new TapeCacheEntry(tapeTitle, time.toInstant());
         Mockito.when(tapeCache.get(ArgumentMatchers.anyLong())).thenReturn(cacheEntry);
         
-        Mockito.reset(userStateRepository, userRepository, tapeRepository, responseService);
+        Mockito.reset(userStateRepository, userRepository, tapeRepository, responseService, broadcastJobService);
         addTapeHandler.handleMessage(userStateEntity, starEntity.getUsername());
         Mockito.verify(userRepository, Mockito.times(1)).findById(starEntity.getUsername());
         Mockito.verify(tapeCache, Mockito.times(1)).get(chatId);
         Mockito.verify(tapeCache, Mockito.times(1)).remove(chatId);
         Mockito.verify(tapeRepository, Mockito.times(1)).save(ArgumentMatchers.any());
-        Mockito.verify(userStateRepository, Mockito.times(1)).findAllByUserStateIsInAndOwner_WantsAbonnement(ArgumentMatchers.anyCollection(), ArgumentMatchers.eq(true));
+        Mockito.verify(allTapesCache, Mockito.times(1)).invalidate();
         
-        //noinspection unchecked
-        ArgumentCaptor<List<Long>> chatIdsCaptor = ArgumentCaptor.forClass(List.class);
         ArgumentCaptor<String> textCaptor = ArgumentCaptor.forClass(String.class);
-        Mockito.verify(responseService, Mockito.times(1)).broadcast(chatIdsCaptor.capture(), textCaptor.capture());
-        var capturedIdLists = chatIdsCaptor.getAllValues();
-        assertThat(capturedIdLists).hasSize(1)
-            .element(0)
-            .asInstanceOf(InstanceOfAssertFactories.COLLECTION)
-            .containsExactlyInAnyOrder(chatId, starChatId, otherActiveChatId)
-            .doesNotContain(otherNotActiveChatId, mutedChatId);
+        Mockito.verify(broadcastJobService, Mockito.times(1)).start(ArgumentMatchers.eq(BroadcastAudience.SUBSCRIBERS), textCaptor.capture(), ArgumentMatchers.isNull());
         
         var texts = textCaptor.getAllValues();
         assertThat(texts).isNotNull()
@@ -1,6 +1,7 @@
 package bettertapebot.handler.loggedin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.bot.TapePager;
 import bettertapebot.handler.Command;
 import bettertapebot.properties.BotProperties;
 import bettertapebot.repository.TapeRepository;
@@ -29,7 +30,7 @@ import java.time.ZonedDateTime;
 import static org.assertj.core.api.Assertions.assertThat;
 
 @DataJpaTest
-@Import({TestcontainersConfiguration.class, DirectingHandler.class, BotProperties.class})
+@Import({TestcontainersConfiguration.class, DirectingHandler.class, TapePager.class, BotProperties.class})
 class DirectingHandlerTest {
     
     @Autowired
@@ -204,7 +205,7 @@ class DirectingHandlerTest {
         Mockito.reset(userRepository, tapeRepository, responseService);
         directingHandler.handleMessage(requestorState, director.getUsername());
         Mockito.verify(userRepository, Mockito.times(1)).findById(director.getUsername());
-        Mockito.verify(tapeRepository, Mockito.times(1)).findAllByDirector(director);
+        Mockito.verify(tapeRepository, Mockito.times(1)).findFirstDirectorPage(ArgumentMatchers.eq(director), ArgumentMatchers.any());
         ArgumentCaptor<String> textCaptor = ArgumentCaptor.forClass(String.class);
         Mockito.verify(responseService, Mockito.times(1)).send(ArgumentMatchers.eq(chatId), textCaptor.capture());
         var texts = textCaptor.getAllValues();
@@ -1,6 +1,8 @@
 package bettertapebot.handler.loggedin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.bot.TapePager;
+import bettertapebot.cache.AllTapesCache;
 import bettertapebot.handler.Command;
 import bettertapebot.properties.BotProperties;
 import bettertapebot.repository.TapeRepository;
@@ -11,6 +13,7 @@ import bettertapebot.repository.entity.UserEntity;
 import bettertapebot.repository.entity.UserState;
 import bettertapebot.repository.entity.UserStateEntity;
 import bettertapebot.testutil.TestcontainersConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.assertj.core.api.InstanceOfAssertFactories;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -31,7 +34,7 @@ import java.time.ZonedDateTime;
 import static org.assertj.core.api.Assertions.assertThat;
 
 @DataJpaTest
-@Import({TestcontainersConfiguration.class, GetAllHandler.class, BotProperties.class})
+@Import({TestcontainersConfiguration.class, GetAllHandler.class, TapePager.class, AllTapesCache.class, SimpleMeterRegistry.class, BotProperties.class})
 class GetAllHandlerTest {
     
     @Autowired
@@ -52,8 +55,13 @@ class GetAllHandlerTest {
     @Autowired
     BotProperties botProperties;
     
+    @Autowired
+    AllTapesCache allTapesCache;
+    
     @BeforeEach
     void reset(){
+        //the tapes of the tests are saved right through the repository
+        allTapesCache.invalidate();
         Mockito.reset(tapeRepository, responseService);
     }
     
@@ -107,7 +115,7 @@ class GetAllHandlerTest {
         
         Mockito.reset(tapeRepository, responseService);
         getAllHandler.handleMessage(userStateEntity, null);
-        Mockito.verify(tapeRepository, Mockito.times(1)).findAllByOrderByDateAddedDesc();
+        Mockito.verify(tapeRepository, Mockito.times(1)).findFirstPage(ArgumentMatchers.any());
         ArgumentCaptor<String> textCaptor = ArgumentCaptor.forClass(String.class);
         Mockito.verify(responseService, Mockito.times(1)).send(ArgumentMatchers.eq(chatId), textCaptor.capture());
         var texts = textCaptor.getAllValues();
@@ -170,7 +178,7 @@ class GetAllHandlerTest {
         
         Mockito.reset(tapeRepository, responseService);
         getAllHandler.handleMessage(requestorStateEntity, null);
-        Mockito.verify(tapeRepository, Mockito.times(1)).findAllByOrderByDateAddedDesc();
+        Mockito.verify(tapeRepository, Mockito.times(1)).findFirstPage(ArgumentMatchers.any());
         ArgumentCaptor<String> textCaptor = ArgumentCaptor.forClass(String.class);
         Mockito.verify(responseService, Mockito.times(1)).send(ArgumentMatchers.eq(chatId), textCaptor.capture());
         var texts = textCaptor.getAllValues();
@@ -1,6 +1,7 @@
 package bettertapebot.handler.loggedin;
 
 import bettertapebot.bot.ResponseService;
+import bettertapebot.bot.TapePager;
 import bettertapebot.handler.Command;
 import bettertapebot.properties.BotProperties;
 import bettertapebot.repository.TapeRepository;
@@ -23,13 +24,15 @@ import org.springframework.boot.data.jpa.test.autoconfigure.DataJpaTest;
 import org.springframework.context.annotation.Import;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.context.bean.override.mockito.MockitoSpyBean;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 
 import java.time.ZonedDateTime;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 @DataJpaTest
-@Import({TestcontainersConfiguration.class, StarringHandler.class, BotProperties.class})
+@Import({TestcontainersConfiguration.class, StarringHandler.class, TapePager.class, BotProperties.class})
 class StarringHandlerTest {
     
     @Autowired
@@ -50,6 +53,9 @@ class StarringHandlerTest {
     @Autowired
     BotProperties botProperties;
     
+    @Autowired
+    TapePager tapePager;
+    
     @BeforeEach
     void reset(){
         Mockito.reset(userRepository, tapeRepository, responseService);
@@ -204,7 +210,7 @@ class StarringHandlerTest {
         Mockito.reset(userRepository, tapeRepository, responseService);
         starringHandler.handleMessage(requestorState, star.getUsername());
         Mockito.verify(userRepository, Mockito.times(1)).findById(star.getUsername());
-        Mockito.verify(tapeRepository, Mockito.times(1)).findAllByStar(star);
+        Mockito.verify(tapeRepository, Mockito.times(1)).findFirstStarPage(ArgumentMatchers.eq(star), ArgumentMatchers.any());
         ArgumentCaptor<String> textCaptor = ArgumentCaptor.forClass(String.class);
         Mockito.verify(responseService, Mockito.times(1)).send(ArgumentMatchers.eq(chatId), textCaptor.capture());
         var texts = textCaptor.getAllValues();
@@ -223,5 +229,69 @@ class StarringHandlerTest {
             .extracting(UserStateEntity::getUserState)
             .isEqualTo(UserState.LOGGED_IN);
     }
+    
+    @Test
+    public void starringPagesThroughTapesOfStar(){
+        ZonedDateTime time = ZonedDateTime.of(2026, 2, 1,12,0,0,0, botProperties.getOutputTimezone());
+        long chatId = 7890L;
+        var requestor = userRepository.save(UserEntity.builder()
+            .username("requestor")
+            .pin("1234")
+            .isAdmin(false)
+            .build());
+        var requestorState = userStateRepository.save(UserStateEntity.builder()
+            .chatId(chatId)
+            .userState(UserState.LOGGED_IN)
+            .owner(requestor)
+            .build());
+        var star = userRepository.save(UserEntity.builder()
+            .username("star")
+            .pin("9876")
+            .isAdmin(false)
+            .build());
+        for (int i = 1; i <= 3; i++) {
+            tapeRepository.save(TapeEntity.builder()
+                .title("tape" + i)
+                .star(star)
+                .director(requestor)
+                .dateAdded(time.plusDays(i).toInstant())
+                .build());
+        }
+        //newer than all of them, but somebody else's
+        tapeRepository.save(TapeEntity.builder()
+            .title("tapeIgnored")
+            .star(requestor)
+            .director(star)
+            .dateAdded(time.plusDays(4).toInstant())
+            .build());
+        
+        int pageSize = botProperties.getTapesPageSize();
+        botProperties.setTapesPageSize(2);
+        try {
+            Mockito.reset(userRepository, tapeRepository, responseService);
+            starringHandler.handleMessage(requestorState, star.getUsername());
+            ArgumentCaptor<InlineKeyboardMarkup> keyboardCaptor = ArgumentCaptor.forClass(InlineKeyboardMarkup.class);
+            ArgumentCaptor<String> textCaptor = ArgumentCaptor.forClass(String.class);
+            Mockito.verify(responseService, Mockito.times(1)).send(ArgumentMatchers.eq(chatId), keyboardCaptor.capture(), textCaptor.capture());
+            assertThat(textCaptor.getValue()).contains("tape3", "tape2").doesNotContain("tape1", "tapeIgnored");
+            
+            var older = tapePager.page(buttonData(keyboardCaptor.getValue(), 0), false).orElseThrow();
+            assertThat(older.text()).contains("tape1").doesNotContain("tape2", "tapeIgnored");
+            assertThat(older.keyboard().getKeyboard().getFirst()).hasSize(1);
+            
+            var newer = tapePager.page(buttonData(older.keyboard(), 0), false).orElseThrow();
+            assertThat(newer.text()).isEqualTo(textCaptor.getValue());
+        }
+        finally {
+            botProperties.setTapesPageSize(pageSize);
+        }
+    }
+    
+    private static String buttonData(InlineKeyboardMarkup keyboard, int index){
+        return keyboard.getKeyboard().getFirst().stream()
+            .map(InlineKeyboardButton::getCallbackData)
+            .toList()
+            .get(index);
+    }
 
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package bettertapebot.handler.loggedin;
+
+import bettertapebot.bot.ResponseService;
+import bettertapebot.bot.TapePager;
+import bettertapebot.repository.entity.UserState;
+import bettertapebot.repository.entity.UserStateEntity;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.chat.Chat;
+import org.telegram.telegrambots.meta.api.objects.message.Message;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardRow;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringJUnitConfig
+class TapePageHandlerTest {
+    private static final long CHAT_ID = 1234L;
+    private static final String DATA = "tapes:all:next:8d8ac610-566d-4ef0-9c22-186b2a5ed793";
+
+    ResponseService responseService;
+    TapePager tapePager;
+    TapePageHandler tapePageHandler;
+
+    @BeforeEach
+    void setup(){
+        responseService = Mockito.mock(ResponseService.class);
+        tapePager = Mockito.mock(TapePager.class);
+        tapePageHandler = new TapePageHandler(responseService, tapePager);
+    }
+
+    private static CallbackQuery callbackQuery(){
+        var callbackQuery = new CallbackQuery();
+        callbackQuery.setId("query");
+        callbackQuery.setData(DATA);
+        callbackQuery.setMessage(Message.builder()
+            .messageId(42)
+            .chat(Chat.builder()
+                .id(CHAT_ID)
+                .type("private")
+                .build())
+            .build());
+        return callbackQuery;
+    }
+
+    private static UserStateEntity userState(UserState userState, boolean adminMode){
+        return UserStateEntity.builder()
+            .chatId(CHAT_ID)
+            .userState(userState)
+            .adminMode(adminMode)
+            .build();
+    }
+
+    @Test
+    void registersForPagesOfTapes(){
+        assertThat(tapePageHandler.forPrefix()).isEqualTo(TapePager.CALLBACK_PREFIX);
+    }
+
+    @Test
+    void notLoggedInUserGetsDenied(){
+        tapePageHandler.handleCallback(userState(UserState.LOGGED_OUT, false), callbackQuery());
+
+        Mockito.verify(responseService).answerCallbackQuery("query", "Nur eingeloggte User können Tapes abfragen");
+        Mockito.verifyNoMoreInteractions(responseService);
+        Mockito.verifyNoInteractions(tapePager);
+    }
+
+    @Test
+    void pageIsTurnedInPlace(){
+        var keyboard = InlineKeyboardMarkup.builder().keyboardRow(new InlineKeyboardRow()).build();
+        Mockito.when(tapePager.page(DATA, true)).thenReturn(Optional.of(new TapePager.TapePage("page 2", keyboard)));
+        tapePageHandler.handleCallback(userState(UserState.LOGGED_IN, true), callbackQuery());
+
+        Mockito.verify(responseService).answerCallbackQuery("query", null);
+        Mockito.verify(responseService).edit(CHAT_ID, 42, "page 2", keyboard);
+        Mockito.verify(responseService, Mockito.never()).send(ArgumentMatchers.anyLong(), ArgumentMatchers.anyString());
+    }
+
+    @Test
+    void pageStartingBehindDeletedTapeIsNotShown(){
+        Mockito.when(tapePager.page(DATA, false)).thenReturn(Optional.empty());
+        tapePageHandler.handleCallback(userState(UserState.LOGGED_IN, false), callbackQuery());
+
+        Mockito.verify(responseService).answerCallbackQuery("query", "Die Liste hat sich geändert, frag sie bitte neu ab");
+        Mockito.verifyNoMoreInteractions(responseService);
+    }
+}
@@ -92,7 +92,9 @@ class MessageCleanerTest {
                 Arguments.of(Command.ADMIN.getCommand() + "message", Command.ADMIN, "message"),
                 Arguments.of(Command.ADMIN.getCommand() + " message", Command.ADMIN, "message"),
                 Arguments.of(Command.ADMIN.getCommand() + "message peter pan, cleanup at last  ", Command.ADMIN, "message peter pan, cleanup at last"),
-                Arguments.of(Command.ADMIN.getCommand() + "  message peter pan, cleanup at last  ", Command.ADMIN, "message peter pan, cleanup at last")
+                Arguments.of(Command.ADMIN.getCommand() + "  message peter pan, cleanup at last  ", Command.ADMIN, "message peter pan, cleanup at last"),
+                Arguments.of(Command.ADMIN.getCommand() + "@BetterTapeBot message", Command.ADMIN, "message"),
+                Arguments.of(Command.ADMIN.getCommand() + "@BetterTapeBot", Command.ADMIN, "")
             );
         }
         
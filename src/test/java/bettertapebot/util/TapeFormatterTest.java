@@ -1,5 +1,6 @@
 package bettertapebot.util;
 
+import bettertapebot.repository.TapeListing;
 import bettertapebot.repository.entity.TapeEntity;
 import bettertapebot.repository.entity.UserEntity;
 import org.junit.jupiter.api.Test;
@@ -36,5 +37,27 @@ class TapeFormatterTest {
             .build();
         assertThat(TapeFormatter.formatTape(tape, zoneId, false)).isEqualTo(expected);
         assertThat(TapeFormatter.formatTape(tape, zoneId, true)).isEqualTo(expectedAdmin);
+        
+        var listing = new TapeListing(uuid, "Inception", "Leonardo DiCaprio", "Christopher Nolan", date.toInstant());
+        assertThat(TapeFormatter.formatTape(listing, zoneId, false)).isEqualTo(expected);
+        assertThat(TapeFormatter.formatTape(listing, zoneId, true)).isEqualTo(expectedAdmin);
     }
-}
\ No newline at end of file
+    
+    @Test
+    void testUserInputIsEscaped(){
+        var zoneId = ZoneId.of("Europe/Berlin");
+        var tape = tape("<b>Tom & Jerry</b>", "a<b", zoneId);
+        assertThat(TapeFormatter.formatTape(tape, zoneId, false))
+            .isEqualTo("<b>\"&lt;b&gt;Tom &amp; Jerry&lt;/b&gt;\" — a&lt;b</b>\n<i>von Christopher Nolan am 01.02.91 05:41</i>");
+    }
+    
+    private TapeEntity tape(String title, String star, ZoneId zoneId){
+        return TapeEntity.builder()
+            .id(UUID.randomUUID())
+            .title(title)
+            .star(UserEntity.builder().username(star).build())
+            .director(UserEntity.builder().username("Christopher Nolan").build())
+            .dateAdded(ZonedDateTime.of(1991, 2, 1, 5, 41, 14, 0, zoneId).toInstant())
+            .build();
+    }
+}
@@ -71,25 +71,87 @@ class TextSplitterTest {
     }
     
     @Test
-    void testFindSmartSplitPointFindsDNothing(){
-        var text = "this is a test, this is a new Line";
-        var result = TextSplitter.findSmartSplitPoint(text, text.length());
-        assertThat(result).isEqualTo(text.length());
+    void testCutAtLastLinebreakThatFits(){
+        var result = TextSplitter.splitTextSmart("this is a test\nthis is a new Line", 20);
+        assertThat(result).containsExactly("this is a test", "this is a new Line");
     }
     
     @Test
-    void testFindSmartSplitPointFindsNewLine(){
-        var text = "this is a test\nthis is a new Line";
-        var result = TextSplitter.findSmartSplitPoint(text, text.length());
-        var expected = text.lastIndexOf("this");
-        assertThat(result).isEqualTo(expected);
+    void testCutAtBlankLineBeforeLinebreak(){
+        var result = TextSplitter.splitTextSmart("this is a test\n\nthis is a\n new Line", 30);
+        assertThat(result).containsExactly("this is a test", "this is a\n new Line");
     }
     
     @Test
-    void testFindSmartSplitPointFindsDoubleNewLine(){
-        var text = "this is a test\n\nthis is a\n new Line";
-        var result = TextSplitter.findSmartSplitPoint(text, text.length());
-        var expected = text.lastIndexOf("this");
-        assertThat(result).isEqualTo(expected);
+    void testTagIsNeverCut(){
+        var result = TextSplitter.splitTextSmart("abcdef<code>x</code>", 14);
+        assertThat(result).containsExactly("abcdef", "<code>x</code>");
     }
-}
\ No newline at end of file
+    
+    @Test
+    void testEntityIsNeverCut(){
+        var result = TextSplitter.splitTextSmart("abc&amp;def&lt;", 6);
+        assertThat(result).containsExactly("abc", "&amp;d", "ef&lt;");
+    }
+    
+    @Test
+    void testSurrogatePairIsNeverCut(){
+        var result = TextSplitter.splitTextSmart("ab\uD83C\uDFACcd", 3);
+        assertThat(result).containsExactly("ab", "\uD83C\uDFACc", "d");
+    }
+    
+    @Test
+    void testTagsOpenAtCutAreReopenedInNextChunk(){
+        var text = "<b>\"first\" — anonymous</b>\n<i>von tester am 01.01.2025 und noch viel mehr text</i>";
+        var result = TextSplitter.splitTextSmart(text, 40);
+        assertThat(result).allSatisfy(chunk -> assertThat(chunk.length()).isLessThanOrEqualTo(40))
+            .containsExactly(
+                "<b>\"first\" — anonymous</b>",
+                "<i>von tester am 01.01.2025 und noch</i>",
+                "<i>viel mehr text</i>");
+    }
+    
+    @Test
+    void testNestedTagsAreClosedInReverseOrder(){
+        var result = TextSplitter.splitTextSmart("<b>bold <i>both and more</i> bold</b>", 28);
+        assertThat(result).containsExactly("<b>bold <i>both and</i></b>", "<b><i>more</i> bold</b>");
+    }
+    
+    @Test
+    void testChunksAreCutWhenPulled(){
+        var text = new CountingCharSequence("line\n".repeat(100_000));
+        var first = TextSplitter.split(text, 100).findFirst();
+        assertThat(first).contains("line\n".repeat(20).trim());
+        assertThat(text.reads).isLessThan(1_000);
+    }
+    
+    static class CountingCharSequence implements CharSequence {
+        final String text;
+        int reads;
+        
+        CountingCharSequence(String text) {
+            this.text = text;
+        }
+        
+        @Override
+        public int length() {
+            return text.length();
+        }
+        
+        @Override
+        public char charAt(int index) {
+            reads++;
+            return text.charAt(index);
+        }
+        
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+        
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}